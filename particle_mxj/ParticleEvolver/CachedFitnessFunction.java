@@ -0,0 +1,54 @@
+package ga;
+
+import org.jgap.*;
+
+/**
+ * A fitness function which looks chromosomes up in a FitnessCache before
+ * handing them to the fitness function doing the work. The cache keys
+ * include a hash of the targets, so values scored against other targets
+ * are never returned.
+ */
+public class CachedFitnessFunction extends FitnessFunction
+{
+    // the fitness function doing the work
+    private FitnessFunction function;
+    // the values scored so far
+    private FitnessCache cache;
+    // hash of the targets the function scores against
+    private long targetsHash;
+
+    /**
+     * Constructs a cached fitness function.
+     *
+     * @param function The fitness function doing the work.
+     * @param targets The targets the function scores against.
+     * @param cache The cache to keep the values in.
+     */
+    public CachedFitnessFunction(FitnessFunction function, ParticleTargets targets, FitnessCache cache)
+    {
+        this.function = function;
+        this.cache = cache;
+        targetsHash = FitnessCache.mix(targets.hashCode());
+    }
+
+
+    /**
+     * Returns the cached fitness of the chromosome, or scores it and
+     * caches the value.
+     *
+     * @param subject The Chromosome instance to evaluate.
+     *
+     * @return The fitness value.
+     */
+    protected double evaluate(Chromosome subject)
+    {
+        long key = FitnessCache.hash(subject, targetsHash);
+        double value = cache.get(key);
+        if (value < 0)
+        {
+            value = function.getFitnessValue(subject);
+            cache.put(key, value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,378 @@
+package ga;
+
+import org.jgap.*;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Evolves a population on its own thread, so that breeding and evaluating
+ * a large population never holds up the Max scheduler. The worker evolves
+ * one generation per request, or continuously when asked to.
+ *
+ * After every generation the fittest chromosome is copied into a new
+ * Fittest and published through an atomic reference: the worker only ever
+ * writes a Fittest nobody has seen yet and swaps it in when it is
+ * complete, so readers take the latest one without blocking and never see
+ * one half written. A listener is then told a generation is done.
+ *
+ * Checkpoints are taken between generations, when the population is not
+ * changing, and written in the background.
+ *
+ * A worker can also set up its population itself, a random one or one
+ * carried on from a checkpoint, so that nothing but handing over the
+ * configuration happens on the Max thread. Replacing a population likewise
+ * only asks the old worker to stop, which then finishes its generation in
+ * the background and tells its listener nothing more.
+ *
+ * JGAP 2.x keeps the active configuration in a static shared by every
+ * population in the Java VM, and every evolver in a Max patch runs a worker
+ * of its own. A worker therefore only touches its population while it holds
+ * CONFIGURATION_LOCK, after making its own configuration the active one, so
+ * the workers take turns a generation at a time.
+ */
+public class EvolutionWorker implements Runnable
+{
+    /**
+     * The fittest chromosome of a generation, flattened into a genome.
+     * Never changes once published.
+     */
+    public static final class Fittest
+    {
+        private final double[] genome;
+        private final double fitness;
+        private final int generation;
+
+        private Fittest(Chromosome chrom, int generation)
+        {
+            genome = new double[ParticleGenome.SIZE];
+            ParticleGenome.read(chrom, genome);
+            fitness = chrom.getFitnessValue();
+            this.generation = generation;
+        }
+
+        /**
+         * Returns a parameter of the genome.
+         *
+         * @param index The index of the parameter in a ParticleGenome.
+         */
+        public double get(int index)
+        {
+            return genome[index];
+        }
+
+        /**
+         * Returns the fitness value of the chromosome.
+         */
+        public double getFitness()
+        {
+            return fitness;
+        }
+
+        /**
+         * Returns the number of the generation, counting from 1.
+         */
+        public int getGeneration()
+        {
+            return generation;
+        }
+    }
+
+    /**
+     * Held by whatever sets up, evaluates, breeds or checkpoints a
+     * population, shared by all workers and evolvers.
+     */
+    static final Object CONFIGURATION_LOCK = new Object();
+
+    // what the worker does next
+    private static final int STOP = 0;
+    private static final int EVOLVE = 1;
+    private static final int CHECKPOINT = 2;
+
+    // the population being evolved and its configuration; the population
+    // is set up on the worker thread when it is null
+    private Configuration conf;
+    private Genotype population;
+    // the checkpoint the population is carried on from, or null
+    private ParticleCheckpoint resume;
+    // the number of generations evolved so far
+    private int generation;
+    // told after every generation until the worker is asked to stop, on
+    // the worker thread
+    private Runnable listener;
+    private Thread thread;
+
+    // the fittest of the last generation, null before the first
+    private AtomicReference fittest = new AtomicReference();
+
+    // requests waiting, guarded by the worker
+    private int pending;
+    private boolean continuous;
+    private boolean running;
+    // the file to write a checkpoint to, and the targets to put in it
+    private File checkpointFile;
+    private ParticleTargets checkpointTargets;
+
+    /**
+     * Constructs a worker for a population whose configuration has a bulk
+     * fitness function. The population is evaluated on the worker thread
+     * before its first generation.
+     *
+     * @param conf The configuration of the population.
+     * @param population The population to evolve.
+     * @param generation The number of generations it has evolved, 0 for a
+     *                   new population.
+     * @param listener Run on the worker thread after every generation,
+     *                 may be null.
+     */
+    public EvolutionWorker(Configuration conf, Genotype population, int generation,
+        Runnable listener)
+    {
+        this.conf = conf;
+        this.population = population;
+        this.generation = generation;
+        this.listener = listener;
+    }
+
+
+    /**
+     * Constructs a worker which sets up its population on the worker
+     * thread, then evaluates it before its first generation. The
+     * configuration must have a bulk fitness function, a sample chromosome
+     * and a population size, and must not be in use yet.
+     *
+     * @param conf The configuration of the population.
+     * @param resume The checkpoint to carry on from, or null for a random
+     *               population.
+     * @param listener Run on the worker thread after every generation,
+     *                 may be null.
+     */
+    public EvolutionWorker(Configuration conf, ParticleCheckpoint resume, Runnable listener)
+    {
+        this.conf = conf;
+        this.resume = resume;
+        this.generation = resume != null ? resume.getGeneration() : 0;
+        this.listener = listener;
+    }
+
+
+    /**
+     * Starts the worker thread.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this, "Evolution worker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stops the worker, waiting for the generation being evolved to
+     * finish.
+     */
+    public void stop()
+    {
+        Thread worker;
+        synchronized (this)
+        {
+            stopLater();
+            worker = thread;
+        }
+        if (worker == null || worker == Thread.currentThread())
+            return;
+        boolean interrupted = false;
+        while (worker.isAlive())
+        {
+            try {
+                worker.join();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+
+    /**
+     * Asks the worker to stop after the generation being evolved, returning
+     * at once. The listener is not told about that generation.
+     */
+    public synchronized void stopLater()
+    {
+        running = false;
+        notifyAll();
+    }
+
+
+    /**
+     * Asks for more generations to be evolved, returning at once.
+     *
+     * @param generations The number of generations to add.
+     */
+    public synchronized void evolve(int generations)
+    {
+        if (generations <= 0)
+            return;
+        pending += generations;
+        notifyAll();
+    }
+
+
+    /**
+     * Turns continuous evolution on or off. When it is turned off,
+     * generations still asked for are evolved.
+     */
+    public synchronized void setContinuous(boolean on)
+    {
+        continuous = on;
+        notifyAll();
+    }
+
+
+    public synchronized boolean isContinuous()
+    {
+        return continuous;
+    }
+
+
+    /**
+     * Asks for a checkpoint of the population to be taken after the
+     * generation being evolved and written in the background. Returns at
+     * once. A checkpoint asked for before the worker is stopped is still
+     * taken.
+     *
+     * @param file The file to write.
+     * @param targets The targets the population evolves towards.
+     */
+    public synchronized void checkpoint(File file, ParticleTargets targets)
+    {
+        checkpointFile = file;
+        checkpointTargets = targets;
+        notifyAll();
+    }
+
+
+    /**
+     * Returns the fittest chromosome of the last generation without
+     * waiting for the one being evolved.
+     *
+     * @return The fittest, or null before the first generation is done.
+     */
+    public Fittest getFittest()
+    {
+        return (Fittest) fittest.get();
+    }
+
+
+    /**
+     * The worker thread: sets up and evaluates the population, then
+     * evolves a generation or takes a checkpoint whenever one is asked for.
+     */
+    public void run()
+    {
+        try {
+            synchronized (CONFIGURATION_LOCK)
+            {
+                if (population == null)
+                {
+                    // both make conf the active configuration
+                    if (resume != null)
+                        population = resume.restore(conf);
+                    else
+                        population = Genotype.randomInitialGenotype(conf);
+                    resume = null;
+                }
+                Genotype.setConfiguration(conf);
+                conf.getBulkFitnessFunction().evaluate(population.getPopulation());
+            }
+
+            int task;
+            while ((task = nextTask()) != STOP)
+            {
+                if (task == CHECKPOINT)
+                {
+                    takeCheckpoint();
+                    continue;
+                }
+                Fittest best;
+                synchronized (CONFIGURATION_LOCK)
+                {
+                    Genotype.setConfiguration(conf);
+                    population.evolve(1);
+                    best = new Fittest(population.getFittestChromosome(), generation + 1);
+                }
+                generation++;
+                fittest.set(best);
+                synchronized (this)
+                {
+                    if (running && listener != null)
+                        listener.run();
+                }
+            }
+        } catch(InvalidConfigurationException e) {
+            System.out.println("Error setting up particle system. " + e.toString());
+            e.printStackTrace();
+        } catch(RuntimeException e) {
+            System.out.println("Error evolving particle system. " + e.toString());
+            e.printStackTrace();
+        } finally {
+            synchronized (this)
+            {
+                running = false;
+            }
+        }
+    }
+
+
+    /**
+     * Waits until a generation or a checkpoint is asked for.
+     *
+     * @return STOP, EVOLVE or CHECKPOINT.
+     */
+    private synchronized int nextTask()
+    {
+        while (running && !continuous && pending == 0 && checkpointFile == null)
+        {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                return STOP;
+            }
+        }
+        if (checkpointFile != null)
+            return CHECKPOINT;
+        if (!running)
+            return STOP;
+        if (!continuous)
+            pending--;
+        return EVOLVE;
+    }
+
+
+    /**
+     * Takes the checkpoint asked for and hands it to the writer.
+     */
+    private void takeCheckpoint()
+    {
+        File file;
+        ParticleTargets targets;
+        synchronized (this)
+        {
+            file = checkpointFile;
+            targets = checkpointTargets;
+            checkpointFile = null;
+            checkpointTargets = null;
+        }
+        ParticleCheckpoint checkpoint;
+        synchronized (CONFIGURATION_LOCK)
+        {
+            Genotype.setConfiguration(conf);
+            checkpoint = ParticleCheckpoint.capture(conf, population, targets, generation);
+        }
+        checkpoint.writeLater(file);
+    }
+}
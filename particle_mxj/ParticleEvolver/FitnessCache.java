@@ -0,0 +1,278 @@
+package ga;
+
+import org.jgap.*;
+import org.jgap.impl.*;
+
+/**
+ * A bounded cache of fitness values, keyed by a 64 bit hash of a
+ * chromosome's alleles. Crossover and mutation leave many offspring with
+ * exactly the alleles of a chromosome scored before; their fitness is then
+ * looked up instead of computed again.
+ *
+ * When the cache is full the entry to replace is picked by the clock
+ * algorithm: every entry has a reference bit which is set whenever it is
+ * hit, and a hand sweeps the entries, clearing set bits, until it finds one
+ * that was not hit since its last sweep.
+ *
+ * Keys are hashes, so two different allele vectors with the same hash
+ * would share a value; with 64 bits this is not expected to happen.
+ * All methods may be called from several threads at once.
+ */
+public class FitnessCache
+{
+    // the keys, values and reference bits of the entries
+    private long[] keys;
+    private double[] values;
+    private boolean[] referenced;
+    private int size;
+    // the entry the clock hand points at
+    private int hand;
+    // open addressing index from key to entry number + 1, 0 when free
+    private int[] table;
+    private int mask;
+
+    // lookups which found a value, and lookups which did not
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param capacity The most values the cache holds.
+     */
+    public FitnessCache(int capacity)
+    {
+        capacity = Math.max(1, capacity);
+        keys = new long[capacity];
+        values = new double[capacity];
+        referenced = new boolean[capacity];
+        int tableSize = 1;
+        while (tableSize < capacity * 2)
+            tableSize <<= 1;
+        table = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+
+    /**
+     * Looks up a fitness value.
+     *
+     * @param key The hash of the chromosome and targets.
+     *
+     * @return The value, or -1 if it is not cached.
+     */
+    public synchronized double get(long key)
+    {
+        int entry = find(key);
+        if (entry < 0)
+        {
+            misses++;
+            return -1;
+        }
+        referenced[entry] = true;
+        hits++;
+        return values[entry];
+    }
+
+
+    /**
+     * Stores a fitness value, replacing the entry the clock picks if the
+     * cache is full.
+     *
+     * @param key The hash of the chromosome and targets.
+     * @param value The fitness value.
+     */
+    public synchronized void put(long key, double value)
+    {
+        int entry = find(key);
+        if (entry >= 0)
+        {
+            values[entry] = value;
+            return;
+        }
+        if (size < keys.length)
+        {
+            entry = size++;
+        } else {
+            while (referenced[hand])
+            {
+                referenced[hand] = false;
+                hand = (hand + 1) % keys.length;
+            }
+            entry = hand;
+            hand = (hand + 1) % keys.length;
+            unlink(keys[entry]);
+        }
+        keys[entry] = key;
+        values[entry] = value;
+        referenced[entry] = false;
+        int slot = home(key);
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = entry + 1;
+    }
+
+
+    /**
+     * Forgets every value, for when the targets change. The hit counts
+     * are kept.
+     */
+    public synchronized void clear()
+    {
+        java.util.Arrays.fill(table, 0);
+        size = 0;
+        hand = 0;
+    }
+
+
+    /**
+     * Returns the number of lookups which found a value.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+
+    /**
+     * Returns the number of lookups which did not find a value.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+
+    /**
+     * Returns the share of lookups which found a value, between 0 and 1.
+     */
+    public synchronized double getHitRate()
+    {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+
+    /**
+     * Returns the number of values held.
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * Finds the entry holding a key.
+     *
+     * @return The entry number, or -1.
+     */
+    private int find(long key)
+    {
+        int slot = home(key);
+        while (table[slot] != 0)
+        {
+            int entry = table[slot] - 1;
+            if (keys[entry] == key)
+                return entry;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Removes a key from the index, moving later keys of the same probe
+     * run back so that none of them becomes unreachable.
+     */
+    private void unlink(long key)
+    {
+        int free = home(key);
+        while (keys[table[free] - 1] != key)
+            free = (free + 1) & mask;
+        int slot = free;
+        while (true)
+        {
+            slot = (slot + 1) & mask;
+            if (table[slot] == 0)
+                break;
+            int wanted = home(keys[table[slot] - 1]);
+            // move the key back unless its home lies cyclically in
+            // (free, slot]
+            boolean between = free <= slot
+                ? free < wanted && wanted <= slot
+                : free < wanted || wanted <= slot;
+            if (!between)
+            {
+                table[free] = table[slot];
+                free = slot;
+            }
+        }
+        table[free] = 0;
+    }
+
+
+    /**
+     * Returns the first slot of the index a key is looked for in.
+     */
+    private int home(long key)
+    {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+
+    /**
+     * Hashes the alleles of a chromosome together with a seed, such as a
+     * hash of the targets it is scored against. Integer and double genes
+     * are hashed by value, composite genes gene by gene.
+     *
+     * @param chrom The chromosome to hash.
+     * @param seed The starting value of the hash.
+     *
+     * @return The 64 bit hash.
+     */
+    public static long hash(Chromosome chrom, long seed)
+    {
+        long h = seed;
+        for (int i = 0; i < chrom.size(); i++)
+            h = hash(chrom.getGene(i), h);
+        return mix(h);
+    }
+
+
+    /**
+     * Folds a gene's allele into a hash.
+     */
+    private static long hash(Gene gene, long h)
+    {
+        if (gene instanceof CompositeGene)
+        {
+            CompositeGene composite = (CompositeGene) gene;
+            for (int i = 0; i < composite.size(); i++)
+                h = hash(composite.geneAt(i), h);
+            return h;
+        }
+        long value;
+        if (gene instanceof IntegerGene)
+            value = ((IntegerGene) gene).intValue();
+        else if (gene instanceof DoubleGene)
+            value = Double.doubleToLongBits(((DoubleGene) gene).doubleValue());
+        else
+            value = gene.getAllele() == null ? 0 : gene.getAllele().hashCode();
+        return (h ^ value) * 0x9E3779B97F4A7C15L;
+    }
+
+
+    /**
+     * Spreads the bits of a hash (the final step of MurmurHash3).
+     */
+    static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
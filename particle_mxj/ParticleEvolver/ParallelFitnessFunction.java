@@ -0,0 +1,176 @@
+package ga;
+
+import org.jgap.*;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Evaluates a whole population at once with a plain fitness function,
+ * spread over a pool of worker threads. The population is cut into one
+ * contiguous block of chromosomes per worker; every worker writes its
+ * fitness values into its own part of a shared array, and the values are
+ * handed to the chromosomes in population order once all workers are done,
+ * so the outcome does not depend on which worker finishes first.
+ *
+ * Only chromosomes without a fitness value yet are evaluated, as with a
+ * plain fitness function: survivors of the last generation keep theirs,
+ * and new offspring are evaluated once.
+ *
+ * The fitness function must be safe to call from several threads at once.
+ * If it throws, no fitness value is handed out, and the first exception is
+ * rethrown once all workers are done, whichever worker it came from.
+ */
+public class ParallelFitnessFunction extends BulkFitnessFunction
+{
+    // worker threads, one per processor, shared by all evolvers
+    private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+    private static Executor workers;
+
+    // the fitness function evaluating each chromosome
+    private FitnessFunction function;
+
+    /**
+     * Constructs a bulk fitness function around a plain one.
+     *
+     * @param function The fitness function evaluating each chromosome.
+     */
+    public ParallelFitnessFunction(FitnessFunction function)
+    {
+        this.function = function;
+    }
+
+
+    /**
+     * Evaluates every chromosome of the population which has no fitness
+     * value yet.
+     *
+     * @param population The population to evaluate.
+     */
+    public void evaluate(Population population)
+    {
+        List all = population.getChromosomes();
+
+        // pick the chromosomes still to be evaluated, in population order
+        final Chromosome[] pending = new Chromosome[all.size()];
+        int count = 0;
+        for (int i = 0; i < all.size(); i++)
+        {
+            Chromosome chrom = (Chromosome) all.get(i);
+            if (chrom.getFitnessValue() < 0)
+                pending[count++] = chrom;
+        }
+        if (count == 0)
+            return;
+
+        final double[] values = new double[count];
+        int blocks = Math.min(WORKERS, count);
+        if (blocks == 1)
+        {
+            evaluate(pending, values, 0, count);
+        } else {
+            final CountDownLatch done = new CountDownLatch(blocks);
+            // the first exception thrown by a block
+            final Throwable[] failure = new Throwable[1];
+            Executor pool = getWorkers();
+            for (int b = 0; b < blocks; b++)
+            {
+                final int start = count * b / blocks;
+                final int end = count * (b + 1) / blocks;
+                pool.execute(new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            evaluate(pending, values, start, end);
+                        } catch(Throwable e) {
+                            synchronized (failure)
+                            {
+                                if (failure[0] == null)
+                                    failure[0] = e;
+                            }
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            awaitUninterruptibly(done);
+            rethrow(failure);
+        }
+
+        // hand out the values on this thread, in population order
+        for (int i = 0; i < count; i++)
+            pending[i].setFitnessValue(values[i]);
+    }
+
+
+    /**
+     * Evaluates a block of chromosomes.
+     */
+    private void evaluate(Chromosome[] chroms, double[] values, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+            values[i] = function.getFitnessValue(chroms[i]);
+    }
+
+
+    /**
+     * Waits for the workers, keeping the interrupt for the caller.
+     */
+    private static void awaitUninterruptibly(CountDownLatch done)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try {
+                done.await();
+                break;
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+
+    /**
+     * Rethrows the exception a block failed with, if any.
+     */
+    private static void rethrow(Throwable[] failure)
+    {
+        Throwable e;
+        synchronized (failure)
+        {
+            e = failure[0];
+        }
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        if (e != null)
+            throw new RuntimeException(e.toString());
+    }
+
+
+    /**
+     * Returns the shared worker pool, starting it on first use.
+     */
+    private static synchronized Executor getWorkers()
+    {
+        if (workers == null)
+        {
+            workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Fitness worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return workers;
+    }
+}
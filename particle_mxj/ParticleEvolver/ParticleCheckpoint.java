@@ -0,0 +1,471 @@
+package ga;
+
+import org.jgap.*;
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot of an evolving particle population: every chromosome's
+ * alleles and fitness value, the generation counter, the state of the
+ * random generator, the crossover points, the size of the selector's
+ * wheel and the targets, enough to carry on evolving exactly where the
+ * population left off.
+ *
+ * After breeding, JGAP 2.x may hold one chromosome several times in a
+ * population, and mutating it then changes every place it is held. A
+ * checkpoint keeps track of this, so the resumed population breeds the
+ * same way.
+ *
+ * Checkpoints are written in a compact binary format, big-endian as
+ * written by DataOutputStream:
+ *
+ *   int     magic "PEVC"
+ *   int     format version
+ *   int     generation
+ *   int     population size of the configuration
+ *   boolean whether the random state follows
+ *   long    random state (see ParticleRandom)
+ *   int     number of crossover loci (see ParticleCrossoverOperator)
+ *   int     crossover number and locus of each
+ *   int     largest wheel of the selector (see ParticleRouletteSelector)
+ *   int     genome size, ParticleGenome.SIZE
+ *   double  target of each parameter
+ *   int     number of chromosomes, which after breeding may be more than
+ *           the population size
+ *   for each chromosome, in population order:
+ *     int   the index of an earlier chromosome it is the same object as,
+ *           or -1 if it is not; only when -1 follow:
+ *     ...   each parameter, as an int if it comes from an IntegerGene and
+ *           as a double otherwise
+ *     double the fitness value (-1 if none)
+ *   long    CRC32 of everything before it
+ *
+ * A snapshot copies the population when it is taken, so it can be written
+ * while the population goes on evolving.
+ */
+public class ParticleCheckpoint
+{
+    private static final int MAGIC = 0x50455643;
+    public static final int VERSION = 1;
+
+    // writes checkpoints in the background, one at a time, in order
+    private static Executor writer;
+
+    // the alleles and fitness value of every chromosome, and the earlier
+    // chromosome each is the same object as (-1 if none, genome null if so)
+    private double[][] genomes;
+    private double[] fitness;
+    private int[] aliases;
+    private int generation;
+    private int populationSize;
+    // the random generator's state, when it is a ParticleRandom
+    private boolean hasRandomState;
+    private long randomState;
+    // the crossover loci, as pairs of crossover number and locus
+    private int[] loci = new int[0];
+    private int largestWheel;
+    private ParticleTargets targets;
+
+    /**
+     * Counts the bytes read through it, so that the counts in a checkpoint
+     * can be checked against what is left of the file before anything is
+     * allocated for them.
+     */
+    private static class CountingInputStream extends FilterInputStream
+    {
+        private long count;
+
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+    }
+
+    private ParticleCheckpoint()
+    {
+    }
+
+
+    /**
+     * Takes a snapshot of a population. It must not be evolving while the
+     * snapshot is taken.
+     *
+     * @param conf The configuration of the population.
+     * @param population The population.
+     * @param targets The targets the population evolves towards.
+     * @param generation The number of generations evolved so far.
+     *
+     * @return The snapshot.
+     */
+    public static ParticleCheckpoint capture(Configuration conf, Genotype population,
+        ParticleTargets targets, int generation)
+    {
+        ParticleCheckpoint checkpoint = new ParticleCheckpoint();
+        List chroms = population.getPopulation().getChromosomes();
+        checkpoint.genomes = new double[chroms.size()][];
+        checkpoint.fitness = new double[chroms.size()];
+        checkpoint.aliases = new int[chroms.size()];
+        IdentityHashMap seen = new IdentityHashMap();
+        for (int i = 0; i < chroms.size(); i++)
+        {
+            Chromosome chrom = (Chromosome) chroms.get(i);
+            Integer first = (Integer) seen.get(chrom);
+            if (first != null)
+            {
+                checkpoint.aliases[i] = first.intValue();
+                continue;
+            }
+            seen.put(chrom, new Integer(i));
+            checkpoint.aliases[i] = -1;
+            checkpoint.genomes[i] = new double[ParticleGenome.SIZE];
+            ParticleGenome.read(chrom, checkpoint.genomes[i]);
+            checkpoint.fitness[i] = chrom.getFitnessValue();
+        }
+        checkpoint.generation = generation;
+        checkpoint.populationSize = conf.getPopulationSize();
+        if (conf.getRandomGenerator() instanceof ParticleRandom)
+        {
+            checkpoint.hasRandomState = true;
+            checkpoint.randomState = ((ParticleRandom) conf.getRandomGenerator()).getState();
+        }
+        ParticleCrossoverOperator crossover = getCrossover(conf);
+        if (crossover != null)
+            checkpoint.loci = crossover.getLoci();
+        ParticleRouletteSelector selector = getSelector(conf);
+        if (selector != null)
+            checkpoint.largestWheel = selector.getLargestWheel();
+        checkpoint.targets = targets;
+        return checkpoint;
+    }
+
+
+    /**
+     * Rebuilds the population, restoring the random generator's state, the
+     * crossover loci and the selector's wheel.
+     *
+     * @param conf A configuration set up like the one of the population,
+     *             with the sample chromosome but not yet locked. Its
+     *             population size is set to the snapshot's.
+     *
+     * @return The population.
+     */
+    public Genotype restore(Configuration conf) throws InvalidConfigurationException
+    {
+        conf.setPopulationSize(populationSize);
+        // chromosomes can only be cloned under an active configuration
+        Genotype.setConfiguration(conf);
+        Chromosome sample = conf.getSampleChromosome();
+        Chromosome[] chroms = new Chromosome[genomes.length];
+        for (int i = 0; i < genomes.length; i++)
+        {
+            if (aliases[i] >= 0)
+            {
+                chroms[i] = chroms[aliases[i]];
+                continue;
+            }
+            chroms[i] = (Chromosome) sample.clone();
+            ParticleGenome.write(genomes[i], chroms[i]);
+            chroms[i].setFitnessValue(fitness[i]);
+        }
+        Genotype population = new Genotype(conf, chroms);
+        if (hasRandomState && conf.getRandomGenerator() instanceof ParticleRandom)
+            ((ParticleRandom) conf.getRandomGenerator()).setState(randomState);
+        ParticleCrossoverOperator crossover = getCrossover(conf);
+        if (crossover != null)
+            crossover.setLoci(loci);
+        ParticleRouletteSelector selector = getSelector(conf);
+        if (selector != null)
+            selector.setLargestWheel(largestWheel);
+        return population;
+    }
+
+
+    public int getGeneration()
+    {
+        return generation;
+    }
+
+
+    public int getPopulationSize()
+    {
+        return populationSize;
+    }
+
+
+    public ParticleTargets getTargets()
+    {
+        return targets;
+    }
+
+
+    /**
+     * Writes the checkpoint. It goes to a temporary file first, which is
+     * then renamed over the file in one atomic step, so an interrupted
+     * write leaves the last checkpoint intact. On a file system that cannot
+     * rename atomically the file is replaced in an ordinary move instead.
+     * A crash during that move may leave the file missing, with the new
+     * checkpoint still in the temporary file.
+     *
+     * @param file The file to write.
+     */
+    public void write(File file) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp)), crc));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(generation);
+            out.writeInt(populationSize);
+            out.writeBoolean(hasRandomState);
+            out.writeLong(randomState);
+            out.writeInt(loci.length / 2);
+            for (int i = 0; i < loci.length; i++)
+                out.writeInt(loci[i]);
+            out.writeInt(largestWheel);
+            out.writeInt(ParticleGenome.SIZE);
+            for (int i = 0; i < ParticleGenome.SIZE; i++)
+                out.writeDouble(targets.getValue(i));
+            out.writeInt(genomes.length);
+            for (int c = 0; c < genomes.length; c++)
+            {
+                out.writeInt(aliases[c]);
+                if (aliases[c] >= 0)
+                    continue;
+                double[] genome = genomes[c];
+                for (int i = 0; i < ParticleGenome.SIZE; i++)
+                {
+                    if (ParticleGenome.isInteger(i))
+                        out.writeInt((int) genome[i]);
+                    else
+                        out.writeDouble(genome[i]);
+                }
+                out.writeDouble(fitness[c]);
+            }
+            out.flush();
+            out.writeLong(crc.getValue());
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /**
+     * Writes the checkpoint in the background, reporting errors on the
+     * console.
+     *
+     * @param file The file to write.
+     */
+    public void writeLater(final File file)
+    {
+        getWriter().execute(new Runnable() {
+            public void run()
+            {
+                try {
+                    write(file);
+                } catch(IOException e) {
+                    System.out.println("Error writing checkpoint " + file + ". " + e.toString());
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Reads a checkpoint.
+     *
+     * @param file The file to read.
+     *
+     * @return The checkpoint.
+     */
+    public static ParticleCheckpoint read(File file) throws IOException
+    {
+        long length = file.length();
+        CRC32 crc = new CRC32();
+        CountingInputStream counter = new CountingInputStream(new CheckedInputStream(
+            new BufferedInputStream(new FileInputStream(file)), crc));
+        DataInputStream in = new DataInputStream(counter);
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a particle checkpoint");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException(file + " has checkpoint version " + version
+                    + ", expected " + VERSION);
+
+            ParticleCheckpoint checkpoint = new ParticleCheckpoint();
+            checkpoint.generation = in.readInt();
+            checkpoint.populationSize = in.readInt();
+            if (checkpoint.populationSize <= 0)
+                throw new IOException(file + " is corrupt");
+            checkpoint.hasRandomState = in.readBoolean();
+            checkpoint.randomState = in.readLong();
+            // a crossover takes up its number and locus
+            int crossovers = checkCount(file, in.readInt(), 8, length - counter.getCount());
+            checkpoint.loci = new int[crossovers * 2];
+            for (int i = 0; i < checkpoint.loci.length; i++)
+                checkpoint.loci[i] = in.readInt();
+            checkpoint.largestWheel = in.readInt();
+            if (checkpoint.largestWheel < 0)
+                throw new IOException(file + " is corrupt");
+            int size = in.readInt();
+            if (size != ParticleGenome.SIZE)
+                throw new IOException(file + " has genomes of " + size
+                    + " parameters, expected " + ParticleGenome.SIZE);
+            double[] targets = new double[size];
+            for (int i = 0; i < size; i++)
+                targets[i] = in.readDouble();
+            checkpoint.targets = new ParticleTargets(targets);
+
+            // a chromosome takes up at least its alias
+            int count = checkCount(file, in.readInt(), 4, length - counter.getCount());
+            checkpoint.genomes = new double[count][];
+            checkpoint.fitness = new double[count];
+            checkpoint.aliases = new int[count];
+            for (int c = 0; c < count; c++)
+            {
+                int alias = in.readInt();
+                if (alias < -1 || alias >= c || (alias >= 0 && checkpoint.aliases[alias] >= 0))
+                    throw new IOException(file + " is corrupt");
+                checkpoint.aliases[c] = alias;
+                if (alias >= 0)
+                    continue;
+                double[] genome = checkpoint.genomes[c] = new double[size];
+                for (int i = 0; i < size; i++)
+                {
+                    if (ParticleGenome.isInteger(i))
+                        genome[i] = in.readInt();
+                    else
+                        genome[i] = in.readDouble();
+                }
+                checkpoint.fitness[c] = in.readDouble();
+            }
+
+            long expected = crc.getValue();
+            if (in.readLong() != expected)
+                throw new IOException(file + " is corrupt");
+            return checkpoint;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Checks a count read from a checkpoint against what is left of the
+     * file after it, less the CRC at the end.
+     *
+     * @param count The count.
+     * @param entrySize The fewest bytes each counted entry takes up.
+     * @param remaining The bytes of the file not read yet.
+     *
+     * @return The count.
+     */
+    private static int checkCount(File file, int count, long entrySize, long remaining)
+        throws IOException
+    {
+        if (count < 0 || count * entrySize > remaining - 8)
+            throw new IOException(file + " is corrupt");
+        return count;
+    }
+
+
+    /**
+     * Finds the crossover operator of a configuration.
+     *
+     * @return The operator, or null if it has none whose loci can be saved.
+     */
+    private static ParticleCrossoverOperator getCrossover(Configuration conf)
+    {
+        List operators = conf.getGeneticOperators();
+        for (int i = 0; i < operators.size(); i++)
+        {
+            if (operators.get(i) instanceof ParticleCrossoverOperator)
+                return (ParticleCrossoverOperator) operators.get(i);
+        }
+        return null;
+    }
+
+
+    /**
+     * Finds the natural selector of a configuration.
+     *
+     * @return The selector, or null if it has none whose wheel can be saved.
+     */
+    private static ParticleRouletteSelector getSelector(Configuration conf)
+    {
+        for (int i = 0; i < conf.getNaturalSelectorsSize(true); i++)
+        {
+            if (conf.getNaturalSelector(true, i) instanceof ParticleRouletteSelector)
+                return (ParticleRouletteSelector) conf.getNaturalSelector(true, i);
+        }
+        return null;
+    }
+
+
+    /**
+     * Returns the shared writer thread, starting it on first use.
+     */
+    private static synchronized Executor getWriter()
+    {
+        if (writer == null)
+        {
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Checkpoint writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return writer;
+    }
+}
@@ -32,15 +32,15 @@ public class ParticleConfig extends Configuration {
     super();
     try {
         // Weighted Roulette Wheel
-      WeightedRouletteSelector weightedRoulette = new WeightedRouletteSelector();
+      WeightedRouletteSelector weightedRoulette = new ParticleRouletteSelector();
       weightedRoulette.setDoubletteChromosomesAllowed(false);
       addNaturalSelector(weightedRoulette, true);
-      setRandomGenerator(new StockRandomGenerator());
+      setRandomGenerator(new ParticleRandom());
       setMinimumPopSizePercent(0);
       setEventManager(new EventManager());
       setFitnessEvaluator(new DefaultFitnessEvaluator());
       setChromosomePool(new ChromosomePool());
-      addGeneticOperator(new AveragingCrossoverOperator());
+      addGeneticOperator(new ParticleCrossoverOperator());
       addGeneticOperator(new MutationOperator(10));
     }
     catch (InvalidConfigurationException e) {
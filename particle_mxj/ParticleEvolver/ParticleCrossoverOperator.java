@@ -0,0 +1,77 @@
+package ga;
+
+import org.jgap.*;
+import org.jgap.impl.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * JGAP's averaging crossover, with its crossover points open to
+ * checkpoints. AveragingCrossoverOperator picks the locus of each
+ * crossover at random the first time it is needed and keeps it for good,
+ * so the loci are part of a population's state just like its random
+ * generator. This operator draws and keeps them exactly the same way, but
+ * where they can be saved and restored.
+ */
+public class ParticleCrossoverOperator extends AveragingCrossoverOperator
+{
+    // locus of each crossover, by crossover number
+    private Map loci = new HashMap();
+
+    public ParticleCrossoverOperator()
+    {
+        super();
+    }
+
+
+    protected int getLocus(RandomGenerator generator, int index, int max)
+    {
+        synchronized (loci)
+        {
+            Integer key = new Integer(index);
+            Integer locus = (Integer) loci.get(key);
+            if (locus == null)
+            {
+                locus = new Integer(generator.nextInt(max));
+                loci.put(key, locus);
+            }
+            return locus.intValue();
+        }
+    }
+
+
+    /**
+     * Returns the loci picked so far, as pairs of crossover number and
+     * locus.
+     */
+    public int[] getLoci()
+    {
+        synchronized (loci)
+        {
+            int[] pairs = new int[loci.size() * 2];
+            int i = 0;
+            for (Iterator it = loci.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+                pairs[i++] = ((Integer) entry.getKey()).intValue();
+                pairs[i++] = ((Integer) entry.getValue()).intValue();
+            }
+            return pairs;
+        }
+    }
+
+
+    /**
+     * Replaces the loci with ones returned by getLoci.
+     */
+    public void setLoci(int[] pairs)
+    {
+        synchronized (loci)
+        {
+            loci.clear();
+            for (int i = 0; i + 1 < pairs.length; i += 2)
+                loci.put(new Integer(pairs[i]), new Integer(pairs[i + 1]));
+        }
+    }
+}
@@ -6,9 +6,9 @@ package ga;
 //import java.io.*;
 import org.jgap.*;
 import org.jgap.impl.*;
-import java.util.HashMap;
-import java.util.ArrayList;
 import com.cycling74.max.*;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * This class provides an implementation of a Particle system evolver
@@ -18,18 +18,37 @@ import com.cycling74.max.*;
 public class ParticleEvolver extends MaxObject
 {
     // targets
-    private HashMap targets;    
+    private ParticleTargets targets;    
     
-    private Genotype population;            // population
+    private volatile EvolutionWorker worker; // evolves the population
+    private boolean continuous;             // evolve without being asked
     private Configuration conf;             // configuration
     private FitnessFunction myFunc;         // fitness function
     private Gene[] particleGenes;           // genes
     private Chromosome particleChromosome;  // chromosome
     private int popSize = 10;                   // population size
     
-    // The total number of times we'll let the population evolve.
+    // The number of generations between outputs for everyone else.
     private static final int MAX_ALLOWED_EVOLUTIONS = 10;
-    private int evoCount;
+    // the last generation sent out, for director and for everyone else
+    private int sentGeneration;
+    private int broadcastGeneration;
+
+    // fitness values of chromosomes scored against the current targets
+    private static final int FITNESS_CACHE_SIZE = 4096;
+    // a new cache is made for new targets, as the worker of the old ones
+    // may still be scoring against them
+    private FitnessCache fitnessCache = new FitnessCache(FITNESS_CACHE_SIZE);
+
+    // sends out the fittest on the main thread once a generation is done
+    private MaxQelem publisher = new MaxQelem(this, "publish");
+
+    // the fittest's alleles as sent out, and the fittest they were read from
+    private Atom[] fittestAtoms = new Atom[ParticleGenome.SIZE];
+    private EvolutionWorker.Fittest decoded;
+    // int atoms by value, made when first sent; no integer allele is
+    // larger than the longest life
+    private static final Atom[] intAtoms = new Atom[5001];
 
     // contructor required for MXJ
     public ParticleEvolver(Atom[] args)
@@ -41,7 +60,7 @@ public class ParticleEvolver extends MaxObject
         setInletAssist(0, "(list) list of targets");
         setOutletAssist(0, "(list) list of alleles of current chromosome, after every evolution");
         setOutletAssist(1, "(list) list of alleles of current chromosome, every 10 evolutions");
-        setOutletAssist(2, "bang when done");
+        setOutletAssist(2, "bang when a generation is done");
         
         configure();
     }
@@ -144,8 +163,12 @@ public class ParticleEvolver extends MaxObject
 
     /**
      * Sets up genes and chromosomes for a particle system
+     *
+     * @param resume A checkpoint to carry on from, or null for a new
+     *               population.
      */
-    private void setupParticleSystem(HashMap targets) throws Exception
+    private void setupParticleSystem(ParticleTargets targets, ParticleCheckpoint resume)
+        throws Exception
     {
         // Start with a DefaultConfiguration, which comes setup with the
         // most common settings.
@@ -156,13 +179,17 @@ public class ParticleEvolver extends MaxObject
         conf.setPreservFittestIndividual(true);
 
         // Set the fitness function we want to use, which is our
-        // ParticleEvolverFitnessFunction. We construct it with the HashMap
-        // of targets passed into this method.
+        // ParticleEvolverFitnessFunction. We construct it with the compiled
+        // targets passed into this method. It is handed to JGAP as a
+        // bulk fitness function, which evaluates each generation's new
+        // chromosomes on all processors at once, looking up chromosomes
+        // scored before in the fitness cache.
         // ---------------------------------------------------------
 
         myFunc = new ParticleEvolverFitnessFunction(targets);
 
-        conf.setFitnessFunction(myFunc);
+        conf.setBulkFitnessFunction(new ParallelFitnessFunction(
+            new CachedFitnessFunction(myFunc, targets, fitnessCache)));
 
         // Now we need to tell the Configuration object how we want our
         // Chromosomes to be setup. We do that by actually creating a
@@ -184,21 +211,14 @@ public class ParticleEvolver extends MaxObject
 
         conf.setPopulationSize(popSize);
 
-        // Create random initial population of Chromosomes.
-        // ------------------------------------------------
-
-        population = Genotype.randomInitialGenotype(conf);
-        
-/*
-        try {
-        Document doc = XMLManager.readFile(new File("SCD_JGAP.xml"));
-        population = XMLManager.getGenotypeFromDocument(conf, doc);
-        }
+        // The worker creates a random initial population of Chromosomes,
+        // or carries on with a checkpointed one, which keeps its size. It
+        // does so on its own thread, as both have to wait for the workers
+        // of other evolvers to finish breeding with JGAP's active
+        // configuration.
+        // ----------------------------------------------------------------
 
-        catch (FileNotFoundException fex) {
-        population = Genotype.randomInitialGenotype(conf);
-        }
-*/
+        int generation = resume != null ? resume.getGeneration() : 0;
 
         // Evolve the population. Since we don't know what the best answer
         // is going to be, we just evolve the max number of times.
@@ -213,25 +233,23 @@ public class ParticleEvolver extends MaxObject
             outputFittest(population, 0);
         }
         */
-        evoCount = 0;
-        population.evolve(1);
-        evoCount++;
-        // for director
-        outputFittest(population, 0);
-
-        // Save progress to file. A new run of this example will then be able to
-        // resume where it stopped before!
-
-        // represent Genotype as tree with elements Chromomes and Genes
-        /*
-        DataTreeBuilder builder = DataTreeBuilder.getInstance();
-        IDataCreators doc2 = builder.representGenotypeAsDocument(population);
+        // The worker evaluates the initial population and evolves it on
+        // its own thread, sending out the fittest after every generation.
+        // -----------------------------------------------------------------
+        sentGeneration = generation;
+        broadcastGeneration = generation;
+        worker = new EvolutionWorker(conf, resume, new Runnable() {
+            public void run()
+            {
+                publisher.set();
+            }
+        });
+        worker.setContinuous(continuous);
+        worker.start();
+        worker.evolve(1);
 
-        // create XML document from generated tree
-        XMLDocumentBuilder docbuilder = new XMLDocumentBuilder();
-        Document xmlDoc = (Document) docbuilder.buildDocument(doc2);
-        XMLManager.writeFile(xmlDoc, new File("particle_JGAP.xml"));
-        */
+        // Progress is saved to file with the checkpoint message. A new run
+        // will then be able to resume where it stopped before!
         // Display the best solution we found.
         // -----------------------------------
         //Chromosome bestSolutionSoFar = population.getFittestChromosome();
@@ -247,7 +265,7 @@ public class ParticleEvolver extends MaxObject
     public void list(Atom[] atomArray)
     {
         String[] atoms;
-        // convert a Max message containing the targets to a HashMap
+        // convert a Max message containing the targets to Strings
         atoms = Atom.toString(atomArray);
         
         /*
@@ -255,11 +273,15 @@ public class ParticleEvolver extends MaxObject
             System.out.println(atoms[i]);
         */
             
-        // put the targets String array into a HashMap
+        // compile the targets String array
         targets = setupTargets(atoms);
+        // the old population stops evolving in the background
+        stopWorker();
+        // values scored against the old targets are no use any more
+        fitnessCache = new FitnessCache(FITNESS_CACHE_SIZE);
                
         try {
-            setupParticleSystem(targets);
+            setupParticleSystem(targets, null);
         } catch(Exception e) {
             System.out.println("Error setting up particle system. " + e.toString());
             e.printStackTrace();
@@ -267,73 +289,12 @@ public class ParticleEvolver extends MaxObject
     }
 
 
-    private HashMap setupTargets(String[] targetsArray)
+    private ParticleTargets setupTargets(String[] targetsArray)
     {
-        HashMap targs = new HashMap(targetsArray.length);
-        
-        // --- life, speed, drag, pathStrength ---
-        targs.put("life", new Integer(Integer.parseInt(targetsArray[0])));
-        targs.put("speed", new Double(Double.parseDouble(targetsArray[1])));
-        targs.put("drag", new Integer(Integer.parseInt(targetsArray[2])));
-        targs.put("pathStrength", new Double(Double.parseDouble(targetsArray[3])));
-    
-        // -- gravity ---
-        ArrayList gravityList = new ArrayList(3);
-        gravityList.add(new Double(Double.parseDouble(targetsArray[4])));
-        gravityList.add(new Double(Double.parseDouble(targetsArray[5])));
-        gravityList.add(new Double(Double.parseDouble(targetsArray[6])));
-        targs.put("gravity",gravityList);
-
-        // --- path ---
-        ArrayList pathList = new ArrayList(9);
-        pathList.add(new Double(Double.parseDouble(targetsArray[7])));
-        pathList.add(new Double(Double.parseDouble(targetsArray[8])));
-        pathList.add(new Double(Double.parseDouble(targetsArray[9])));
-        pathList.add(new Double(Double.parseDouble(targetsArray[10])));
-        pathList.add(new Double(Double.parseDouble(targetsArray[11])));
-        pathList.add(new Double(Double.parseDouble(targetsArray[12])));
-        pathList.add(new Double(Double.parseDouble(targetsArray[13])));
-        pathList.add(new Double(Double.parseDouble(targetsArray[14])));
-        pathList.add(new Double(Double.parseDouble(targetsArray[15])));
-        targs.put("path", pathList);
-        
-        // --- direction ---
-        ArrayList dirList = new ArrayList(3);
-        dirList.add(new Double(Double.parseDouble(targetsArray[16])));
-        dirList.add(new Double(Double.parseDouble(targetsArray[17])));
-        dirList.add(new Double(Double.parseDouble(targetsArray[18])));
-        targs.put("direction", dirList);
-        
-        // --- size range ---
-        ArrayList sizeRangeList = new ArrayList(2);
-        sizeRangeList.add(new Double(Double.parseDouble(targetsArray[19])));
-        sizeRangeList.add(new Double(Double.parseDouble(targetsArray[20])));
-        targs.put("sizeRange", sizeRangeList);
-        
-        // --- color range ---
-        ArrayList colorRangeList = new ArrayList(6);
-        colorRangeList.add(new Integer(Integer.parseInt(targetsArray[21])));
-        colorRangeList.add(new Integer(Integer.parseInt(targetsArray[22])));
-        colorRangeList.add(new Integer(Integer.parseInt(targetsArray[23])));
-        colorRangeList.add(new Integer(Integer.parseInt(targetsArray[24])));
-        colorRangeList.add(new Integer(Integer.parseInt(targetsArray[25])));
-        colorRangeList.add(new Integer(Integer.parseInt(targetsArray[26])));
-        targs.put("colorRange", colorRangeList);
-        
-        // --- blend range ---
-        ArrayList blendRangeList = new ArrayList(2);
-        blendRangeList.add(new Integer(Integer.parseInt(targetsArray[27])));
-        blendRangeList.add(new Integer(Integer.parseInt(targetsArray[28])));
-        targs.put("blendRange", blendRangeList);
-        
-        // angle
-        targs.put("angle", new Double(Double.parseDouble(targetsArray[29])));
-        
-        // number of particles
-        targs.put("numP", new Integer(Integer.parseInt(targetsArray[30])));
-        
-        
-        return targs;
+        // life, speed, drag, pathStrength, gravity, path, direction,
+        // size range, color range, blend range, angle and number of
+        // particles, in the order outputFittest sends them out
+        return ParticleTargets.parse(targetsArray);
     }
 
 
@@ -341,134 +302,188 @@ public class ParticleEvolver extends MaxObject
      * Outputs the values of the fittes chromosome
      *
      */
-    private void outputFittest(Genotype pop, int whichOut)
+    private void outputFittest(EvolutionWorker.Fittest best, int whichOut)
     {
-        // Display the best solution we found.
-        // -----------------------------------
-        Chromosome bestChrom = pop.getFittestChromosome();
-        Gene[] bestGenes = bestChrom.getGenes();
-        
-        /*
-        * gene values (alleles)
-        */
-        int life = ((IntegerGene) bestGenes[0]).intValue();              // life
-        double speed = ((DoubleGene) bestGenes[1]).doubleValue();        // speed
-        int drag = ((IntegerGene) bestGenes[2]).intValue();              // drag
-        double pathStrength = ((DoubleGene) bestGenes[3]).doubleValue(); // pathStrength
-        
-        // --- composite genes --- //
-        CompositeGene cgGrav = (CompositeGene) bestGenes[4]; // // // // //
-        DoubleGene dgx = (DoubleGene) cgGrav.geneAt(0);      // // // // //
-        double gravityX = dgx.doubleValue();                 // // // // //
-        DoubleGene dgy = (DoubleGene) cgGrav.geneAt(1);      // gravity  //
-        double gravityY = dgy.doubleValue();                 // // // // //
-        DoubleGene dgz = (DoubleGene) cgGrav.geneAt(2);      // // // // //
-        double gravityZ = dgz.doubleValue();                 // // // // //
-        double[] gravity = {gravityX, gravityY, gravityZ};
-		
-        CompositeGene cgPath = (CompositeGene) bestGenes[5]; // // // // //
-        DoubleGene dgpax = (DoubleGene) cgPath.geneAt(0);    // // // // //
-        double pathAX = dgpax.doubleValue();                 // // // // //
-        DoubleGene dgpay = (DoubleGene) cgPath.geneAt(1);    // // // // //
-        double pathAY = dgpay.doubleValue();                 // // // // //
-        DoubleGene dgpaz = (DoubleGene) cgPath.geneAt(2);    // // // // //
-        double pathAZ = dgpaz.doubleValue();                 // // // // //
-        DoubleGene dgpbx = (DoubleGene) cgPath.geneAt(3);    // // // // //
-        double pathBX = dgpbx.doubleValue();                 // // // // //
-        DoubleGene dgpby = (DoubleGene) cgPath.geneAt(4);    //   path	 //
-        double pathBY = dgpby.doubleValue();                 // // // // //
-        DoubleGene dgpbz = (DoubleGene) cgPath.geneAt(5);    // // // // //
-        double pathBZ = dgpbz.doubleValue();                 // // // // //
-        DoubleGene dgpcx = (DoubleGene) cgPath.geneAt(6);    // // // // //
-        double pathCX = dgpcx.doubleValue();                 // // // // //
-        DoubleGene dgpcy = (DoubleGene) cgPath.geneAt(7);    // // // // //
-        double pathCY = dgpcy.doubleValue();                 // // // // //
-        DoubleGene dgpcz = (DoubleGene) cgPath.geneAt(8);    // // // // //
-        double pathCZ = dgpcz.doubleValue();                 // // // // //
-        double[] pathA = {pathAX, pathAY, pathAZ};
-        double[] pathB = {pathBX, pathBY, pathBZ};
-        double[] pathC = {pathCX, pathCY, pathCZ};
-        
-        CompositeGene cgDir = (CompositeGene) bestGenes[6]; // // // // //
-        DoubleGene dgdx = (DoubleGene) cgDir.geneAt(0);     // // // // //
-        double dirX = dgdx.doubleValue();                   // // // // //
-        DoubleGene dgdy = (DoubleGene) cgDir.geneAt(1);     // direction //
-        double dirY = dgdy.doubleValue();                   // // // // //
-        DoubleGene dgdz = (DoubleGene) cgDir.geneAt(2);     // // // // //
-        double dirZ = dgdz.doubleValue();                   // // // // //
-        double[] direction = {dirX, dirY, dirZ};
-        
-        CompositeGene cgSize = (CompositeGene) bestGenes[7]; // // // // //
-        DoubleGene dgsb = (DoubleGene) cgSize.geneAt(0);     // // // // //
-        double sizeBegin = dgsb.doubleValue();               // sizeRange //
-        DoubleGene dgse = (DoubleGene) cgSize.geneAt(1);     // // // // //
-        double sizeEnd = dgse.doubleValue();                 // // // // //
-        double[] sizeRange = {sizeBegin, sizeEnd};
-        
-        CompositeGene cgColor = (CompositeGene) bestGenes[8]; // // // // // //
-        IntegerGene igrb = (IntegerGene) cgColor.geneAt(0);   // // // // // //
-        int redBegin = igrb.intValue();                       // // // // // //
-        IntegerGene iggb = (IntegerGene) cgColor.geneAt(1);   // // // // // //
-        int greenBegin = iggb.intValue();                     // // // // // //
-        IntegerGene igbb = (IntegerGene) cgColor.geneAt(2);   // // // // // //
-        int blueBegin = igbb.intValue();                      // colorRange  //
-        IntegerGene igre = (IntegerGene) cgColor.geneAt(3);   // // // // // //
-        int redEnd = igre.intValue();                         // // // // // //
-        IntegerGene igge = (IntegerGene) cgColor.geneAt(4);   // // // // // //
-        int greenEnd = igge.intValue();                       // // // // // //
-        IntegerGene igbe = (IntegerGene) cgColor.geneAt(5);   // // // // // //
-        int blueEnd = igbe.intValue();                        // // // // // //
-        int[] colorRangeBegin = {redBegin, greenBegin, blueBegin};
-        int[] colorRangeEnd = {redEnd, greenEnd, blueEnd};
-
-        CompositeGene cgBlend = (CompositeGene) bestGenes[9]; // // // // // //
-        IntegerGene dgbb = (IntegerGene) cgBlend.geneAt(0);     // // // // // //
-        int blendBegin = dgbb.intValue();               //  blendRange  //
-        IntegerGene dgbe = (IntegerGene) cgBlend.geneAt(1);      // // // // // //
-        int blendEnd = dgbe.intValue();                 // // // // // //
-        int[] blendRange = {blendBegin, blendEnd};
-  
-        double angle = ((DoubleGene) bestGenes[10]).doubleValue(); // angle
-        int numP = ((IntegerGene) bestGenes[11]).intValue();       // number of particles
-        
         // send it out!
-        outlet(whichOut, new Atom[]{ Atom.newAtom(life), Atom.newAtom(speed), Atom.newAtom(drag),
-                Atom.newAtom(pathStrength), Atom.newAtom(gravity[0]), Atom.newAtom(gravity[1]), 
-                Atom.newAtom(gravity[2]), Atom.newAtom(pathA[0]), Atom.newAtom(pathA[1]), Atom.newAtom(pathA[2]), 
-                Atom.newAtom(pathB[0]), Atom.newAtom(pathB[1]), Atom.newAtom(pathB[2]), Atom.newAtom(pathC[0]),
-                Atom.newAtom(pathC[1]), Atom.newAtom(pathC[2]), Atom.newAtom(direction[0]), Atom.newAtom(direction[1]), 
-                Atom.newAtom(direction[2]), Atom.newAtom(sizeRange[0]), Atom.newAtom(sizeRange[1]), 
-                Atom.newAtom(colorRangeBegin[0]), Atom.newAtom(colorRangeBegin[1]), Atom.newAtom(colorRangeBegin[2]),
-                Atom.newAtom(colorRangeEnd[0]), Atom.newAtom(colorRangeEnd[1]), Atom.newAtom(colorRangeEnd[2]), 
-                Atom.newAtom(blendRange[0]), Atom.newAtom(blendRange[1]), Atom.newAtom(angle), Atom.newAtom(numP) });
+        decodeFittest(best);
+        outlet(whichOut, fittestAtoms);
     }
 
 
     /**
+     * Reads the alleles of the fittest into the atoms sent out. Atoms can't
+     * be changed, so whole numbers are shared ints and a float is only
+     * made when its value has changed since the last fittest; once the
+     * population settles on a fittest nothing is allocated.
      */
-    public void evolveAgain()
+    private void decodeFittest(EvolutionWorker.Fittest best)
     {
-        if(population != null)
+        if (best == decoded)
+            return;
+        decoded = best;
+        for (int i = 0; i < ParticleGenome.SIZE; i++)
         {
-            population.evolve(1);
-            // for director
-            outputFittest(population, 0);
-            evoCount++;
-            
-            if (evoCount >= MAX_ALLOWED_EVOLUTIONS)
+            double value = best.get(i);
+            if (ParticleGenome.isInteger(i))
             {
-                evoCount = 0;
-                // for everyone else
-                outputFittest(population, 1);
+                fittestAtoms[i] = intAtom((int) value);
+            } else {
+                Atom atom = fittestAtoms[i];
+                if (atom == null || atom.getFloat() != (float) value)
+                    fittestAtoms[i] = Atom.newAtom(value);
             }
-            
-            // bang when done
-            outletBang(2);
-            
+        }
+    }
+
+
+    /**
+     * Returns the int atom for a value.
+     */
+    private static Atom intAtom(int value)
+    {
+        if (value < 0 || value >= intAtoms.length)
+            return Atom.newAtom(value);
+        if (intAtoms[value] == null)
+            intAtoms[value] = Atom.newAtom(value);
+        return intAtoms[value];
+    }
+
+
+    /**
+     * Sends out the fittest of the last generation the worker finished.
+     * Called on the main thread by the publisher; generations finished
+     * since the last call are sent out as one.
+     */
+    public void publish()
+    {
+        EvolutionWorker current = worker;
+        if (current == null)
+            return;
+        EvolutionWorker.Fittest best = current.getFittest();
+        if (best == null || best.getGeneration() == sentGeneration)
+            return;
+        sentGeneration = best.getGeneration();
+
+        // for director
+        outputFittest(best, 0);
+
+        if (sentGeneration - broadcastGeneration >= MAX_ALLOWED_EVOLUTIONS)
+        {
+            broadcastGeneration = sentGeneration;
+            // for everyone else
+            outputFittest(best, 1);
+        }
+
+        // bang when done
+        outletBang(2);
+    }
+
+
+    /**
+     * Asks the worker for one more generation. Returns at once; the
+     * fittest is sent out when the generation is done.
+     */
+    public void evolveAgain()
+    {
+        if(worker != null)
+        {
+            worker.evolve(1);
         } else {
             post("*** Error!  You must first initialize a population! ***");
         }
-        
+    }
+
+
+    /**
+     * Turns continuous evolution on (1) or off (0). The setting is kept
+     * for populations set up later.
+     */
+    public void continuous(int on)
+    {
+        continuous = on != 0;
+        EvolutionWorker current = worker;
+        if (current != null)
+            current.setContinuous(continuous);
+    }
+
+
+    /**
+     * Saves the population to a checkpoint file after the generation being
+     * evolved. The file is written in the background.
+     *
+     * @param path The file to write.
+     */
+    public void checkpoint(String path)
+    {
+        EvolutionWorker current = worker;
+        if (current != null)
+        {
+            current.checkpoint(new File(nativePath(path)), targets);
+        } else {
+            post("*** Error!  You must first initialize a population! ***");
+        }
+    }
+
+
+    /**
+     * Carries on evolving a population saved with checkpoint, with the
+     * targets it was saved with.
+     *
+     * @param path The file to read.
+     */
+    public void resume(String path)
+    {
+        ParticleCheckpoint checkpoint;
+        try {
+            checkpoint = ParticleCheckpoint.read(new File(nativePath(path)));
+        } catch(IOException e) {
+            post("*** Error!  Could not read checkpoint " + path + ": " + e.getMessage() + " ***");
+            return;
+        }
+
+        targets = checkpoint.getTargets();
+        stopWorker();
+        fitnessCache = new FitnessCache(FITNESS_CACHE_SIZE);
+
+        try {
+            setupParticleSystem(targets, checkpoint);
+        } catch(Exception e) {
+            System.out.println("Error resuming particle system. " + e.toString());
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Converts a Max path to a native one, leaving native paths alone.
+     */
+    private static String nativePath(String path)
+    {
+        String nativePath = MaxSystem.maxPathToNativePath(path);
+        return nativePath != null ? nativePath : path;
+    }
+
+
+    /**
+     * Asks the worker to stop without waiting for the generation it is
+     * evolving, which may take long with a large population or while other
+     * evolvers breed. It finishes that generation in the background and
+     * sends nothing more out.
+     */
+    private void stopWorker()
+    {
+        if (worker != null)
+        {
+            worker.stopLater();
+            worker = null;
+        }
+    }
+
+
+    protected void notifyDeleted()
+    {
+        stopWorker();
+        publisher.release();
     }
 
     
@@ -482,6 +497,14 @@ public class ParticleEvolver extends MaxObject
         post(new Integer(popSize).toString());
         //return popSize;
     }
+
+    public void postCacheStats()
+    {
+        post("fitness cache: " + fitnessCache.getHits() + " hits, "
+            + fitnessCache.getMisses() + " misses ("
+            + Math.round(fitnessCache.getHitRate() * 100) + "%), "
+            + fitnessCache.size() + " values");
+    }
 }
 
 
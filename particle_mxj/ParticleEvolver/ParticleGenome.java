@@ -0,0 +1,130 @@
+package ga;
+
+import org.jgap.*;
+import org.jgap.impl.*;
+
+/**
+ * A flat view of the particle chromosome: all 31 parameters in one
+ * double[], in the order outputFittest sends them out. The composite genes
+ * are walked in place, so reading a chromosome into a genome allocates
+ * nothing and unboxes nothing; integer parameters hold whole numbers.
+ */
+public class ParticleGenome
+{
+    // index of every parameter in a genome
+    public static final int LIFE = 0;
+    public static final int SPEED = 1;
+    public static final int DRAG = 2;
+    public static final int PATH_STRENGTH = 3;
+    public static final int GRAVITY = 4;          // x, y, z
+    public static final int PATH = 7;             // A x/y/z, B x/y/z, C x/y/z
+    public static final int DIRECTION = 16;       // x, y, z
+    public static final int SIZE_RANGE = 19;      // start, end
+    public static final int COLOR_RANGE = 21;     // start r/g/b, end r/g/b
+    public static final int BLEND_RANGE = 27;     // start, end
+    public static final int ANGLE = 29;
+    public static final int NUM_PARTICLES = 30;
+
+    // number of parameters in a genome
+    public static final int SIZE = 31;
+
+    // which parameters come from IntegerGenes
+    private static final boolean[] INTEGER = new boolean[SIZE];
+    static {
+        INTEGER[LIFE] = true;
+        INTEGER[DRAG] = true;
+        for (int i = COLOR_RANGE; i < COLOR_RANGE + 6; i++)
+            INTEGER[i] = true;
+        INTEGER[BLEND_RANGE] = true;
+        INTEGER[BLEND_RANGE + 1] = true;
+        INTEGER[NUM_PARTICLES] = true;
+    }
+
+    private ParticleGenome()
+    {
+    }
+
+
+    /**
+     * Tells whether a parameter comes from an IntegerGene.
+     *
+     * @param index The index of the parameter.
+     */
+    public static boolean isInteger(int index)
+    {
+        return INTEGER[index];
+    }
+
+
+    /**
+     * Reads the alleles of a particle chromosome into a genome.
+     *
+     * @param chrom The chromosome to read.
+     * @param genome The genome to fill, at least SIZE long.
+     */
+    public static void read(Chromosome chrom, double[] genome)
+    {
+        int index = 0;
+        for (int i = 0; i < chrom.size(); i++)
+            index = read(chrom.getGene(i), genome, index);
+    }
+
+
+    /**
+     * Reads a gene into the genome from the given index.
+     *
+     * @return The index after the gene.
+     */
+    private static int read(Gene gene, double[] genome, int index)
+    {
+        if (gene instanceof CompositeGene)
+        {
+            CompositeGene composite = (CompositeGene) gene;
+            for (int i = 0; i < composite.size(); i++)
+                index = read(composite.geneAt(i), genome, index);
+            return index;
+        }
+        if (gene instanceof IntegerGene)
+            genome[index] = ((IntegerGene) gene).intValue();
+        else
+            genome[index] = ((DoubleGene) gene).doubleValue();
+        return index + 1;
+    }
+
+
+    /**
+     * Writes a genome back into the alleles of a particle chromosome.
+     * Integer parameters are rounded.
+     *
+     * @param genome The genome to write.
+     * @param chrom The chromosome to change.
+     */
+    public static void write(double[] genome, Chromosome chrom)
+    {
+        int index = 0;
+        for (int i = 0; i < chrom.size(); i++)
+            index = write(genome, chrom.getGene(i), index);
+    }
+
+
+    /**
+     * Writes the genome from the given index into a gene.
+     *
+     * @return The index after the gene.
+     */
+    private static int write(double[] genome, Gene gene, int index)
+    {
+        if (gene instanceof CompositeGene)
+        {
+            CompositeGene composite = (CompositeGene) gene;
+            for (int i = 0; i < composite.size(); i++)
+                index = write(genome, composite.geneAt(i), index);
+            return index;
+        }
+        if (gene instanceof IntegerGene)
+            gene.setAllele(new Integer((int) Math.round(genome[index])));
+        else
+            gene.setAllele(new Double(genome[index]));
+        return index + 1;
+    }
+}
@@ -0,0 +1,68 @@
+package ga;
+
+import org.jgap.*;
+import java.util.Random;
+
+/**
+ * The random generator of the particle evolver. It draws exactly the same
+ * numbers as java.util.Random (and so JGAP's StockRandomGenerator) for the
+ * same seed, but keeps its 48 bit state where it can be read and restored,
+ * so that a checkpointed population resumes with the random numbers it
+ * would have drawn had it never stopped.
+ *
+ * A pending second Gaussian from nextGaussian() is not part of the state;
+ * JGAP's operators don't draw Gaussians.
+ */
+public class ParticleRandom extends Random implements RandomGenerator
+{
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+
+    // the generator's state; set through setSeed by the Random constructor,
+    // so it must not have an initializer
+    private long state;
+
+    public ParticleRandom()
+    {
+        super();
+    }
+
+
+    public ParticleRandom(long seed)
+    {
+        super(seed);
+    }
+
+
+    public synchronized void setSeed(long seed)
+    {
+        super.setSeed(seed);
+        state = (seed ^ MULTIPLIER) & MASK;
+    }
+
+
+    /**
+     * Returns the state, for restoring it later with setState.
+     */
+    public synchronized long getState()
+    {
+        return state;
+    }
+
+
+    /**
+     * Restores a state returned by getState.
+     */
+    public synchronized void setState(long state)
+    {
+        setSeed(state ^ MULTIPLIER);
+    }
+
+
+    protected synchronized int next(int bits)
+    {
+        state = (state * MULTIPLIER + ADDEND) & MASK;
+        return (int) (state >>> (48 - bits));
+    }
+}
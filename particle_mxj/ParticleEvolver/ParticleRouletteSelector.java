@@ -0,0 +1,72 @@
+package ga;
+
+import org.jgap.*;
+import org.jgap.impl.*;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * JGAP's weighted roulette wheel, with the size of its wheel open to
+ * checkpoints. WeightedRouletteSelector keeps its wheel in a HashMap which
+ * is cleared after every selection but never shrinks, and the order in
+ * which the wheel is spun follows the map's capacity. A fresh selector
+ * would spin a resumed population in a different order than the one it
+ * was checkpointed from, so the selector remembers the most chromosomes
+ * its wheel has held and can grow a fresh wheel to the same size.
+ */
+public class ParticleRouletteSelector extends WeightedRouletteSelector
+{
+    // the chromosomes on the wheel since it was last emptied
+    private Set onWheel = new HashSet();
+    // the most chromosomes the wheel has held
+    private int largestWheel;
+
+    public ParticleRouletteSelector()
+    {
+        super();
+    }
+
+
+    protected synchronized void add(Chromosome chrom)
+    {
+        super.add(chrom);
+        onWheel.add(chrom);
+        largestWheel = Math.max(largestWheel, onWheel.size());
+    }
+
+
+    public synchronized void empty()
+    {
+        super.empty();
+        onWheel.clear();
+    }
+
+
+    /**
+     * Returns the most chromosomes the wheel has held.
+     */
+    public synchronized int getLargestWheel()
+    {
+        return largestWheel;
+    }
+
+
+    /**
+     * Grows the wheel as if it had held the given number of chromosomes,
+     * by putting as many placeholders on it and emptying it again. Must be
+     * called while the wheel is empty.
+     */
+    public synchronized void setLargestWheel(int size) throws InvalidConfigurationException
+    {
+        for (int i = 0; i < size; i++)
+        {
+            IntegerGene gene = new IntegerGene(0, size);
+            gene.setAllele(new Integer(i));
+            Chromosome placeholder = new Chromosome(new Gene[]{gene});
+            placeholder.setFitnessValue(1.0);
+            add(placeholder);
+        }
+        empty();
+        largestWheel = Math.max(largestWheel, size);
+    }
+}
@@ -0,0 +1,120 @@
+package ga;
+
+import java.util.Arrays;
+
+/**
+ * The targets a population evolves towards, compiled for the fitness
+ * function: for every parameter of a ParticleGenome the target value, the
+ * upper bound of the parameter's fitness and the weight of that fitness in
+ * the total. Parameters belonging to one vector or range (gravity, path,
+ * colors, ...) share the weight 1 / size of the group, so every group
+ * counts as much as a single parameter.
+ *
+ * A ParticleTargets never changes once compiled, so one instance can be
+ * shared by all threads evaluating a population.
+ */
+public final class ParticleTargets
+{
+    // upper bounds of each parameter's fitness
+    private static final double[] UPPER = new double[ParticleGenome.SIZE];
+    // weights of each parameter's fitness
+    private static final double[] WEIGHTS = new double[ParticleGenome.SIZE];
+    static {
+        group(ParticleGenome.LIFE, 1, 5000);
+        group(ParticleGenome.SPEED, 1, 10000.0);
+        group(ParticleGenome.DRAG, 1, 100);
+        group(ParticleGenome.PATH_STRENGTH, 1, 0.99);
+        group(ParticleGenome.GRAVITY, 3, 100.0);
+        group(ParticleGenome.PATH, 9, 100.0);
+        group(ParticleGenome.DIRECTION, 3, 100.0);
+        group(ParticleGenome.SIZE_RANGE, 2, 10.0);
+        group(ParticleGenome.COLOR_RANGE, 6, 255);
+        group(ParticleGenome.BLEND_RANGE, 2, 100);
+        group(ParticleGenome.ANGLE, 1, 180.0);
+        group(ParticleGenome.NUM_PARTICLES, 1, 1000);
+    }
+
+    // target value, upper bound and weight of each parameter
+    final double[] values;
+    final double[] upper;
+    final double[] weights;
+
+    /**
+     * Compiles a set of targets.
+     *
+     * @param values The target value of each parameter, laid out as in
+     *               ParticleGenome. The array is copied.
+     */
+    public ParticleTargets(double[] values)
+    {
+        if (values.length != ParticleGenome.SIZE)
+            throw new IllegalArgumentException("expected " + ParticleGenome.SIZE
+                + " targets, got " + values.length);
+        this.values = (double[]) values.clone();
+        upper = UPPER;
+        weights = WEIGHTS;
+    }
+
+
+    /**
+     * Parses targets from the list of a Max message. Integer parameters must
+     * be given as whole numbers.
+     *
+     * @param atoms The target of each parameter, laid out as in
+     *              ParticleGenome.
+     *
+     * @return The compiled targets.
+     */
+    public static ParticleTargets parse(String[] atoms)
+    {
+        if (atoms.length < ParticleGenome.SIZE)
+            throw new IllegalArgumentException("expected " + ParticleGenome.SIZE
+                + " targets, got " + atoms.length);
+        double[] values = new double[ParticleGenome.SIZE];
+        for (int i = 0; i < ParticleGenome.SIZE; i++)
+        {
+            if (ParticleGenome.isInteger(i))
+                values[i] = Integer.parseInt(atoms[i]);
+            else
+                values[i] = Double.parseDouble(atoms[i]);
+        }
+        return new ParticleTargets(values);
+    }
+
+
+    /**
+     * Returns the target value of a parameter.
+     *
+     * @param index The index of the parameter in a ParticleGenome.
+     */
+    public double getValue(int index)
+    {
+        return values[index];
+    }
+
+
+    public boolean equals(Object o)
+    {
+        return o instanceof ParticleTargets
+            && Arrays.equals(values, ((ParticleTargets) o).values);
+    }
+
+
+    public int hashCode()
+    {
+        return Arrays.hashCode(values);
+    }
+
+
+    /**
+     * Sets the upper bound and weight of a group of parameters.
+     */
+    private static void group(int index, int count, double upper)
+    {
+        for (int i = index; i < index + count; i++)
+        {
+            UPPER[i] = upper;
+            WEIGHTS[i] = 1.0 / count;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * Receives the commands drained from a ControlQueue.
+ */
+public interface ControlHandler {
+   /**
+    * Applies one control command.
+    *
+    * @param command One of the ControlQueue.CMD_ constants.
+    * @param argument The parameter for CMD_ADD and CMD_SET, or the preset
+    *        for the snapshot commands.
+    * @param value The value for CMD_ADD and CMD_SET.
+    */
+   void applyControl(int command, int argument, float value);
+}
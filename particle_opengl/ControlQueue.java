@@ -0,0 +1,195 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of control commands. Any number of threads
+ * (the AWT thread for key presses, network listeners) may post commands;
+ * the render thread drains them all once per simulation step, so every
+ * change to a world's controls takes effect between two frames and never
+ * in the middle of one.
+ *
+ * Commands are stored in preallocated slots, so neither posting nor
+ * draining allocates. Each slot carries a sequence number telling whether
+ * it is free, written or being written (the scheme of Vyukov's bounded
+ * queue).
+ */
+public class ControlQueue {
+   // Adds the value to a parameter.
+   public static final int CMD_ADD = 0;
+   // Sets a parameter to the value.
+   public static final int CMD_SET = 1;
+   // Restarts all particles.
+   public static final int CMD_RESET = 2;
+   // Emits a burst of particles in burst mode.
+   public static final int CMD_BURST = 3;
+   // Switches to the next texture filter.
+   public static final int CMD_NEXT_FILTER = 4;
+   // Switches to the next emission mode.
+   public static final int CMD_NEXT_EMITTER_MODE = 5;
+   // Switches new particles to the next sprite.
+   public static final int CMD_NEXT_SPRITE = 6;
+   // Stores a snapshot of the particles under the preset given as the
+   // argument.
+   public static final int CMD_SAVE_SNAPSHOT = 7;
+   // Restores the snapshot stored under the preset given as the argument.
+   public static final int CMD_RESTORE_SNAPSHOT = 8;
+   // Starts recording the particles to a file, or stops recording.
+   public static final int CMD_TOGGLE_RECORDING = 9;
+   // Starts replaying the recorded file, or returns to the simulation.
+   public static final int CMD_TOGGLE_REPLAY = 10;
+   // Starts exporting the rendered frames as images, or stops exporting.
+   public static final int CMD_TOGGLE_EXPORT = 11;
+   // Switches between drawing quads and point sprites.
+   public static final int CMD_NEXT_RENDER_MODE = 12;
+   // Switches to the next behaviour: swarm, flock or fluid.
+   public static final int CMD_NEXT_BEHAVIOR = 13;
+   // Switches to the next integrator.
+   public static final int CMD_NEXT_INTEGRATOR = 14;
+   // Points the force, emitter and sprite controls at the next layer (see
+   // ParticleLayer).
+   public static final int CMD_NEXT_LAYER = 15;
+   // Points those controls at the layer given as the argument; 0 is the
+   // world's own.
+   public static final int CMD_SELECT_LAYER = 16;
+   // Adds a layer with its own particle system and points the controls at
+   // it. The argument is its particle budget, 0 for as many particles as
+   // the world's own system.
+   public static final int CMD_ADD_LAYER = 17;
+   // Removes the layer the controls point at, unless it is the world's
+   // own, and points them back at the world's own.
+   public static final int CMD_REMOVE_LAYER = 18;
+
+   // Parameters changed by CMD_ADD and CMD_SET.
+   public static final int PARAM_ZOOM = 0;
+   public static final int PARAM_X_GRAVITY = 1;
+   public static final int PARAM_Y_GRAVITY = 2;
+   public static final int PARAM_SLOW_DOWN = 3;
+   public static final int PARAM_X_SPEED = 4;
+   public static final int PARAM_Y_SPEED = 5;
+   public static final int PARAM_EMISSION_RATE = 6;
+   public static final int PARAM_BURST_COUNT = 7;
+   public static final int PARAM_REPLAY_SPEED = 8;
+   public static final int PARAM_SIZE_START = 9;
+   public static final int PARAM_SIZE_END = 10;
+   public static final int PARAM_FLOCK_RADIUS = 11;
+   public static final int PARAM_SEPARATION = 12;
+   public static final int PARAM_ALIGNMENT = 13;
+   public static final int PARAM_COHESION = 14;
+   public static final int PARAM_FLUID_RADIUS = 15;
+   public static final int PARAM_REST_DENSITY = 16;
+   public static final int PARAM_STIFFNESS = 17;
+   public static final int PARAM_VISCOSITY = 18;
+   public static final int PARAM_TIME_STEP = 19;
+   public static final int PARAM_GLOW = 20;
+   public static final int PARAM_GLOW_THRESHOLD = 21;
+   public static final int PARAM_TRAIL = 22;
+
+   // Number of slots minus one; the number of slots is a power of two.
+   private final int m_nMask;
+   // Sequence number of each slot. A slot is free for the producer at
+   // position p when its sequence is p, and ready for the consumer at
+   // position p when its sequence is p + 1.
+   private final AtomicLongArray m_aSequence;
+   // The command, argument and value stored in each slot.
+   private final int[] m_aCommand;
+   private final int[] m_aArgument;
+   private final float[] m_aValue;
+   // Next position to post to, shared by all producers.
+   private final AtomicLong m_oTail = new AtomicLong();
+   // Next position to drain from. Only used by the consumer.
+   private long m_lHead = 0;
+   // Number of commands rejected because the queue was full.
+   private final AtomicLong m_oRejected = new AtomicLong();
+
+   /**
+    * Creates a queue.
+    *
+    * @param capacity The minimum number of commands the queue holds. It is
+    *        rounded up to a power of two.
+    */
+   public ControlQueue(int capacity) {
+      int size = 1;
+      while (size < capacity) {
+         size <<= 1;
+      }
+      m_nMask = size - 1;
+      m_aSequence = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+         m_aSequence.set(i, i);
+      }
+      m_aCommand = new int[size];
+      m_aArgument = new int[size];
+      m_aValue = new float[size];
+   }
+
+   /**
+    * Posts a command. May be called from any thread.
+    *
+    * @param command One of the CMD_ constants.
+    * @param argument The parameter for CMD_ADD and CMD_SET, the preset for
+    *        the snapshot commands, or the layer or budget for the layer
+    *        commands; ignored by other commands.
+    * @param value The value for CMD_ADD and CMD_SET.
+    * @return False if the queue was full and the command was dropped.
+    */
+   public boolean post(int command, int argument, float value) {
+      long pos = m_oTail.get();
+      int slot;
+      while (true) {
+         slot = (int)pos & m_nMask;
+         long diff = m_aSequence.get(slot) - pos;
+         if (diff == 0) {
+            // The slot is free; claim the position.
+            if (m_oTail.compareAndSet(pos, pos + 1)) {
+               break;
+            }
+            pos = m_oTail.get();
+         } else if (diff < 0) {
+            // The consumer has not drained this slot yet: the queue is full.
+            m_oRejected.incrementAndGet();
+            return false;
+         } else {
+            // Another producer claimed the position first.
+            pos = m_oTail.get();
+         }
+      }
+      m_aCommand[slot] = command;
+      m_aArgument[slot] = argument;
+      m_aValue[slot] = value;
+      // Publish the slot to the consumer.
+      m_aSequence.lazySet(slot, pos + 1);
+      return true;
+   }
+
+   /**
+    * Hands every posted command to the given handler, in the order they
+    * were posted. Must only be called from one thread at a time.
+    *
+    * @param handler The handler applying the commands.
+    * @return The number of commands drained.
+    */
+   public int drain(ControlHandler handler) {
+      int count = 0;
+      while (true) {
+         int slot = (int)m_lHead & m_nMask;
+         if (m_aSequence.get(slot) != m_lHead + 1) {
+            // Empty, or the next command is still being written.
+            return count;
+         }
+         handler.applyControl(m_aCommand[slot], m_aArgument[slot], m_aValue[slot]);
+         // Free the slot for the producer one lap ahead.
+         m_aSequence.lazySet(slot, m_lHead + m_nMask + 1);
+         m_lHead++;
+         count++;
+      }
+   }
+
+   /**
+    * Retrieves the number of commands dropped because the queue was full.
+    *
+    * @return The number of rejected commands.
+    */
+   public long getRejectedCount() {
+      return m_oRejected.get();
+   }
+}
@@ -0,0 +1,52 @@
+import java.nio.FloatBuffer;
+
+/**
+ * The original update: moves each particle with its current speed, then
+ * changes the speed. Cheap, but it gains energy every step, so strong
+ * gravity or steering, a low slow-down factor or a long step make the
+ * motion blow up.
+ */
+public class EulerIntegrator implements ParticleIntegrator {
+   /**
+    * Advances the listed particles by one time step.
+    *
+    * @see ParticleIntegrator#integrate
+    */
+   public void integrate(
+      ParticlePool pool,
+      int[] slots,
+      int count,
+      float dt,
+      float speedScale,
+      Steering steering,
+      float[] steerX,
+      float[] steerY,
+      float[] steerZ,
+      float xGravityChange,
+      float yGravityChange) {
+      FloatBuffer v = pool.m_oVertices;
+      float[] vx = pool.m_aXSpeed;
+      float[] vy = pool.m_aYSpeed;
+      float[] vz = pool.m_aZSpeed;
+      float[] gx = pool.m_aXGravity;
+      float[] gy = pool.m_aYGravity;
+      float[] gz = pool.m_aZGravity;
+      float h = dt / speedScale;
+      float dxGravity = xGravityChange * dt;
+      float dyGravity = yGravityChange * dt;
+      steering.steer();
+      for (int k = 0; k < count; k++) {
+         int i = slots[k];
+         // x, y and z follow each other in the vertex buffer.
+         int o = i * ParticlePool.VERTEX_SIZE + ParticlePool.OFFSET_X;
+         v.put(o, v.get(o) + vx[i] * h);
+         v.put(o + 1, v.get(o + 1) + vy[i] * h);
+         v.put(o + 2, v.get(o + 2) + vz[i] * h);
+         vx[i] += (gx[i] + steerX[i]) * dt;
+         vy[i] += (gy[i] + steerY[i]) * dt;
+         vz[i] += (gz[i] + steerZ[i]) * dt;
+         gx[i] += dxGravity;
+         gy[i] += dyGravity;
+      }
+   }
+}
@@ -0,0 +1,414 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Exports rendered frames as a numbered image sequence for video
+ * production. The render thread copies each frame into one of a ring of
+ * preallocated frame buffers and hands it to the post stage, a single
+ * thread which adds the glow and trails to the frames one at a time in
+ * order. From there a small pool of encoder threads compresses and writes
+ * the frame and returns the buffer to the ring.
+ *
+ * The render thread never waits for the post stage, the disk or the
+ * encoders. When the encoders fall behind, frames are dropped after the
+ * post stage, so the trails still see every frame; one buffer of the ring
+ * is always left for that. Only when every buffer is busy, because the
+ * post stage itself falls behind, is a frame dropped before it is read.
+ * Dropped frames are counted, and their numbers skipped.
+ *
+ * The glow and trails only exist in the exported frames; the window shows
+ * the frames as rendered.
+ */
+public class FrameExporter {
+   // Frames are written as PNG images.
+   public static final int FORMAT_PNG = 0;
+   // Frames are written uncompressed as binary PPM images, which are
+   // faster to write and read by most video tools.
+   public static final int FORMAT_RAW = 1;
+
+   /**
+    * One reusable frame buffer of the ring.
+    */
+   public static class Frame {
+      // RGB pixels, three bytes per pixel, bottom row first as read back
+      // from OpenGL.
+      private ByteBuffer m_oPixels;
+      // Size of the frame in pixels.
+      private int m_nWidth;
+      private int m_nHeight;
+      // Sequence number of the frame in the export.
+      private int m_nNumber;
+      // Image the encoder converts the pixels into, kept for reuse.
+      private BufferedImage m_oImage;
+      // Row the encoder converts the pixels through, kept for reuse.
+      private int[] m_aRow;
+      // Effects the post stage adds to the frame (see PostProcessor).
+      private float m_fGlowThreshold;
+      private float m_fGlow;
+      private float m_fTrail;
+
+      /**
+       * Retrieves the buffer the frame's pixels are written into: RGB, three
+       * bytes per pixel with no row padding, bottom row first.
+       *
+       * @return The pixel buffer, positioned at 0.
+       */
+      public ByteBuffer getPixels() {
+         return m_oPixels;
+      }
+
+      /**
+       * Sets the effects the post stage adds to the frame, taken as they
+       * are when the frame is drawn. Frames have no effects by default.
+       *
+       * @param threshold The brightness, between 0 and 1, above which
+       *        pixels glow.
+       * @param glow The brightness of the glow; 0 turns the glow off.
+       * @param trail The weight of the earlier frames in the trails; 0
+       *        turns the trails off.
+       */
+      public void setEffects(float threshold, float glow, float trail) {
+         m_fGlowThreshold = threshold;
+         m_fGlow = glow;
+         m_fTrail = trail;
+      }
+
+      /**
+       * Makes sure the pixel buffer fits a frame of the given size.
+       */
+      private void resize(int width, int height) {
+         int size = width * height * 3;
+         if (m_oPixels == null || m_oPixels.capacity() < size) {
+            m_oPixels = ByteBuffer.allocateDirect(size);
+         }
+         m_oPixels.clear();
+         m_oPixels.limit(size);
+         m_nWidth = width;
+         m_nHeight = height;
+         m_fGlow = 0f;
+         m_fTrail = 0f;
+      }
+   }
+
+   // The directory the frames are written to.
+   private final File m_oDirectory;
+   // FORMAT_PNG or FORMAT_RAW.
+   private final int m_nFormat;
+   // Frame buffers which are not being post-processed or encoded.
+   private final ArrayBlockingQueue m_oFree;
+   // Adds the effects to the frames, only used by the post stage.
+   private final PostProcessor m_oPostProcessor;
+   // The post stage thread.
+   private final ExecutorService m_oPost;
+   // The encoder threads.
+   private final ExecutorService m_oEncoders;
+   // Most frames being encoded or waiting for it.
+   private final int m_nMaxEncoding;
+   // Frames being encoded or waiting for it.
+   private final AtomicInteger m_oEncoding = new AtomicInteger();
+   // Number of the next frame handed out.
+   private int m_nNextNumber = 0;
+   // Frames skipped because every buffer was busy or the encoders were
+   // behind.
+   private final AtomicInteger m_oDropped = new AtomicInteger();
+   // Frames that could not be post-processed or written.
+   private final AtomicInteger m_oFailed = new AtomicInteger();
+   // Frames written.
+   private final AtomicInteger m_oWritten = new AtomicInteger();
+
+   /**
+    * Creates an exporter and starts its encoder threads.
+    *
+    * @param directory The directory to write the frames to. Created if it
+    *        does not exist.
+    * @param format FORMAT_PNG or FORMAT_RAW.
+    * @param buffers The number of frame buffers in the ring, at least 2.
+    * @param encoders The number of encoder threads.
+    * @param postProcessor Adds the effects set on each frame, or null to
+    *        export the frames as rendered. Only used by the post stage
+    *        from then on.
+    * @throws IOException If the directory cannot be created.
+    */
+   public FrameExporter(
+      File directory,
+      int format,
+      int buffers,
+      int encoders,
+      PostProcessor postProcessor)
+      throws IOException {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+         throw new IOException("Cannot create " + directory);
+      }
+      m_oDirectory = directory;
+      m_nFormat = format;
+      m_oPostProcessor = postProcessor;
+      buffers = Math.max(2, buffers);
+      m_oFree = new ArrayBlockingQueue(buffers);
+      for (int i = 0; i < buffers; i++) {
+         m_oFree.add(new Frame());
+      }
+      m_nMaxEncoding = buffers - 1;
+      // At most one task per buffer can be waiting, so the work queues are
+      // bounded by the ring.
+      m_oPost =
+         Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "Frame post-processor");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      m_oEncoders =
+         new ThreadPoolExecutor(
+            encoders,
+            encoders,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue(),
+            new ThreadFactory() {
+               public Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r, "Frame encoder");
+                  thread.setDaemon(true);
+                  thread.setPriority(Thread.MIN_PRIORITY);
+                  return thread;
+               }
+            });
+   }
+
+   /**
+    * Takes a free frame buffer for the next frame. Never blocks.
+    *
+    * @param width The width of the frame in pixels.
+    * @param height The height of the frame in pixels.
+    * @return The frame buffer to fill and pass to submit(), or null if all
+    *         buffers are busy and the frame has to be dropped.
+    */
+   public Frame acquire(int width, int height) {
+      Frame frame = (Frame)m_oFree.poll();
+      if (frame == null) {
+         // The dropped frame's number is skipped, so the gap in the
+         // sequence shows where it was.
+         m_oDropped.incrementAndGet();
+         m_nNextNumber++;
+         return null;
+      }
+      frame.resize(width, height);
+      frame.m_nNumber = m_nNextNumber++;
+      return frame;
+   }
+
+   /**
+    * Hands a filled frame buffer to the post stage, which passes it on to
+    * the encoders.
+    *
+    * @param frame A frame buffer returned by acquire().
+    */
+   public void submit(final Frame frame) {
+      m_oPost.execute(new Runnable() {
+         public void run() {
+            postProcess(frame);
+         }
+      });
+   }
+
+   /**
+    * Adds the frame's effects and hands the frame to the encoders, or drops
+    * it if they are behind. Runs on the post stage thread.
+    */
+   private void postProcess(final Frame frame) {
+      boolean encode = false;
+      try {
+         if (m_oPostProcessor != null) {
+            m_oPostProcessor.setEffects(
+               frame.m_fGlowThreshold,
+               frame.m_fGlow,
+               frame.m_fTrail);
+            m_oPostProcessor.process(frame.m_oPixels, frame.m_nWidth, frame.m_nHeight);
+         }
+         if (m_oEncoding.get() < m_nMaxEncoding) {
+            encode = true;
+         } else {
+            m_oDropped.incrementAndGet();
+         }
+      } catch (RuntimeException e) {
+         if (m_oFailed.getAndIncrement() == 0) {
+            System.out.println("Cannot post-process frame: " + e);
+         }
+      } finally {
+         if (!encode) {
+            m_oFree.add(frame);
+         }
+      }
+      if (!encode) {
+         return;
+      }
+      m_oEncoding.incrementAndGet();
+      m_oEncoders.execute(new Runnable() {
+         public void run() {
+            try {
+               write(frame);
+               m_oWritten.incrementAndGet();
+            } catch (IOException e) {
+               if (m_oFailed.getAndIncrement() == 0) {
+                  System.out.println("Cannot export frame: " + e.getMessage());
+               }
+            } finally {
+               m_oEncoding.decrementAndGet();
+               m_oFree.add(frame);
+            }
+         }
+      });
+   }
+
+   /**
+    * Exports a frame rendered on the CPU.
+    *
+    * @param rgb The pixels as packed RGB integers, top row first.
+    * @param width The width of the frame in pixels.
+    * @param height The height of the frame in pixels.
+    */
+   public void submit(int[] rgb, int width, int height) {
+      Frame frame = acquire(width, height);
+      if (frame == null) {
+         return;
+      }
+      ByteBuffer pixels = frame.m_oPixels;
+      for (int y = height - 1; y >= 0; y--) {
+         int row = y * width;
+         for (int x = 0; x < width; x++) {
+            int c = rgb[row + x];
+            pixels.put((byte)(c >> 16));
+            pixels.put((byte)(c >> 8));
+            pixels.put((byte)c);
+         }
+      }
+      pixels.flip();
+      submit(frame);
+   }
+
+   /**
+    * Stops accepting frames. Frames already submitted are still
+    * post-processed and written.
+    *
+    * @param waitMillis How long to wait for them, or 0 not to wait.
+    */
+   public void close(long waitMillis) {
+      // The encoders stop after the post stage has handed them its last
+      // frame.
+      m_oPost.execute(new Runnable() {
+         public void run() {
+            m_oEncoders.shutdown();
+         }
+      });
+      m_oPost.shutdown();
+      if (waitMillis > 0) {
+         long end = System.currentTimeMillis() + waitMillis;
+         try {
+            if (m_oPost.awaitTermination(waitMillis, TimeUnit.MILLISECONDS)) {
+               long left = Math.max(1, end - System.currentTimeMillis());
+               m_oEncoders.awaitTermination(left, TimeUnit.MILLISECONDS);
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /**
+    * Retrieves the number of frames dropped because the post stage or the
+    * encoders could not keep up.
+    *
+    * @return The dropped frame count.
+    */
+   public int getDroppedFrames() {
+      return m_oDropped.get();
+   }
+
+   /**
+    * Retrieves the number of frames written so far.
+    *
+    * @return The written frame count.
+    */
+   public int getWrittenFrames() {
+      return m_oWritten.get();
+   }
+
+   /**
+    * Retrieves the number of frames which could not be written.
+    *
+    * @return The failed frame count.
+    */
+   public int getFailedFrames() {
+      return m_oFailed.get();
+   }
+
+   /**
+    * Encodes a frame and writes it to its numbered file. Runs on an
+    * encoder thread.
+    */
+   private void write(Frame frame) throws IOException {
+      String name = "frame" + pad(frame.m_nNumber);
+      ByteBuffer pixels = frame.m_oPixels;
+      int width = frame.m_nWidth;
+      int height = frame.m_nHeight;
+      if (m_nFormat == FORMAT_PNG) {
+         BufferedImage image = frame.m_oImage;
+         if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            frame.m_oImage = image;
+            frame.m_aRow = new int[width];
+         }
+         int[] row = frame.m_aRow;
+         for (int y = 0; y < height; y++) {
+            // OpenGL rows start at the bottom.
+            int offset = (height - 1 - y) * width * 3;
+            for (int x = 0; x < width; x++) {
+               int i = offset + x * 3;
+               row[x] =
+                  (pixels.get(i) & 0xff) << 16
+                     | (pixels.get(i + 1) & 0xff) << 8
+                     | (pixels.get(i + 2) & 0xff);
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+         }
+         if (!ImageIO.write(image, "png", new File(m_oDirectory, name + ".png"))) {
+            throw new IOException("No PNG writer available");
+         }
+      } else {
+         OutputStream out = new FileOutputStream(new File(m_oDirectory, name + ".ppm"));
+         try {
+            out.write(("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+            byte[] line = new byte[width * 3];
+            for (int y = height - 1; y >= 0; y--) {
+               pixels.position(y * width * 3);
+               pixels.get(line);
+               out.write(line);
+            }
+         } finally {
+            out.close();
+            pixels.clear();
+         }
+      }
+   }
+
+   /**
+    * Pads a frame number to six digits so the files sort in order.
+    */
+   private static String pad(int number) {
+      String digits = String.valueOf(number);
+      return "000000".substring(Math.min(6, digits.length())) + digits;
+   }
+}
@@ -0,0 +1,297 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the visible state of a particle pool (location, color, life and
+ * sprite of every slot) frame by frame into a binary file, so a
+ * performance can be replayed later with FrameReplay.
+ *
+ * The file starts with a header, followed by one chunk per frame and an
+ * index of all chunks. Within a chunk the values are stored channel by
+ * channel. Two optional compressions may be combined: quantization stores
+ * locations as 16-bit fixed point numbers and colors and life as bytes;
+ * delta coding stores each value as a variable-length difference to the
+ * same value in the previous frame, with a complete key frame at regular
+ * intervals so replay can start anywhere.
+ *
+ * Quantized locations cover -1024 to 1024 units on each axis; particles
+ * beyond are stored at the edge of that range and counted (see
+ * getClampedCount()). A recording is limited to MAX_FILE_SIZE, which is
+ * as much as FrameReplay can map at once: when the next frame would not
+ * fit, writeFrame() refuses it and the recording can still be closed and
+ * replayed up to there.
+ */
+public class FrameRecorder {
+   // Marks the start of a recording ("PREC").
+   static final int MAGIC = 0x50524543;
+   // Marks the index at the end of a recording ("PIDX").
+   static final int INDEX_MAGIC = 0x50494458;
+   // Incremented whenever the layout changes.
+   static final int VERSION = 1;
+   // Values are quantized.
+   public static final int FLAG_QUANTIZE = 1;
+   // Values are delta coded.
+   public static final int FLAG_DELTA = 2;
+   // Frame chunk flag: the chunk is a key frame.
+   static final int CHUNK_KEY = 1;
+   // Number of values stored per particle: x, y, z, red, green, blue,
+   // life and sprite.
+   static final int CHANNELS = 8;
+   // Quantized locations are stored in units of 1/32.
+   static final float LOCATION_SCALE = 32f;
+   // Size of the file header: magic, version, flags, capacity and key
+   // frame interval.
+   static final int HEADER_SIZE = 20;
+   // Size of a chunk header: frame number, time, flags and payload size.
+   static final int CHUNK_HEADER_SIZE = 16;
+   // Size of an index entry: chunk offset and frame time.
+   static final int INDEX_ENTRY_SIZE = 12;
+   // Size of the index trailer: index offset, frame count and magic.
+   static final int INDEX_TRAILER_SIZE = 16;
+   // Largest recording file: the most one memory mapping can hold.
+   public static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+   // The file being written.
+   private final RandomAccessFile m_oFile;
+   private final FileChannel m_oChannel;
+   // Compression flags.
+   private final int m_nFlags;
+   // Number of slots recorded per frame.
+   private final int m_nCapacity;
+   // Frames between key frames when delta coding.
+   private final int m_nKeyInterval;
+   // Values of the previous frame, channel by channel.
+   private final int[] m_aPrevious;
+   // Reusable buffer one frame is encoded into.
+   private final ByteBuffer m_oFrameBuffer;
+   // Chunk offsets and frame times, written as the index on close.
+   private long[] m_aOffsets = new long[1024];
+   private float[] m_aTimes = new float[1024];
+   // Number of frames written.
+   private int m_nFrames = 0;
+   // Number of location values pinned to the quantized range.
+   private long m_lClamped = 0;
+
+   /**
+    * Creates a recording file, replacing any existing file.
+    *
+    * @param file The file to write.
+    * @param capacity The capacity of the pools that will be recorded.
+    * @param flags FLAG_QUANTIZE and/or FLAG_DELTA, or 0 for raw floats.
+    * @param keyInterval Frames between key frames when delta coding.
+    * @throws IOException If the file cannot be created.
+    */
+   public FrameRecorder(File file, int capacity, int flags, int keyInterval)
+      throws IOException {
+      m_nCapacity = capacity;
+      m_nFlags = flags;
+      m_nKeyInterval = Math.max(1, keyInterval);
+      m_aPrevious = new int[capacity * CHANNELS];
+      // Delta coded values take up to five bytes.
+      m_oFrameBuffer =
+         ByteBuffer.allocateDirect(CHUNK_HEADER_SIZE + capacity * CHANNELS * 5)
+            .order(ByteOrder.LITTLE_ENDIAN);
+      m_oFile = new RandomAccessFile(file, "rw");
+      m_oFile.setLength(0);
+      m_oChannel = m_oFile.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(flags);
+      header.putInt(capacity);
+      header.putInt(m_nKeyInterval);
+      header.flip();
+      writeFully(header);
+   }
+
+   /**
+    * Appends the current state of the pool as the next frame.
+    *
+    * @param pool The pool to record. Must have the capacity given to the
+    *        constructor.
+    * @param time The time of the frame in seconds since recording began.
+    * @throws IOException If the frame cannot be written, or if it would
+    *         take the recording past MAX_FILE_SIZE. The frame is not
+    *         written then and the recording can still be closed.
+    */
+   public void writeFrame(ParticlePool pool, float time) throws IOException {
+      boolean key = (m_nFlags & FLAG_DELTA) == 0 || m_nFrames % m_nKeyInterval == 0;
+      ByteBuffer buffer = m_oFrameBuffer;
+      buffer.clear();
+      buffer.position(CHUNK_HEADER_SIZE);
+      int capacity = m_nCapacity;
+      for (int c = 0; c < CHANNELS; c++) {
+         int base = c * capacity;
+         for (int i = 0; i < capacity; i++) {
+            int value = encode(pool, c, i);
+            if ((m_nFlags & FLAG_DELTA) != 0) {
+               int previous = key ? 0 : m_aPrevious[base + i];
+               if ((m_nFlags & FLAG_QUANTIZE) != 0) {
+                  // Zig-zag the difference so small negative steps stay
+                  // small.
+                  int diff = value - previous;
+                  putVarInt(buffer, (diff << 1) ^ (diff >> 31));
+               } else {
+                  // Close floats share their sign, exponent and upper
+                  // mantissa bits, which cancel out.
+                  putVarInt(buffer, value ^ previous);
+               }
+               m_aPrevious[base + i] = value;
+            } else {
+               putFixed(buffer, c, value);
+            }
+         }
+      }
+      int payload = buffer.position() - CHUNK_HEADER_SIZE;
+      buffer.putInt(0, m_nFrames);
+      buffer.putFloat(4, time);
+      buffer.putInt(8, key ? CHUNK_KEY : 0);
+      buffer.putInt(12, payload);
+      buffer.flip();
+
+      if (m_nFrames == m_aOffsets.length) {
+         long[] offsets = new long[m_nFrames * 2];
+         float[] times = new float[m_nFrames * 2];
+         System.arraycopy(m_aOffsets, 0, offsets, 0, m_nFrames);
+         System.arraycopy(m_aTimes, 0, times, 0, m_nFrames);
+         m_aOffsets = offsets;
+         m_aTimes = times;
+      }
+      // Leave room for the index, which grows with every frame.
+      long offset = m_oChannel.position();
+      long end =
+         offset + buffer.remaining() + (long)(m_nFrames + 1) * INDEX_ENTRY_SIZE
+            + INDEX_TRAILER_SIZE;
+      if (end > MAX_FILE_SIZE) {
+         throw new IOException(
+            "the recording is full after " + m_nFrames + " frames ("
+               + (MAX_FILE_SIZE >> 20) + " MB)");
+      }
+      m_aOffsets[m_nFrames] = offset;
+      m_aTimes[m_nFrames] = time;
+      writeFully(buffer);
+      m_nFrames++;
+   }
+
+   /**
+    * Writes the index and closes the file.
+    *
+    * @throws IOException If the index cannot be written.
+    */
+   public void close() throws IOException {
+      try {
+         long indexOffset = m_oChannel.position();
+         ByteBuffer index =
+            ByteBuffer.allocate(m_nFrames * INDEX_ENTRY_SIZE + INDEX_TRAILER_SIZE)
+               .order(ByteOrder.LITTLE_ENDIAN);
+         for (int f = 0; f < m_nFrames; f++) {
+            index.putLong(m_aOffsets[f]);
+            index.putFloat(m_aTimes[f]);
+         }
+         index.putLong(indexOffset);
+         index.putInt(m_nFrames);
+         index.putInt(INDEX_MAGIC);
+         index.flip();
+         writeFully(index);
+      } finally {
+         m_oFile.close();
+      }
+   }
+
+   /**
+    * Retrieves the number of frames written so far.
+    *
+    * @return The frame count.
+    */
+   public int getFrameCount() {
+      return m_nFrames;
+   }
+
+   /**
+    * Retrieves the number of location values of living particles that lay
+    * outside the quantized range and were stored at its edge. Always 0 for recordings
+    * which are not quantized.
+    *
+    * @return The number of clamped values.
+    */
+   public long getClampedCount() {
+      return m_lClamped;
+   }
+
+   /**
+    * Converts one value of a particle to the integer that is stored.
+    */
+   private int encode(ParticlePool pool, int channel, int i) {
+      if (channel == 7) {
+         return pool.m_aSprite[i];
+      }
+      // The first seven channels are stored in the order of the pool's
+      // vertex buffer.
+      float value = pool.m_oVertices.get(i * ParticlePool.VERTEX_SIZE + channel);
+      if (channel == ParticlePool.OFFSET_LIFE && value <= 0f) {
+         // Dead particles are all stored the same way, so they cost
+         // nothing once delta coded.
+         value = 0f;
+      }
+      if ((m_nFlags & FLAG_QUANTIZE) == 0) {
+         return Float.floatToRawIntBits(value);
+      }
+      if (channel < 3) {
+         int q = Math.round(value * LOCATION_SCALE);
+         if (q < Short.MIN_VALUE || q > Short.MAX_VALUE) {
+            // Escaped particles are pinned to the edge of the range. Only
+            // living ones are counted, dead ones are not shown anyway.
+            if (pool.m_oVertices.get(i * ParticlePool.VERTEX_SIZE + ParticlePool.OFFSET_LIFE)
+               > 0f) {
+               m_lClamped++;
+            }
+            return q < 0 ? Short.MIN_VALUE : Short.MAX_VALUE;
+         }
+         return q;
+      }
+      if (channel == ParticlePool.OFFSET_LIFE && value > 0f) {
+         // Keep barely living particles alive.
+         return Math.max(1, Math.min(255, Math.round(value * 255f)));
+      }
+      return Math.max(0, Math.min(255, Math.round(value * 255f)));
+   }
+
+   /**
+    * Writes a value without delta coding.
+    */
+   private void putFixed(ByteBuffer buffer, int channel, int value) {
+      if (channel == 7) {
+         buffer.put((byte)value);
+      } else if ((m_nFlags & FLAG_QUANTIZE) == 0) {
+         buffer.putInt(value);
+      } else if (channel < 3) {
+         buffer.putShort((short)value);
+      } else {
+         buffer.put((byte)value);
+      }
+   }
+
+   /**
+    * Writes an unsigned variable-length integer, seven bits per byte.
+    */
+   private static void putVarInt(ByteBuffer buffer, int value) {
+      while ((value & ~0x7f) != 0) {
+         buffer.put((byte)((value & 0x7f) | 0x80));
+         value >>>= 7;
+      }
+      buffer.put((byte)value);
+   }
+
+   /**
+    * Writes the whole buffer to the file.
+    */
+   private void writeFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+         m_oChannel.write(buffer);
+      }
+   }
+}
@@ -0,0 +1,287 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a recording written by FrameRecorder. The file is mapped into
+ * memory, so frames are decoded straight from the page cache without
+ * reading the file through buffers, and any frame can be reached quickly:
+ * replay starts from the nearest key frame before it and, when the frames
+ * are played forward, continues from the frame decoded last.
+ *
+ * Opening a recording checks where every chunk lies; the values inside a
+ * chunk are only read when its frame is decoded, never past its end.
+ */
+public class FrameReplay {
+   // The mapped recording.
+   private final MappedByteBuffer m_oData;
+   // Compression flags of the recording.
+   private final int m_nFlags;
+   // Number of slots per frame.
+   private final int m_nCapacity;
+   // Chunk offset, time and key flag of every frame.
+   private final int[] m_aOffsets;
+   private final float[] m_aTimes;
+   private final boolean[] m_aKey;
+   // Values of the frame decoded last, channel by channel.
+   private final int[] m_aValues;
+   // The frame m_aValues holds, or -1.
+   private int m_nDecoded = -1;
+
+   /**
+    * Opens a recording.
+    *
+    * @param file The recording to play.
+    * @throws IOException If the file cannot be read, is not a recording,
+    *         is damaged or is larger than FrameRecorder.MAX_FILE_SIZE.
+    */
+   public FrameReplay(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         if (channel.size() > FrameRecorder.MAX_FILE_SIZE) {
+            throw new IOException(file + " is too large to replay");
+         }
+         // The mapping stays valid after the file is closed.
+         m_oData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+         raf.close();
+      }
+      m_oData.order(ByteOrder.LITTLE_ENDIAN);
+      if (m_oData.limit() < FrameRecorder.HEADER_SIZE
+         || m_oData.getInt(0) != FrameRecorder.MAGIC) {
+         throw new IOException(file + " is not a particle recording");
+      }
+      if (m_oData.getInt(4) != FrameRecorder.VERSION) {
+         throw new IOException(file + " has an unsupported version");
+      }
+      m_nFlags = m_oData.getInt(8);
+      m_nCapacity = m_oData.getInt(12);
+      if (m_nCapacity < 0 || m_nCapacity > Integer.MAX_VALUE / FrameRecorder.CHANNELS) {
+         throw new IOException(file + " has an invalid capacity");
+      }
+      m_aValues = new int[m_nCapacity * FrameRecorder.CHANNELS];
+
+      // Use the index if the recording was closed properly, otherwise walk
+      // the chunks of the frames that made it to disk. Offsets are checked
+      // as longs so damaged ones cannot wrap around.
+      int limit = m_oData.limit();
+      int frames;
+      long indexOffset = -1;
+      if (limit >= FrameRecorder.HEADER_SIZE + FrameRecorder.INDEX_TRAILER_SIZE
+         && m_oData.getInt(limit - 4) == FrameRecorder.INDEX_MAGIC) {
+         frames = m_oData.getInt(limit - 8);
+         indexOffset = m_oData.getLong(limit - 16);
+         if (frames < 0
+            || indexOffset < FrameRecorder.HEADER_SIZE
+            || indexOffset + (long)frames * FrameRecorder.INDEX_ENTRY_SIZE
+               != limit - FrameRecorder.INDEX_TRAILER_SIZE) {
+            throw new IOException(file + " has a damaged index");
+         }
+      } else {
+         frames = 0;
+         long offset = FrameRecorder.HEADER_SIZE;
+         while (offset + FrameRecorder.CHUNK_HEADER_SIZE <= limit) {
+            int payload = m_oData.getInt((int)offset + 12);
+            long end = offset + FrameRecorder.CHUNK_HEADER_SIZE + payload;
+            if (payload < 0 || end > limit) {
+               break;
+            }
+            frames++;
+            offset = end;
+         }
+      }
+      // Chunks end where the index starts, or where the file does.
+      long chunkLimit = indexOffset >= 0 ? indexOffset : limit;
+      m_aOffsets = new int[frames];
+      m_aTimes = new float[frames];
+      m_aKey = new boolean[frames];
+      long offset = FrameRecorder.HEADER_SIZE;
+      for (int f = 0; f < frames; f++) {
+         if (indexOffset >= 0) {
+            offset =
+               m_oData.getLong((int)indexOffset + f * FrameRecorder.INDEX_ENTRY_SIZE);
+         }
+         if (offset < FrameRecorder.HEADER_SIZE
+            || offset + FrameRecorder.CHUNK_HEADER_SIZE > chunkLimit) {
+            throw new IOException(file + " has a damaged index");
+         }
+         int payload = m_oData.getInt((int)offset + 12);
+         if (payload < 0 || offset + FrameRecorder.CHUNK_HEADER_SIZE + payload > chunkLimit) {
+            throw new IOException(file + " has a damaged frame " + f);
+         }
+         m_aOffsets[f] = (int)offset;
+         m_aTimes[f] = m_oData.getFloat((int)offset + 4);
+         m_aKey[f] = (m_oData.getInt((int)offset + 8) & FrameRecorder.CHUNK_KEY) != 0;
+         offset += FrameRecorder.CHUNK_HEADER_SIZE + payload;
+      }
+      // Delta coded frames are decoded from the key frame before them, and
+      // every other frame is a key frame.
+      if (frames > 0 && !m_aKey[0]) {
+         throw new IOException(file + " does not start with a key frame");
+      }
+   }
+
+   /**
+    * Retrieves the number of recorded frames.
+    *
+    * @return The frame count.
+    */
+   public int getFrameCount() {
+      return m_aOffsets.length;
+   }
+
+   /**
+    * Retrieves the capacity of the recorded pool.
+    *
+    * @return The number of slots per frame.
+    */
+   public int getCapacity() {
+      return m_nCapacity;
+   }
+
+   /**
+    * Retrieves the length of the recording.
+    *
+    * @return The time of the last frame in seconds.
+    */
+   public float getDuration() {
+      return m_aTimes.length == 0 ? 0f : m_aTimes[m_aTimes.length - 1];
+   }
+
+   /**
+    * Finds the frame shown at a time.
+    *
+    * @param time The time in seconds since recording began.
+    * @return The last frame recorded at or before the time, clamped to the
+    *         recording.
+    */
+   public int findFrame(float time) {
+      int low = 0;
+      int high = m_aTimes.length - 1;
+      while (low < high) {
+         int mid = (low + high + 1) >>> 1;
+         if (m_aTimes[mid] <= time) {
+            low = mid;
+         } else {
+            high = mid - 1;
+         }
+      }
+      return low;
+   }
+
+   /**
+    * Decodes a frame into a pool. Slots that were dead when the frame was
+    * recorded get a life of 0.
+    *
+    * @param frame The frame to decode.
+    * @param pool The pool to fill. Must have the recorded capacity.
+    * @throws java.nio.BufferUnderflowException If the frame, or a frame it is
+    *         decoded from, holds fewer values than the recording needs.
+    *         The pool may then be partly filled.
+    */
+   public void readFrame(int frame, ParticlePool pool) {
+      // Nothing decoded so far is continued from if decoding fails.
+      int decoded = m_nDecoded;
+      m_nDecoded = -1;
+      if ((m_nFlags & FrameRecorder.FLAG_DELTA) == 0) {
+         decode(frame);
+      } else {
+         // Continue from the frame decoded last when it lies between the
+         // frame and its key frame, otherwise from the key frame.
+         int start = frame;
+         while (!m_aKey[start]) {
+            start--;
+         }
+         if (decoded >= start && decoded <= frame) {
+            start = decoded + 1;
+         }
+         for (int f = start; f <= frame; f++) {
+            decode(f);
+         }
+      }
+      m_nDecoded = frame;
+      store(pool);
+   }
+
+   /**
+    * Decodes one frame chunk into m_aValues, applying deltas to the values
+    * of the previous frame. Reads no further than the end of the chunk.
+    */
+   private void decode(int frame) {
+      ByteBuffer buffer = m_oData.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      int offset = m_aOffsets[frame];
+      int payload = m_oData.getInt(offset + 12);
+      buffer.limit(offset + FrameRecorder.CHUNK_HEADER_SIZE + payload);
+      buffer.position(offset + FrameRecorder.CHUNK_HEADER_SIZE);
+      boolean delta = (m_nFlags & FrameRecorder.FLAG_DELTA) != 0;
+      boolean quantized = (m_nFlags & FrameRecorder.FLAG_QUANTIZE) != 0;
+      boolean key = m_aKey[frame];
+      int[] values = m_aValues;
+      int capacity = m_nCapacity;
+      for (int c = 0; c < FrameRecorder.CHANNELS; c++) {
+         int base = c * capacity;
+         for (int i = 0; i < capacity; i++) {
+            int previous = key ? 0 : values[base + i];
+            if (delta) {
+               int stored = getVarInt(buffer);
+               if (quantized) {
+                  values[base + i] = previous + ((stored >>> 1) ^ -(stored & 1));
+               } else {
+                  values[base + i] = previous ^ stored;
+               }
+            } else if (c == 7) {
+               values[base + i] = buffer.get() & 0xff;
+            } else if (!quantized) {
+               values[base + i] = buffer.getInt();
+            } else if (c < 3) {
+               values[base + i] = buffer.getShort();
+            } else {
+               values[base + i] = buffer.get() & 0xff;
+            }
+         }
+      }
+   }
+
+   /**
+    * Copies the decoded values into the pool's vertex buffer and sprite
+    * array. The first seven channels are stored in the order of the vertex
+    * buffer.
+    */
+   private void store(ParticlePool pool) {
+      int capacity = m_nCapacity;
+      FloatBuffer target = pool.m_oVertices;
+      boolean quantized = (m_nFlags & FrameRecorder.FLAG_QUANTIZE) != 0;
+      for (int c = 0; c < ParticlePool.VERTEX_SIZE; c++) {
+         int base = c * capacity;
+         float scale = c < 3 ? 1f / FrameRecorder.LOCATION_SCALE : 1f / 255f;
+         for (int i = 0; i < capacity; i++) {
+            int value = m_aValues[base + i];
+            target.put(
+               i * ParticlePool.VERTEX_SIZE + c,
+               quantized ? value * scale : Float.intBitsToFloat(value));
+         }
+      }
+      System.arraycopy(m_aValues, 7 * capacity, pool.m_aSprite, 0, capacity);
+   }
+
+   /**
+    * Reads an unsigned variable-length integer written by FrameRecorder.
+    */
+   private static int getVarInt(ByteBuffer buffer) {
+      int value = 0;
+      int shift = 0;
+      int b;
+      do {
+         b = buffer.get();
+         value |= (b & 0x7f) << shift;
+         shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+   }
+}
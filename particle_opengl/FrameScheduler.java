@@ -0,0 +1,168 @@
+// Import classes for OpenGL.
+import net.java.games.jogl.GLDrawable;
+
+/**
+ * Renders every registered drawable from one thread, each at its own
+ * target frame rate. Unlike a JOGL Animator, which renders as fast as it
+ * can, the scheduler sleeps until the next frame is due, so a set of
+ * particle windows only uses the CPU time their frame rates call for. All
+ * frame timing uses one shared monotonic clock.
+ */
+public class FrameScheduler implements Runnable {
+   // Sleep this many nanoseconds short of the next due frame and yield
+   // for the rest, since sleep() may overshoot by about a millisecond.
+   private static final long SPIN_NANOS = 1500000L;
+   // Longest time to sleep when no target is active.
+   private static final long IDLE_MILLIS = 100L;
+   // Clock origin, so clock values stay small and readable.
+   private static final long CLOCK_ORIGIN = System.nanoTime();
+   // The scheduler shared by all particle worlds.
+   private static FrameScheduler s_oInstance;
+
+   // The registered targets. Replaced, never modified, so the render loop
+   // can iterate it without holding the lock.
+   private volatile FrameTarget[] m_aTargets = new FrameTarget[0];
+   // The thread rendering the targets.
+   private Thread m_oThread;
+
+   /**
+    * Retrieves the scheduler shared by all particle worlds, starting its
+    * thread on first use.
+    *
+    * @return The shared scheduler.
+    */
+   public static synchronized FrameScheduler getInstance() {
+      if (s_oInstance == null) {
+         s_oInstance = new FrameScheduler();
+         s_oInstance.m_oThread = new Thread(s_oInstance, "FrameScheduler");
+         s_oInstance.m_oThread.setDaemon(true);
+         s_oInstance.m_oThread.start();
+      }
+      return s_oInstance;
+   }
+
+   /**
+    * Retrieves the current time of the shared monotonic clock.
+    *
+    * @return The clock time in nanoseconds.
+    */
+   public static long nanoTime() {
+      return System.nanoTime() - CLOCK_ORIGIN;
+   }
+
+   /**
+    * Starts rendering the given drawable at the given frame rate.
+    *
+    * @param drawable The drawable to render.
+    * @param fps The target frame rate.
+    * @return The target, used to change the frame rate, pause rendering
+    *         and read the frame accounting.
+    */
+   public synchronized FrameTarget register(GLDrawable drawable, float fps) {
+      FrameTarget target = new FrameTarget(this, drawable, fps);
+      FrameTarget[] targets = new FrameTarget[m_aTargets.length + 1];
+      System.arraycopy(m_aTargets, 0, targets, 0, m_aTargets.length);
+      targets[m_aTargets.length] = target;
+      m_aTargets = targets;
+      notifyAll();
+      return target;
+   }
+
+   /**
+    * Stops rendering the given target for good.
+    *
+    * @param target The target to remove.
+    */
+   public synchronized void unregister(FrameTarget target) {
+      int index = -1;
+      for (int i = 0; i < m_aTargets.length; i++) {
+         if (m_aTargets[i] == target) {
+            index = i;
+         }
+      }
+      if (index < 0) {
+         return;
+      }
+      FrameTarget[] targets = new FrameTarget[m_aTargets.length - 1];
+      System.arraycopy(m_aTargets, 0, targets, 0, index);
+      System.arraycopy(
+         m_aTargets,
+         index + 1,
+         targets,
+         index,
+         m_aTargets.length - index - 1);
+      m_aTargets = targets;
+   }
+
+   /**
+    * Wakes the render loop so it picks up changed frame rates or resumed
+    * targets straight away.
+    */
+   synchronized void wakeUp() {
+      notifyAll();
+   }
+
+   /**
+    * The render loop: renders every target which is due, then sleeps until
+    * the earliest next frame.
+    */
+   public void run() {
+      while (true) {
+         FrameTarget[] targets = m_aTargets;
+         long now = nanoTime();
+         long nextDue = Long.MAX_VALUE;
+         for (int i = 0; i < targets.length; i++) {
+            FrameTarget target = targets[i];
+            try {
+               if (target.renderIfDue(now)) {
+                  // Rendering takes time; due times are checked against
+                  // the clock at the start of each frame.
+                  now = nanoTime();
+               }
+            } catch (RuntimeException e) {
+               // A broken drawable must not stop the other windows.
+               e.printStackTrace();
+               unregister(target);
+               continue;
+            }
+            if (!target.isPaused()) {
+               nextDue = Math.min(nextDue, target.getNextDue());
+            }
+         }
+         waitUntil(nextDue);
+      }
+   }
+
+   /**
+    * Sleeps, then yields, until the given clock time. Returns early when
+    * woken up by a change to the targets.
+    *
+    * @param due The clock time to wait for, or Long.MAX_VALUE if no target
+    *        is active.
+    */
+   private void waitUntil(long due) {
+      long remaining = due - nanoTime();
+      if (remaining > SPIN_NANOS) {
+         long millis = (remaining - SPIN_NANOS) / 1000000L;
+         if (due == Long.MAX_VALUE) {
+            millis = IDLE_MILLIS;
+         }
+         if (millis > 0) {
+            synchronized (this) {
+               try {
+                  wait(millis);
+               } catch (InterruptedException e) {
+                  return;
+               }
+            }
+         }
+      }
+      while (nanoTime() < due && due != Long.MAX_VALUE) {
+         Thread.yield();
+         // Stop yielding if we were woken for an earlier frame.
+         if (due - nanoTime() > SPIN_NANOS) {
+            return;
+         }
+      }
+   }
+}
@@ -0,0 +1,278 @@
+// Import classes for OpenGL.
+import net.java.games.jogl.GLDrawable;
+
+/**
+ * A drawable registered with the FrameScheduler, together with its target
+ * frame rate and frame accounting. The scheduler thread is the only writer
+ * of the timing fields; other threads may read the counters at any time.
+ *
+ * Pausing does not interrupt a frame being rendered. Work which must not
+ * overlap a frame, such as closing the files the frames are written to,
+ * is handed to pause(Runnable): it runs as soon as the target is idle, on
+ * the scheduler thread if a frame was still being rendered.
+ */
+public class FrameTarget {
+   // The drawable to render.
+   private final GLDrawable m_oDrawable;
+   // Nanoseconds between frames at the target frame rate.
+   private volatile long m_lInterval;
+   // Clock time at which the next frame is due.
+   private long m_lNextDue;
+   // Clock time at which the last frame started.
+   private long m_lLastFrame = -1;
+   // Seconds between the last two frames.
+   private volatile float m_fDeltaTime;
+   // Number of frames rendered.
+   private volatile long m_lFrameCount;
+   // Number of frame slots skipped because a frame started late.
+   private volatile long m_lDroppedFrames;
+   // Paused targets stay registered but are not rendered.
+   private volatile boolean m_bPaused;
+   // Set on resume so the scheduler thread restarts the frame timing.
+   private volatile boolean m_bRestart;
+   // The scheduler this target is registered with.
+   private final FrameScheduler m_oScheduler;
+   // The thread rendering a frame of this target, or null between frames.
+   // Guarded by this target, like m_oOnPaused.
+   private Thread m_oRenderer;
+   // Run by the renderer once the frame it is rendering is done.
+   private Runnable m_oOnPaused;
+
+   /**
+    * Creates a target for the given drawable.
+    *
+    * @param scheduler The scheduler rendering this target.
+    * @param drawable The drawable to render.
+    * @param fps The target frame rate.
+    */
+   FrameTarget(FrameScheduler scheduler, GLDrawable drawable, float fps) {
+      m_oScheduler = scheduler;
+      m_oDrawable = drawable;
+      setTargetFPS(fps);
+   }
+
+   /**
+    * Renders one frame if it is due and updates the accounting.
+    *
+    * @param now The current clock time in nanoseconds.
+    * @return True if a frame was rendered.
+    */
+   boolean renderIfDue(long now) {
+      synchronized (this) {
+         if (m_bPaused) {
+            return false;
+         }
+         m_oRenderer = Thread.currentThread();
+      }
+      try {
+         return render(now);
+      } finally {
+         // Run what was handed over while the frame was rendered, before
+         // anyone waiting in awaitIdle() is let go.
+         while (true) {
+            Runnable onPaused;
+            synchronized (this) {
+               onPaused = m_oOnPaused;
+               m_oOnPaused = null;
+               if (onPaused == null) {
+                  m_oRenderer = null;
+                  notifyAll();
+                  break;
+               }
+            }
+            onPaused.run();
+         }
+      }
+   }
+
+   /**
+    * Renders one frame if it is due, on the thread which claimed it in
+    * renderIfDue().
+    */
+   private boolean render(long now) {
+      if (m_bRestart) {
+         m_bRestart = false;
+         m_lLastFrame = -1;
+         m_lNextDue = now;
+      }
+      if (now < m_lNextDue) {
+         return false;
+      }
+      long interval = m_lInterval;
+      if (m_lLastFrame >= 0) {
+         // Every whole interval we are late by is a frame we never drew.
+         long late = now - m_lNextDue;
+         if (late >= interval) {
+            m_lDroppedFrames += late / interval;
+         }
+         m_fDeltaTime = (now - m_lLastFrame) / 1e9f;
+         m_lNextDue += interval * (late / interval + 1);
+      } else {
+         m_fDeltaTime = interval / 1e9f;
+         m_lNextDue = now + interval;
+      }
+      m_lLastFrame = now;
+      m_oDrawable.display();
+      m_lFrameCount++;
+      return true;
+   }
+
+   /**
+    * Sets the frame rate this target is rendered at.
+    *
+    * @param fps The target frame rate. Must be positive.
+    */
+   public void setTargetFPS(float fps) {
+      m_lInterval = (long)(1e9 / Math.max(fps, 0.1f));
+      if (m_oScheduler != null) {
+         m_oScheduler.wakeUp();
+      }
+   }
+
+   /**
+    * Retrieves the frame rate this target is rendered at.
+    *
+    * @return The target frame rate.
+    */
+   public float getTargetFPS() {
+      return (float)(1e9 / m_lInterval);
+   }
+
+   /**
+    * Stops rendering this target until resume() is called.
+    */
+   public void pause() {
+      pause(null);
+   }
+
+   /**
+    * Stops rendering this target until resume() is called, then runs a
+    * task once no frame is being rendered: straight away on this thread if
+    * the target is idle or this is the thread rendering it, otherwise on
+    * the scheduler thread when its frame is done.
+    *
+    * @param onPaused The task to run, or null.
+    */
+   public void pause(Runnable onPaused) {
+      synchronized (this) {
+         m_bPaused = true;
+         if (onPaused != null
+            && m_oRenderer != null
+            && m_oRenderer != Thread.currentThread()) {
+            m_oOnPaused = chain(m_oOnPaused, onPaused);
+            return;
+         }
+      }
+      if (onPaused != null) {
+         onPaused.run();
+      }
+   }
+
+   /**
+    * Waits until no frame is being rendered and the tasks handed to
+    * pause(Runnable) have run. Returns at once on the thread rendering a
+    * frame.
+    *
+    * @param timeoutMillis How long to wait at most.
+    * @return True if the target is idle, false if the wait timed out or
+    *         was interrupted.
+    */
+   public synchronized boolean awaitIdle(long timeoutMillis) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (m_oRenderer != null && m_oRenderer != Thread.currentThread()) {
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0) {
+            return false;
+         }
+         try {
+            wait(remaining);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Combines two tasks into one running both in turn.
+    */
+   private static Runnable chain(final Runnable first, final Runnable second) {
+      if (first == null) {
+         return second;
+      }
+      return new Runnable() {
+         public void run() {
+            first.run();
+            second.run();
+         }
+      };
+   }
+
+   /**
+    * Resumes rendering after a pause. The frame timing starts over, so the
+    * pause is not counted as dropped frames.
+    */
+   public void resume() {
+      m_bRestart = true;
+      m_bPaused = false;
+      m_oScheduler.wakeUp();
+   }
+
+   /**
+    * Checks whether this target is paused.
+    *
+    * @return True if the target is not being rendered.
+    */
+   public boolean isPaused() {
+      return m_bPaused;
+   }
+
+   /**
+    * Retrieves the clock time at which the next frame is due. Only
+    * meaningful on the scheduler thread.
+    *
+    * @return The due time in nanoseconds.
+    */
+   long getNextDue() {
+      return m_bRestart ? 0 : m_lNextDue;
+   }
+
+   /**
+    * Retrieves the time between the last two frames. Only meaningful while
+    * a frame of this target is being rendered.
+    *
+    * @return The frame time in seconds.
+    */
+   public float getDeltaTime() {
+      return m_fDeltaTime;
+   }
+
+   /**
+    * Retrieves the number of frames rendered so far.
+    *
+    * @return The frame count.
+    */
+   public long getFrameCount() {
+      return m_lFrameCount;
+   }
+
+   /**
+    * Retrieves the number of frames skipped because rendering fell behind
+    * the target frame rate.
+    *
+    * @return The dropped frame count.
+    */
+   public long getDroppedFrames() {
+      return m_lDroppedFrames;
+   }
+
+   /**
+    * Retrieves the drawable rendered by this target.
+    *
+    * @return The drawable.
+    */
+   public GLDrawable getDrawable() {
+      return m_oDrawable;
+   }
+}
@@ -1,14 +1,10 @@
 
-// Import classes used for reading in the byte data for images.
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+// Import classes used for reading in the images.
 import java.io.File;
 import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.nio.FloatBuffer;
 import java.util.Random;
 // Import classes for OpenGL.
-import net.java.games.jogl.Animator;
-import net.java.games.jogl.GLException;
 import net.java.games.jogl.GLEventListener;
 import net.java.games.jogl.GL;
 import net.java.games.jogl.GLDrawable;
@@ -19,28 +15,80 @@ import net.java.games.jogl.GLU;
  *
  */
 public class GLEventHandler implements GLEventListener {
+   // Render modes: each particle as a textured quad, or as a point sprite.
+   public static final int RENDER_QUADS = 0;
+   public static final int RENDER_POINT_SPRITES = 1;
    // The parent object which employs this event handler.
    private ParticleWorld m_oParent;
-   // Create an array of 1 elements holding the texture names.
-   private int[] m_aTextures = new int[1];
-   // Array of bytes from the texture image.
-   private byte[] m_aImagePixelBytes;
-   // Buffered image for the texture.
-   private BufferedImage m_oBufferedImage;
-   // Number of particles to display.
-   private static final int MAX_PARTICLES = new Random().nextInt(1000) + 100;
-   // The array of particles.
-   private Particle[] m_aParticles = new Particle[MAX_PARTICLES];
-   // The animator to drive the display method.
-   private Animator m_oAnimator;
-   
-   private float[] pick = {1f, -1f};
-   private float xDir = pick[new Random().nextInt(2)];
-   private float yDir = pick[new Random().nextInt(2)];
-   private float zDir = pick[new Random().nextInt(2)];
-   
-   private int winWidth;
-   private int winHeight;
+   // The sprite images packed into the texture atlas. Sprite 0 is used
+   // unless the user picks another one.
+   private static final String[] SPRITE_FILES =
+      { "data/Particle2.jpg", "data/Particle.jpg" };
+   // The single texture holding all particle sprites.
+   private TextureAtlas m_oAtlas;
+   // The texture filter currently applied to the atlas.
+   private int m_nAppliedFilter;
+   // Number of particles to display. The particles.count system property
+   // overrides the random count.
+   private static final int MAX_PARTICLES =
+      Integer.getInteger("particles.count", new Random().nextInt(1000) + 100).intValue();
+   // Draws the particles in point sprite mode, created on first use.
+   private PointSpriteRenderer m_oPointSprites;
+   // Height of the viewport in pixels.
+   private int m_nViewportHeight = 1;
+   // Width of the viewport divided by its height.
+   private float m_fAspect = 1f;
+   // Picks the replayed particles worth drawing.
+   private ParticleCuller m_oReplayCuller;
+   // The particles of the world's own layer and the rules that move them.
+   private ParticleSystem m_oParticleSystem;
+   // The particle systems of all layers, the world's own first.
+   private ParticleScene m_oScene;
+   // Most lockstep frames stepped per display, so a world which fell
+   // behind catches up without stalling its window.
+   private static final int MAX_CATCH_UP = 10;
+   // Steps the particles in lockstep with other processes, or null if the
+   // world runs on its own.
+   private LockstepDriver m_oLockstepDriver;
+   // The scheduler entry driving the display method.
+   private FrameTarget m_oFrameTarget;
+   // Frames between key frames of a recording.
+   private static final int KEY_FRAME_INTERVAL = 30;
+   // The recording in progress, or null.
+   private FrameRecorder m_oRecorder;
+   // Time since the recording began, in seconds.
+   private float m_fRecordTime;
+   // The replay in progress, or null.
+   private FrameReplay m_oReplay;
+   // The pool replayed frames are decoded into.
+   private ParticlePool m_oReplayPool;
+   // Position of the replay, in seconds.
+   private float m_fReplayTime;
+   // Frame buffers and encoder threads of an image export.
+   private static final int EXPORT_BUFFERS = 4;
+   private static final int EXPORT_ENCODERS =
+      Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 3));
+   // The image export in progress, or null.
+   private FrameExporter m_oExporter;
+   // Size of the glow image relative to the frame, and radius and number
+   // of the blurs of the post-processor adding the glow and trails to
+   // exported frames.
+   private static final int POST_DOWNSAMPLE = 4;
+   private static final int POST_RADIUS = 3;
+   private static final int POST_PASSES = 3;
+   // How long stopRendering() waits for the frame being rendered and for
+   // the recording and export to be finished after it.
+   private static final long STOP_TIMEOUT_MILLIS = 10000;
+   // Finishes the recording and export. They belong to the render thread,
+   // so this only runs once no frame is being rendered.
+   private final Runnable m_oCloseOutputs = new Runnable() {
+      public void run() {
+         // Write the index so the recording can be replayed quickly.
+         stopRecording();
+         // Let the encoders finish the frames already read back.
+         stopExport(5000);
+      }
+   };
 
    /**
     * Constructor for this event handler.
@@ -60,12 +108,8 @@ public class GLEventHandler implements GLEventListener {
    public void init(GLDrawable drawable) {
       // Obtain the GL instance so we can perform OpenGL functions.
       GL gl = drawable.getGL();
-      // Set up the animator for the drawable.
-      m_oAnimator = new Animator(drawable);
       // Enable smooth shading.
       gl.glShadeModel(GL.GL_SMOOTH);
-      // Bind texture to 2D.
-      gl.glBindTexture(GL.GL_TEXTURE_2D, m_aTextures[0]);
       // Set the background / clear color.
       gl.glClearColor(0.0f, 0.0f, 0.0f, 0.5f);
       // Clear the depth
@@ -83,9 +127,7 @@ public class GLEventHandler implements GLEventListener {
       gl.glHint(GL.GL_POINT_SMOOTH_HINT, GL.GL_NICEST);
       // Enable texture mapping.
       gl.glEnable(GL.GL_TEXTURE_2D);
-      // Load the texture image.
-      loadBMP("data/Particle2.jpg");
-      // Set up texture mappings from the image we have loaded.
+      // Load the sprite images and set up the texture atlas from them.
       loadGLTextures(drawable);
       // Create and initialize the 1000 particles.
       initParticles();
@@ -95,16 +137,31 @@ public class GLEventHandler implements GLEventListener {
          drawable.getSize().getWidth(),
          drawable.getSize().getHeight());
          
-      winWidth = (int)drawable.getSize().getWidth()/2;
-      winHeight = (int)drawable.getSize().getHeight()/2;
+      m_oScene.setBounds(
+         (int)drawable.getSize().getWidth()/2,
+         (int)drawable.getSize().getHeight()/2);
       
-      // Start the animator so our scene is animated.
-      m_oAnimator.start();
+      // In lockstep the particles are replaced at the start of every
+      // session; until the first one the initial particles stand still.
+      Lockstep lockstep = m_oParent.getLockstep();
+      if (lockstep != null) {
+         m_oLockstepDriver =
+            new LockstepDriver(
+               m_oParent,
+               lockstep,
+               m_oParent.getWindowWidth() / 2,
+               m_oParent.getWindowHeight() / 2,
+               true);
+      }
+
+      // Register with the frame scheduler so our scene is animated.
+      m_oFrameTarget =
+         FrameScheduler.getInstance().register(drawable, m_oParent.m_fTargetFPS);
    }
 
    /**
     * Causes OpenGL rendering to the given GLDrawable. In this application,
-    * draws the 1000 particles on the screen.
+    * draws the particles on the screen and advances the simulation.
     * 
     * @param drawable The OpenGL drawable used to display the particles. 
     */
@@ -116,28 +173,250 @@ public class GLEventHandler implements GLEventListener {
       // Reset the view.
       gl.glLoadIdentity();
 
-      Particle particle = null;
-      // Test if we should reset the particles.
-      if (m_oParent.resetParticles) {
-         // We should reset the particles.
-         for (int i = 0; i < MAX_PARTICLES; i++) {
-            ((Particle)m_aParticles[i]).reset(true);
+      // Apply the control changes made since the last frame, all at once.
+      m_oParent.drainControls();
+      // Apply a new texture filter if the user picked one.
+      if (m_oParent.m_nCurrentFilter != m_nAppliedFilter) {
+         m_nAppliedFilter = m_oParent.m_nCurrentFilter;
+         m_oAtlas.setFilter(gl, m_nAppliedFilter);
+      }
+
+      // Clamp the step so a stalled frame does not release a flood of
+      // particles at once.
+      float dt = Math.min(m_oFrameTarget.getDeltaTime(), 0.1f);
+
+      // In lockstep the simulation follows the frames received, also while
+      // a replay is shown, so the world stays in sync.
+      if (m_oLockstepDriver != null) {
+         if (m_oLockstepDriver.join()) {
+            m_oScene = m_oLockstepDriver.getScene();
+            m_oParticleSystem = m_oScene.getSystem(0);
+            m_oScene.setPerspective(45f, m_fAspect, 0.1f, 100f);
          }
-         m_oParent.resetParticles = false;
+         m_oLockstepDriver.advance(MAX_CATCH_UP);
       }
-      
-      // Loop through the Particles array and draw each particle.
-      for (int i = 0; i < MAX_PARTICLES; i++) {
-         // Each particle is handled differently depending on whether it's
-         // alive or not.
-         particle = m_aParticles[i];
-         if (particle.isAlive()) {
-            // This particular particle is alive. 
-            handleLiveParticle(gl, particle);
-         } else {
-            // This particular particle is dead.
-            handleDeadParticle(gl, particle);
+
+      if (m_oReplay != null) {
+         // Show the recorded frame at the replay position instead of the
+         // simulation, which stays where it was.
+         float duration = m_oReplay.getDuration();
+         m_fReplayTime += dt * m_oParent.m_fReplaySpeed;
+         m_fReplayTime = Math.max(0f, Math.min(duration, m_fReplayTime));
+         try {
+            m_oReplay.readFrame(m_oReplay.findFrame(m_fReplayTime), m_oReplayPool);
+         } catch (RuntimeException e) {
+            // A damaged frame ends the replay, not the render loop.
+            System.out.println("Stopping the replay: " + e);
+            toggleReplay();
+            return;
+         }
+         m_oReplayCuller.cullAll(
+            m_oReplayPool,
+            m_oParent.m_fZoom,
+            m_oParent.getParticleRadius());
+         renderParticles(gl, m_oReplayPool, m_oReplayCuller);
+         exportFrame(gl, drawable);
+         return;
+      }
+
+      // Draw the particles picked by the cullers during the last step,
+      // then advance the simulation. Dead particles are restarted by the
+      // emitters during the step. A culler's list is rebuilt first if the
+      // view changed since the step. Recordings hold the world's own layer.
+      renderScene(gl);
+      exportFrame(gl, drawable);
+      if (m_oRecorder != null) {
+         recordFrame(m_oParticleSystem.getPool());
+         m_fRecordTime += dt;
+      }
+      if (m_oLockstepDriver == null) {
+         m_oScene.step(dt);
+      }
+   }
+
+   /**
+    * Starts recording the particles to the world's recording file, or
+    * stops the recording in progress. Only called from the render thread.
+    */
+   protected void toggleRecording() {
+      if (m_oRecorder != null) {
+         stopRecording();
+         return;
+      }
+      if (m_oReplay != null || m_oParticleSystem == null) {
+         return;
+      }
+      File file = m_oParent.getRecordingFile();
+      try {
+         m_oRecorder =
+            new FrameRecorder(
+               file,
+               m_oParticleSystem.getPool().getCapacity(),
+               m_oParent.m_nRecordFlags,
+               KEY_FRAME_INTERVAL);
+         m_fRecordTime = 0f;
+         System.out.println("Recording to " + file + ".");
+      } catch (IOException e) {
+         System.out.println("Cannot record to " + file + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Starts replaying the world's recording file from the beginning, or
+    * returns to the simulation. A recording in progress is finished first.
+    * Only called from the render thread.
+    */
+   protected void toggleReplay() {
+      if (m_oReplay != null) {
+         m_oReplay = null;
+         m_oReplayPool = null;
+         m_oReplayCuller = null;
+         return;
+      }
+      stopRecording();
+      File file = m_oParent.getRecordingFile();
+      try {
+         FrameReplay replay = new FrameReplay(file);
+         if (replay.getFrameCount() == 0) {
+            System.out.println(file + " holds no frames.");
+            return;
          }
+         m_oReplayPool = new ParticlePool(replay.getCapacity());
+         m_oReplayCuller = new ParticleCuller(replay.getCapacity());
+         setPerspective(m_oReplayCuller);
+         m_oReplay = replay;
+         m_fReplayTime = 0f;
+      } catch (IOException e) {
+         System.out.println("Cannot replay " + file + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Starts exporting the rendered frames to the world's export directory,
+    * or stops the export in progress. Only called from the render thread.
+    */
+   protected void toggleExport() {
+      if (m_oExporter != null) {
+         stopExport(0);
+         return;
+      }
+      File directory = m_oParent.getExportDirectory();
+      try {
+         m_oExporter =
+            new FrameExporter(
+               directory,
+               m_oParent.m_nExportFormat,
+               EXPORT_BUFFERS,
+               EXPORT_ENCODERS,
+               new PostProcessor(POST_DOWNSAMPLE, POST_RADIUS, POST_PASSES));
+         System.out.println("Exporting frames to " + directory + ".");
+      } catch (IOException e) {
+         System.out.println("Cannot export to " + directory + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Reads the frame just drawn back from OpenGL and hands it to the
+    * exporter, if an export is in progress, together with the glow and
+    * trails the user picked, which the exporter adds on its own threads.
+    * The frame is dropped if all frame buffers are still busy.
+    *
+    * @param gl The OpenGL reference.
+    * @param drawable The drawable the frame was drawn to.
+    */
+   private void exportFrame(GL gl, GLDrawable drawable) {
+      if (m_oExporter == null) {
+         return;
+      }
+      int width = (int)drawable.getSize().getWidth();
+      int height = (int)drawable.getSize().getHeight();
+      FrameExporter.Frame frame = m_oExporter.acquire(width, height);
+      if (frame == null) {
+         return;
+      }
+      // Rows are tightly packed in the frame buffer.
+      gl.glPixelStorei(GL.GL_PACK_ALIGNMENT, 1);
+      gl.glReadBuffer(GL.GL_BACK);
+      gl.glReadPixels(
+         0,
+         0,
+         width,
+         height,
+         GL.GL_RGB,
+         GL.GL_UNSIGNED_BYTE,
+         frame.getPixels());
+      frame.setEffects(
+         m_oParent.m_fGlowThreshold,
+         m_oParent.m_fGlow,
+         m_oParent.m_fTrail);
+      m_oExporter.submit(frame);
+   }
+
+   /**
+    * Ends the export in progress, if any, and reports its frame counts.
+    *
+    * @param waitMillis How long to wait for the frames still being
+    *        encoded, or 0 not to wait.
+    */
+   private void stopExport(long waitMillis) {
+      if (m_oExporter == null) {
+         return;
+      }
+      FrameExporter exporter = m_oExporter;
+      m_oExporter = null;
+      exporter.close(waitMillis);
+      System.out.println(
+         "Exported " + exporter.getWrittenFrames() + " frames, dropped "
+            + exporter.getDroppedFrames() + ", failed "
+            + exporter.getFailedFrames() + ".");
+   }
+
+   /**
+    * Retrieves the image export in progress.
+    *
+    * @return The exporter, or null if no export is in progress.
+    */
+   protected FrameExporter getExporter() {
+      return m_oExporter;
+   }
+
+   /**
+    * Appends the particles to the recording, ending the recording if the
+    * file cannot be written.
+    *
+    * @param pool The pool to record.
+    */
+   private void recordFrame(ParticlePool pool) {
+      try {
+         m_oRecorder.writeFrame(pool, m_fRecordTime);
+      } catch (IOException e) {
+         System.out.println("Recording failed: " + e.getMessage());
+         stopRecording();
+      }
+   }
+
+   /**
+    * Finishes the recording in progress, if any.
+    */
+   private void stopRecording() {
+      if (m_oRecorder == null) {
+         return;
+      }
+      FrameRecorder recorder = m_oRecorder;
+      m_oRecorder = null;
+      try {
+         recorder.close();
+         System.out.println(
+            "Recorded " + recorder.getFrameCount() + " frames to "
+               + m_oParent.getRecordingFile() + ".");
+         if (recorder.getClampedCount() > 0) {
+            System.out.println(
+               recorder.getClampedCount()
+                  + " particle locations lay outside the recorded range and were"
+                  + " stored at its edge.");
+         }
+      } catch (IOException e) {
+         System.out.println("Cannot finish recording: " + e.getMessage());
       }
    }
 
@@ -184,6 +463,11 @@ public class GLEventHandler implements GLEventListener {
       Double widthDouble = new Double(width);
       Double heightDouble = new Double(height);
       gl.glViewport(0, 0, widthDouble.intValue(), heightDouble.intValue());
+      m_nViewportHeight = heightDouble.intValue();
+      m_fAspect = (float)(width / height);
+      if (m_oScene != null) {
+         m_oScene.setPerspective(45f, m_fAspect, 0.1f, 100f);
+      }
 
       // Select and reset the Projection Matrix.
       gl.glMatrixMode(GL.GL_PROJECTION);
@@ -197,220 +481,227 @@ public class GLEventHandler implements GLEventListener {
    }
 
    /**
-    * Loads in the texture image and retrieve it's bytes as an array.
-    * 
-    * @param filename The path to the texture image file.
+    * Loads the sprite images into a texture atlas and creates the OpenGL
+    * texture from it.
+    *
+    * @param drawable The OpenGL drawable used to display objects.
     */
-   private void loadBMP(String filename) {
-      // Check if file path given exists. If yes, load in the image.
-      File imageFile = new File(filename);
-      if (imageFile.exists() && imageFile.isFile()) {
-         try {
-            // Create a buffered image from the file.
-            m_oBufferedImage = ImageIO.read(imageFile);
-         } catch (IOException e) {
-            // Some error occurred. Show error.
-            m_oParent.showError(
-               e,
-               "Error reading image file: " + e.getMessage());
-         }
-         // Get the bytes to the image file.
-         m_aImagePixelBytes =
-            ((DataBufferByte)m_oBufferedImage.getRaster().getDataBuffer())
-               .getData();
-      } else {
-         // The path given is not a file. Show error and exit application.
-         m_oParent.showError(
-            null,
-            "The image file does not exist or is not a file: '"
-               + filename
-               + "'");
+   private void loadGLTextures(GLDrawable drawable) {
+      GL gl = drawable.getGL();
+      try {
+         m_oAtlas = new TextureAtlas(SPRITE_FILES);
+      } catch (IOException e) {
+         // The images could not be read. Show error and exit application.
+         m_oParent.showError(e, "Error reading image file: " + e.getMessage());
          m_oParent.exitProgram();
+         return;
       }
+      m_nAppliedFilter = m_oParent.m_nCurrentFilter;
+      m_oAtlas.upload(gl, m_nAppliedFilter);
+      m_oParent.m_nSpriteCount = m_oAtlas.getSpriteCount();
+   }
+
+   /**
+    * Creates the particle system of the world's own layer and the scene
+    * holding it.
+    */
+   private void initParticles() {
+      m_oParticleSystem = new ParticleSystem(m_oParent, MAX_PARTICLES);
+      m_oScene = new ParticleScene(m_oParent, m_oParticleSystem, true);
    }
 
    /**
-    * Creates OpenGL textures using the pixels loaded from the image file.
+    * Gives a culler the perspective projection set up by resizeGLScene().
     *
-    * @param drawable The OpenGL drawable used to display objects.
+    * @param culler The culler to set up.
     */
-   private void loadGLTextures(GLDrawable drawable) {
-      GL gl = drawable.getGL();
-      GLU glu = drawable.getGLU();
-      // Set up OpenGL to generate 1 texture.
-      gl.glGenTextures(1, m_aTextures);
-      // Generate nice texture.
-      generateTexture(gl, 0, GL.GL_LINEAR, GL.GL_LINEAR);
+   private void setPerspective(ParticleCuller culler) {
+      culler.setPerspective(45f, m_fAspect, 0.1f, 100f);
    }
 
    /**
-    * Generates OpenGL textures using the given parameters.
-    * 
-    * @param gl The GL instance.
-    * @param id The texture ID.
-    * @param filterTypeMin The filter type to use for image is smaller 
-    *        than the object.
-    * @param filterTypeMax The filter type to use when image is larger 
-    *        than the object.
+    * Draws the particles picked by a culler in the render mode the user
+    * picked.
+    *
+    * @param gl The OpenGL reference.
+    * @param pool The pool holding the particles.
+    * @param culler The culler holding the slots of the particles to draw.
     */
-   private void generateTexture(
-      GL gl,
-      int id,
-      int filterTypeMin,
-      int filterTypeMax) {
-      // Bind the texture to 2D
-      gl.glBindTexture(GL.GL_TEXTURE_2D, m_aTextures[id]);
-      // Create the actual texture passing in the pixel byte array.
-      gl.glTexImage2D(
-         GL.GL_TEXTURE_2D,
-         0,
-         3,
-         m_oBufferedImage.getWidth(),
-         m_oBufferedImage.getHeight(),
-         0,
-         GL.GL_RGB,
-         GL.GL_UNSIGNED_BYTE,
-         m_aImagePixelBytes);
-      gl.glTexParameteri(
-         GL.GL_TEXTURE_2D,
-         GL.GL_TEXTURE_MAG_FILTER,
-         filterTypeMax);
-      gl.glTexParameteri(
-         GL.GL_TEXTURE_2D,
-         GL.GL_TEXTURE_MIN_FILTER,
-         filterTypeMin);
+   private void renderParticles(GL gl, ParticlePool pool, ParticleCuller culler) {
+      int[] visible = culler.getVisible();
+      int count = culler.getVisibleCount();
+      if (m_oParent.m_nRenderMode != RENDER_POINT_SPRITES) {
+         drawParticles(gl, pool, visible, count);
+         return;
+      }
+      if (m_oPointSprites == null
+         || m_oPointSprites.getCapacity() < pool.getCapacity()) {
+         m_oPointSprites = new PointSpriteRenderer(pool.getCapacity());
+      }
+      m_oPointSprites.draw(
+         gl,
+         pool,
+         visible,
+         count,
+         m_oAtlas,
+         m_oParent.m_fZoom,
+         m_oParent.m_fSizeStart,
+         m_oParent.m_fSizeEnd,
+         m_nViewportHeight);
    }
 
    /**
-    * Initializes the array of particles.
+    * Draws the particles of every layer picked by their cullers, rebuilding
+    * a culler's list first if the view changed since the last step. Point
+    * sprites of all layers are drawn in one batch.
+    *
+    * @param gl The OpenGL reference.
     */
-   private void initParticles() {
-      // Create new particles for the array and ask each particle 
-      // to initialize itself.
-      for (int i = 0; i < MAX_PARTICLES; i++) {
-         m_aParticles[i] = new Particle(m_oParent);
+   private void renderScene(GL gl) {
+      ParticleScene scene = m_oScene;
+      int systems = scene.getSystemCount();
+      float zoom = m_oParent.m_fZoom;
+      float radius = m_oParent.getParticleRadius();
+      for (int s = 0; s < systems; s++) {
+         ParticleSystem system = scene.getSystem(s);
+         ParticleCuller culler = system.getCuller();
+         if (!culler.isValid(zoom, radius)) {
+            culler.cullAll(system.getPool(), zoom, radius);
+         }
+      }
+      if (systems == 1) {
+         renderParticles(gl, m_oParticleSystem.getPool(), m_oParticleSystem.getCuller());
+         return;
+      }
+      if (m_oParent.m_nRenderMode != RENDER_POINT_SPRITES) {
+         for (int s = 0; s < systems; s++) {
+            ParticleSystem system = scene.getSystem(s);
+            ParticleCuller culler = system.getCuller();
+            drawParticles(gl, system.getPool(), culler.getVisible(), culler.getVisibleCount());
+         }
+         return;
+      }
+      int capacity = scene.getCapacity();
+      if (m_oPointSprites == null || m_oPointSprites.getCapacity() < capacity) {
+         m_oPointSprites = new PointSpriteRenderer(capacity);
       }
+      m_oPointSprites.begin(m_oAtlas);
+      for (int s = 0; s < systems; s++) {
+         ParticleSystem system = scene.getSystem(s);
+         ParticleCuller culler = system.getCuller();
+         m_oPointSprites.add(system.getPool(), culler.getVisible(), culler.getVisibleCount());
+      }
+      m_oPointSprites.flush(
+         gl,
+         m_oAtlas,
+         zoom,
+         m_oParent.m_fSizeStart,
+         m_oParent.m_fSizeEnd,
+         m_nViewportHeight);
    }
 
    /**
-    * Draw the live particle using triangle strips.
+    * Draws the given particles as textured quads between a single
+    * glBegin/glEnd pair. Every particle samples its own sprite from the
+    * atlas, so no texture is rebound while drawing.
     * 
     * @param gl The OpenGL reference.
-    * @param particle The Particle object to display.
+    * @param pool The pool holding the particles.
+    * @param visible The slots of the particles to draw.
+    * @param count The number of slots in the list.
     */
-   private void handleLiveParticle(GL gl, Particle particle) {
-      // The current location of the particle; Need to account for the zoom
-      // distance so user can zoom in and out the particles.
-      float x = particle.getXLocation();
-      float y = particle.getYLocation();
-      float z = particle.getZLocation() + m_oParent.m_fZoom;
-
-      // Set the color to draw this particle. The particle's life value
-      // will act as the alpha.
-      gl.glColor4f(
-         particle.getRed(),
-         particle.getGreen(),
-         particle.getBlue(),
-         particle.getLife());
-      // Draw the particle using triangle strips.
-      gl.glBegin(GL.GL_TRIANGLE_STRIP);
-      // Map the texture and create the vertices for the particle.
-      gl.glTexCoord2d(1, 1);
-      gl.glVertex3f(x + .5f, y + .5f, z);
-      gl.glTexCoord2d(0, 1);
-      gl.glVertex3f(x - .5f, y + .5f, z);
-      gl.glTexCoord2d(1, 0);
-      gl.glVertex3f(x + .5f, y - .5f, z);
-      gl.glTexCoord2d(0, 0);
-      gl.glVertex3f(x - .5f, y - .5f, z);
+   private void drawParticles(GL gl, ParticlePool pool, int[] visible, int count) {
+      float[] uv = m_oAtlas.getUVRects();
+      // Need to account for the zoom distance so user can zoom in and out
+      // the particles.
+      float zoom = m_oParent.m_fZoom;
+      FloatBuffer vertices = pool.getVertices();
+      m_oAtlas.bind(gl);
+      gl.glBegin(GL.GL_QUADS);
+      for (int k = 0; k < count; k++) {
+         int i = visible[k];
+         int o = i * ParticlePool.VERTEX_SIZE;
+         float x = vertices.get(o + ParticlePool.OFFSET_X);
+         float y = vertices.get(o + ParticlePool.OFFSET_Y);
+         float z = vertices.get(o + ParticlePool.OFFSET_Z) + zoom;
+         int r = pool.m_aSprite[i] * 4;
+         float u0 = uv[r];
+         float v0 = uv[r + 1];
+         float u1 = uv[r + 2];
+         float v1 = uv[r + 3];
+         // Set the color to draw this particle. The particle's life value
+         // will act as the alpha.
+         gl.glColor4f(
+            vertices.get(o + ParticlePool.OFFSET_RED),
+            vertices.get(o + ParticlePool.OFFSET_GREEN),
+            vertices.get(o + ParticlePool.OFFSET_BLUE),
+            vertices.get(o + ParticlePool.OFFSET_LIFE));
+         // Map the texture and create the vertices for the particle.
+         gl.glTexCoord2f(u1, v1);
+         gl.glVertex3f(x + .5f, y + .5f, z);
+         gl.glTexCoord2f(u0, v1);
+         gl.glVertex3f(x - .5f, y + .5f, z);
+         gl.glTexCoord2f(u0, v0);
+         gl.glVertex3f(x - .5f, y - .5f, z);
+         gl.glTexCoord2f(u1, v0);
+         gl.glVertex3f(x + .5f, y - .5f, z);
+      }
       gl.glEnd();
+   }
 
-      // Update the particles' properties.
-      updateParticle(particle);
+   /**
+    * Stops rendering this world and finishes the recording and export in
+    * progress. A frame still being rendered is let finish first, so the
+    * recording and export are closed on the render thread after it;
+    * returns once they are closed or after STOP_TIMEOUT_MILLIS.
+    */
+   protected synchronized void stopRendering() {
+      if (m_oFrameTarget == null) {
+         m_oCloseOutputs.run();
+         return;
+      }
+      m_oFrameTarget.pause(m_oCloseOutputs);
+      if (!m_oFrameTarget.awaitIdle(STOP_TIMEOUT_MILLIS)) {
+         System.out.println("The recording and export are still being finished.");
+      }
    }
 
    /**
-    * Updates the properties of the given particle. For example, its life,
-    * location, etc. must be updated.
-    * 
-    * @param particle The Particle to be updated.
+    * Starts rendering this world again after stopRendering().
     */
-   private void updateParticle(Particle particle) {
-      // Update the particles' life. Each particle's life decreases.
-      particle.setLife(particle.getLife() - particle.getLifeFade());
-      // Update the particles's location. The particle's new location is
-      // equal to it's current location + it's directional speed/slowdown.
-
-      if(particle.getXLocation() > winWidth-1 || particle.getXLocation() < 1)
-      	xDir = xDir * -1;
-      particle.setXLocation(
-         (particle.getXLocation() + (xDir/10))
-            + particle.getXSpeed() / (m_oParent.m_fSlowDown * 1000));
-      if(particle.getYLocation() > winHeight-1 || particle.getYLocation() < 1)
-      	yDir = yDir * -1;
-      particle.setYLocation(
-         (particle.getYLocation() + (yDir/10))
-            + particle.getYSpeed() / (m_oParent.m_fSlowDown * 1000));
-      if(particle.getZLocation() > 99 || particle.getZLocation() < 1)
-      	zDir = zDir * -1;
-      particle.setZLocation(
-         (particle.getZLocation() + (zDir/10))
-            + particle.getZSpeed() / (m_oParent.m_fSlowDown * 1000));
-
-       
-       /*
-      particle.setXLocation(
-         particle.getXLocation()
-            + particle.getXSpeed() / (m_oParent.m_fSlowDown * 1000));
-      particle.setYLocation(
-         particle.getYLocation()
-            + particle.getYSpeed() / (m_oParent.m_fSlowDown * 1000));
-      particle.setZLocation(
-         particle.getZLocation()
-            + particle.getZSpeed() / (m_oParent.m_fSlowDown * 1000));
-       */     
-
-      // Update the particle's directional speed. It's directional speed
-      // is affected by the direction's gravitional pull.
-      particle.setXSpeed(particle.getXSpeed() + particle.getXGravity());
-      particle.setYSpeed(particle.getYSpeed() + particle.getYGravity());
-      particle.setZSpeed(particle.getZSpeed() + particle.getZGravity());
-      // Update the particle's X and Y gravitional pulls. The gravitational
-      // pulls can be modified by the user.
-      particle.setXGravity(
-         particle.getXGravity() + m_oParent.m_fXGravityChange);
-      particle.setYGravity(
-         particle.getYGravity() + m_oParent.m_fYGravityChange);
+   protected synchronized void startRendering() {
+      if (m_oFrameTarget != null) {
+         m_oFrameTarget.resume();
+      }
    }
 
    /**
-    * Handles the dead particle given. A dead particle is restarted by
-    * given it full life, new color, new speeds, etc.
-    * 
-    * @param gl The OpenGL reference.
-    * @param particle The dead particle to be processed.
+    * Changes the frame rate this world is rendered at.
+    *
+    * @param fps The target frame rate.
     */
-   private void handleDeadParticle(GL gl, Particle particle) {
-      // Ask the particle to restart itself.
-      particle.restart();
+   protected void setTargetFPS(float fps) {
+      if (m_oFrameTarget != null) {
+         m_oFrameTarget.setTargetFPS(fps);
+      }
    }
 
    /**
-    * Stops the Animator. 
+    * Retrieves the particle system of this world.
+    *
+    * @return The particle system, or null before OpenGL is initialized.
     */
-   protected synchronized void stopAnimator() {
-      m_oAnimator.stop();
+   protected ParticleSystem getParticleSystem() {
+      return m_oParticleSystem;
    }
 
    /**
-    * Starts the Animator.
+    * Retrieves the scheduler entry of this world, which holds its frame
+    * accounting.
+    *
+    * @return The frame target, or null before OpenGL is initialized.
     */
-   protected synchronized void startAnimator() {
-      try {
-         m_oAnimator.start();
-      } catch (GLException e) {
-         // Ignore error. Sometimes an exception will be thrown saying
-         // the animator is already started.
-      }
+   protected FrameTarget getFrameTarget() {
+      return m_oFrameTarget;
    }
 }
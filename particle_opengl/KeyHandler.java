@@ -47,11 +47,11 @@ public class KeyHandler implements KeyListener {
             */
          case KeyEvent.VK_PAGE_UP :
             // The page up key is pressed: Zoom in objects on display.
-            m_oParent.m_fZoom += .5f;
+            m_oParent.changeZoom(true);
             break;
          case KeyEvent.VK_PAGE_DOWN :
             // The page down key: Zoom out.
-            m_oParent.m_fZoom += -.5f;
+            m_oParent.changeZoom(false);
             break;
          case KeyEvent.VK_8 :
             // The number 8 key is pressed. Increase upward pull.
@@ -71,7 +71,7 @@ public class KeyHandler implements KeyListener {
             break;
          case KeyEvent.VK_H :
             // The 'h' key restarts the particles ('h' for home)
-            m_oParent.resetParticles = true;
+            m_oParent.requestReset();
             break;
          case KeyEvent.VK_F1 :
             // The F1 key speeds up particles (i.e. The slow-down factor
@@ -83,6 +83,125 @@ public class KeyHandler implements KeyListener {
             // increases.)
             m_oParent.changeSlowDown(true);
             break;
+         case KeyEvent.VK_F :
+            // The 'f' key cycles the texture filter.
+            m_oParent.toggleFilter();
+            break;
+         case KeyEvent.VK_T :
+            // The 't' key switches new particles to the next sprite.
+            m_oParent.cycleSprite();
+            break;
+         case KeyEvent.VK_I :
+            // The 'i' key prints the frame accounting.
+            m_oParent.printStats();
+            break;
+         case KeyEvent.VK_E :
+            // The 'e' key switches between the refill, stream and burst
+            // emission modes.
+            m_oParent.cycleEmitterMode();
+            break;
+         case KeyEvent.VK_B :
+            // The 'b' key emits a burst of particles in burst mode.
+            m_oParent.requestBurst();
+            break;
+         case KeyEvent.VK_F3 :
+            // The F3 key lowers the stream emission rate.
+            m_oParent.changeEmissionRate(false);
+            break;
+         case KeyEvent.VK_F4 :
+            // The F4 key raises the stream emission rate.
+            m_oParent.changeEmissionRate(true);
+            break;
+         case KeyEvent.VK_F5 :
+         case KeyEvent.VK_F6 :
+         case KeyEvent.VK_F7 :
+         case KeyEvent.VK_F8 :
+            // F5 to F8 jump to the scenes stored as presets 1 to 4. With
+            // shift held down, they store the current scene instead.
+            int preset = keyCode - KeyEvent.VK_F5 + 1;
+            if (e.isShiftDown()) {
+               m_oParent.requestSaveSnapshot(preset);
+            } else {
+               m_oParent.requestRestoreSnapshot(preset);
+            }
+            break;
+         case KeyEvent.VK_R :
+            // The 'r' key starts or stops recording the particles.
+            m_oParent.toggleRecording();
+            break;
+         case KeyEvent.VK_P :
+            // The 'p' key plays back the recording, or returns to the
+            // live particles.
+            m_oParent.toggleReplay();
+            break;
+         case KeyEvent.VK_X :
+            // The 'x' key starts or stops exporting the frames as images.
+            m_oParent.toggleExport();
+            break;
+         case KeyEvent.VK_S :
+            // The 's' key switches between quads and point sprites.
+            m_oParent.toggleRenderMode();
+            break;
+         case KeyEvent.VK_F9 :
+         case KeyEvent.VK_F10 :
+            // F9 and F10 shrink and grow point sprites when they are
+            // emitted.
+            m_oParent.changeSize(false, keyCode == KeyEvent.VK_F10);
+            break;
+         case KeyEvent.VK_F11 :
+         case KeyEvent.VK_F12 :
+            // F11 and F12 shrink and grow point sprites when they die.
+            m_oParent.changeSize(true, keyCode == KeyEvent.VK_F12);
+            break;
+         case KeyEvent.VK_G :
+            // The 'g' key switches the particles between moving as a
+            // swarm, a flock and a fluid.
+            m_oParent.cycleBehavior();
+            break;
+         case KeyEvent.VK_V :
+            // The 'v' key switches to the next integrator.
+            m_oParent.cycleIntegrator();
+            break;
+         case KeyEvent.VK_L :
+            // The 'l' key points the force, emitter and sprite keys at
+            // the next particle layer.
+            m_oParent.cycleLayer();
+            break;
+         case KeyEvent.VK_INSERT :
+            // The insert key adds a particle layer.
+            m_oParent.addLayer();
+            break;
+         case KeyEvent.VK_DELETE :
+            // The delete key removes the layer the keys point at.
+            m_oParent.removeLayer();
+            break;
+         case KeyEvent.VK_OPEN_BRACKET :
+         case KeyEvent.VK_CLOSE_BRACKET :
+            // The '[' and ']' keys shorten and lengthen the simulation
+            // step.
+            m_oParent.changeTimeStep(keyCode == KeyEvent.VK_CLOSE_BRACKET);
+            break;
+         case KeyEvent.VK_SEMICOLON :
+         case KeyEvent.VK_QUOTE :
+            // The ';' and ' keys dim and brighten the glow of
+            // exported frames.
+            m_oParent.changeGlow(keyCode == KeyEvent.VK_QUOTE);
+            break;
+         case KeyEvent.VK_MINUS :
+         case KeyEvent.VK_EQUALS :
+            // The '-' and '=' keys shorten and lengthen the trails of
+            // exported frames.
+            m_oParent.changeTrail(keyCode == KeyEvent.VK_EQUALS);
+            break;
+         case KeyEvent.VK_COMMA :
+            // The ',' key slows the replay down, or plays it backwards
+            // once the speed drops below zero.
+            m_oParent.changeReplaySpeed(false);
+            break;
+         case KeyEvent.VK_PERIOD :
+            // The '.' key speeds the replay up.
+            m_oParent.changeReplaySpeed(true);
+            break;
          case KeyEvent.VK_UP :
             // The up arrow key increases the user configurable Y speed.
             m_oParent.changeYSpeed(true);
@@ -0,0 +1,627 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Keeps the worlds of several processes, possibly on several machines, in
+ * lockstep over UDP, so every process can show its own share of the
+ * worlds while all of them stay in sync.
+ *
+ * One process is the master. It runs a clock at a fixed frame rate and,
+ * for every tick, broadcasts a frame record: the frame number and the
+ * control commands posted for any world during that tick. The followers
+ * receive the records. Every process, the master included, steps each of
+ * its worlds once per record with the same time step, after applying the
+ * world's commands, starting from particles seeded with the session's
+ * seed. The simulation is deterministic, so no particle state is sent.
+ *
+ * Every packet repeats the latest records, so a lost packet costs
+ * nothing. A follower which misses more than that, or starts after the
+ * session began, asks the master to join. The master then starts a new
+ * session with a new seed, and every process restarts its worlds at the
+ * session's first frame.
+ *
+ * Configured with system properties:
+ *
+ * - particles.lockstep: "master" or "follower"; lockstep is off otherwise;
+ * - particles.lockstep.port: the UDP port of this process (default 9123);
+ * - particles.lockstep.targets: the addresses the master sends to, as a
+ *   comma separated list of host:port, which may be broadcast addresses
+ *   (default 255.255.255.255 at the port);
+ * - particles.lockstep.fps: the frame rate of the master's clock
+ *   (default 60);
+ * - particles.lockstep.seed: the seed of the master's first session
+ *   (random by default).
+ */
+public class Lockstep {
+   // Results of read().
+   public static final int FRAME_READY = 0;
+   public static final int FRAME_PENDING = 1;
+   public static final int FRAME_LOST = 2;
+   public static final int FRAME_STALE = 3;
+   // Default UDP port.
+   public static final int DEFAULT_PORT = 9123;
+
+   // Marks a lockstep packet ("PLCK").
+   private static final int MAGIC = 0x504c434b;
+   // Incremented whenever the packet layout changes.
+   private static final int VERSION = 1;
+   // Packet types.
+   private static final int TYPE_FRAMES = 0;
+   private static final int TYPE_JOIN = 1;
+   // Records kept for worlds which render slower than the clock; a power
+   // of two.
+   private static final int HISTORY = 1024;
+   // Most records repeated in one packet.
+   private static final int REDUNDANCY = 16;
+   // Largest packet sent, small enough not to be fragmented.
+   private static final int MAX_PACKET = 1400;
+   // Bytes of the frames packet header: magic, version, type, seed,
+   // session start, time step, newest frame and record count.
+   private static final int HEADER_SIZE = 30;
+   // Bytes of a record without its commands, and of one command.
+   private static final int RECORD_SIZE = 2;
+   private static final int COMMAND_SIZE = 11;
+   // Most commands per frame, so a record always fits into a packet.
+   private static final int MAX_COMMANDS =
+      (MAX_PACKET - HEADER_SIZE - RECORD_SIZE) / COMMAND_SIZE;
+   // Milliseconds between two join requests of a follower.
+   private static final long JOIN_INTERVAL = 1000;
+
+   // The process's lockstep, or null if lockstep is off.
+   private static Lockstep s_oInstance;
+   // Whether the system properties have been read.
+   private static boolean s_bConfigured = false;
+
+   /**
+    * The control commands of one frame, for all worlds or for one.
+    */
+   public static class Commands {
+      // The frame the commands belong to.
+      int m_nFrame;
+      // Number of commands.
+      int m_nCount;
+      // World, command, argument and value of each command.
+      int[] m_aWorld = new int[4];
+      int[] m_aCommand = new int[4];
+      int[] m_aArgument = new int[4];
+      float[] m_aValue = new float[4];
+
+      /**
+       * Appends a command, growing the arrays if needed.
+       */
+      void add(int world, int command, int argument, float value) {
+         if (m_nCount == m_aWorld.length) {
+            int size = m_nCount * 2;
+            m_aWorld = grow(m_aWorld, size);
+            m_aCommand = grow(m_aCommand, size);
+            m_aArgument = grow(m_aArgument, size);
+            float[] values = new float[size];
+            System.arraycopy(m_aValue, 0, values, 0, m_nCount);
+            m_aValue = values;
+         }
+         m_aWorld[m_nCount] = world;
+         m_aCommand[m_nCount] = command;
+         m_aArgument[m_nCount] = argument;
+         m_aValue[m_nCount] = value;
+         m_nCount++;
+      }
+
+      /**
+       * Hands every command to a handler, in the order they were posted.
+       *
+       * @param handler The handler applying the commands.
+       */
+      public void apply(ControlHandler handler) {
+         for (int c = 0; c < m_nCount; c++) {
+            handler.applyControl(m_aCommand[c], m_aArgument[c], m_aValue[c]);
+         }
+      }
+
+      private static int[] grow(int[] values, int size) {
+         int[] grown = new int[size];
+         System.arraycopy(values, 0, grown, 0, values.length);
+         return grown;
+      }
+   }
+
+   /**
+    * A run of frames started from one seed.
+    */
+   public static class Session {
+      // The seed all particles of the session are derived from.
+      final long m_lSeed;
+      // The first frame of the session.
+      final int m_nStart;
+      // Seconds each frame advances the simulation by.
+      final float m_fDeltaTime;
+
+      Session(long seed, int start, float deltaTime) {
+         m_lSeed = seed;
+         m_nStart = start;
+         m_fDeltaTime = deltaTime;
+      }
+
+      /**
+       * Retrieves the seed of one world's particles.
+       *
+       * @param worldId The number of the world.
+       * @return The seed.
+       */
+      public long getSeed(int worldId) {
+         return m_lSeed + worldId * 0x9E3779B97F4A7C15L;
+      }
+
+      /**
+       * Retrieves the first frame of the session.
+       *
+       * @return The frame number.
+       */
+      public int getStart() {
+         return m_nStart;
+      }
+
+      /**
+       * Retrieves the time step of every frame.
+       *
+       * @return The time step in seconds.
+       */
+      public float getDeltaTime() {
+         return m_fDeltaTime;
+      }
+   }
+
+   // True for the master, false for a follower.
+   private final boolean m_bMaster;
+   // The socket packets are sent and received on.
+   private final DatagramSocket m_oSocket;
+   // Addresses the master sends its records to.
+   private final SocketAddress[] m_aTargets;
+   // Seconds per frame of the master's clock.
+   private final float m_fDeltaTime;
+   // Seed of the master's first session.
+   private final long m_lFirstSeed;
+   // The current session, or null before the first one.
+   private volatile Session m_oSession;
+   // The records of the latest frames, indexed by frame number.
+   private final Commands[] m_aRecords = new Commands[HISTORY];
+   // The newest frame recorded, or -1.
+   private int m_nNewest = -1;
+   // Commands posted on the master since the last tick.
+   private final Commands m_oPending = new Commands();
+   // Set when the master should start a new session on its next tick.
+   private boolean m_bSessionRequested = false;
+   // The follower's master, taken from the last packet received.
+   private SocketAddress m_oMaster;
+   // Time of the follower's last join request.
+   private long m_lLastJoin = 0;
+   // The packet being sent by the master.
+   private final ByteBuffer m_oPacket = ByteBuffer.allocate(MAX_PACKET);
+
+   /**
+    * Retrieves the lockstep of this process, starting it on first use as
+    * the system properties say.
+    *
+    * @return The lockstep, or null if lockstep is off or its socket could
+    *         not be opened.
+    */
+   public static synchronized Lockstep getInstance() {
+      if (!s_bConfigured) {
+         s_bConfigured = true;
+         String role = System.getProperty("particles.lockstep");
+         if ("master".equals(role) || "follower".equals(role)) {
+            int port = Integer.getInteger("particles.lockstep.port", DEFAULT_PORT).intValue();
+            try {
+               s_oInstance =
+                  new Lockstep(
+                     "master".equals(role),
+                     port,
+                     System.getProperty("particles.lockstep.targets", "255.255.255.255:" + port),
+                     Integer.getInteger("particles.lockstep.fps", 60).intValue(),
+                     Long.getLong("particles.lockstep.seed", new Random().nextLong()).longValue());
+               s_oInstance.start();
+            } catch (IOException e) {
+               System.out.println("Cannot start lockstep on port " + port + ": " + e.getMessage());
+            }
+         }
+      }
+      return s_oInstance;
+   }
+
+   /**
+    * Creates a lockstep. Nothing is sent or received until start().
+    *
+    * @param master True for the master, false for a follower.
+    * @param port The UDP port to bind to; 0 picks a free port.
+    * @param targets The addresses the master sends to, as a comma
+    *        separated list of host:port. Ignored by followers.
+    * @param fps The frame rate of the master's clock.
+    * @param seed The seed of the master's first session.
+    * @throws IOException If the socket cannot be opened or a target is
+    *         not a valid address.
+    */
+   public Lockstep(boolean master, int port, String targets, int fps, long seed)
+      throws IOException {
+      m_bMaster = master;
+      m_fDeltaTime = 1f / Math.max(1, fps);
+      m_lFirstSeed = seed;
+      m_oSocket = new DatagramSocket(port);
+      m_oSocket.setBroadcast(true);
+      for (int r = 0; r < HISTORY; r++) {
+         m_aRecords[r] = new Commands();
+      }
+      if (master) {
+         String[] list = targets.split(",");
+         m_aTargets = new SocketAddress[list.length];
+         for (int t = 0; t < list.length; t++) {
+            String target = list[t].trim();
+            int colon = target.lastIndexOf(':');
+            if (colon < 0) {
+               throw new IOException("Lockstep target " + target + " has no port");
+            }
+            m_aTargets[t] =
+               new InetSocketAddress(
+                  target.substring(0, colon),
+                  Integer.parseInt(target.substring(colon + 1)));
+         }
+      } else {
+         m_aTargets = new SocketAddress[0];
+      }
+   }
+
+   /**
+    * Starts the master's clock, or the follower's listener. Both master
+    * threads keep the process alive; the follower's listener does not.
+    */
+   public void start() {
+      Thread receiver = new Thread(new Runnable() {
+         public void run() {
+            receive();
+         }
+      }, m_bMaster ? "Lockstep join listener" : "Lockstep listener");
+      receiver.setDaemon(!m_bMaster);
+      receiver.start();
+      if (m_bMaster) {
+         Thread clock = new Thread(new Runnable() {
+            public void run() {
+               runClock();
+            }
+         }, "Lockstep clock");
+         clock.setPriority(Thread.MAX_PRIORITY);
+         clock.start();
+      }
+   }
+
+   /**
+    * Checks whether this process is the master.
+    *
+    * @return True for the master.
+    */
+   public boolean isMaster() {
+      return m_bMaster;
+   }
+
+   /**
+    * Retrieves the UDP port this process listens on.
+    *
+    * @return The local port.
+    */
+   public int getPort() {
+      return m_oSocket.getLocalPort();
+   }
+
+   /**
+    * Retrieves the current session.
+    *
+    * @return The session, or null before the first one.
+    */
+   public Session getSession() {
+      return m_oSession;
+   }
+
+   /**
+    * Posts a control command for a world. On the master the command is
+    * sent with the next frame and applied by every process showing the
+    * world; followers drop it, as only the master controls the worlds.
+    *
+    * @param world The number of the world.
+    * @param command One of the ControlQueue.CMD_ constants.
+    * @param argument The parameter for CMD_ADD and CMD_SET.
+    * @param value The value for CMD_ADD and CMD_SET.
+    * @return False if the command was dropped.
+    */
+   public synchronized boolean post(int world, int command, int argument, float value) {
+      if (!m_bMaster || m_oPending.m_nCount >= MAX_COMMANDS) {
+         return false;
+      }
+      m_oPending.add(world, command, argument, value);
+      return true;
+   }
+
+   /**
+    * Copies the commands of one world for one frame.
+    *
+    * @param session The session the caller is in.
+    * @param frame The frame to read.
+    * @param world The number of the world.
+    * @param out Receives the world's commands.
+    * @return FRAME_READY if the frame was copied; FRAME_PENDING if it has
+    *         not arrived yet; FRAME_LOST if it is no longer kept; or
+    *         FRAME_STALE if a new session has started.
+    */
+   public synchronized int read(Session session, int frame, int world, Commands out) {
+      if (session != m_oSession) {
+         return FRAME_STALE;
+      }
+      if (frame > m_nNewest) {
+         return FRAME_PENDING;
+      }
+      Commands record = m_aRecords[frame & (HISTORY - 1)];
+      if (record.m_nFrame != frame) {
+         return FRAME_LOST;
+      }
+      out.m_nFrame = frame;
+      out.m_nCount = 0;
+      for (int c = 0; c < record.m_nCount; c++) {
+         if (record.m_aWorld[c] == world) {
+            out.add(world, record.m_aCommand[c], record.m_aArgument[c], record.m_aValue[c]);
+         }
+      }
+      return FRAME_READY;
+   }
+
+   /**
+    * Asks for a new session, after a world fell too far behind to catch
+    * up. The master starts one on its next tick; a follower asks its
+    * master to.
+    */
+   public void requestSession() {
+      if (m_bMaster) {
+         synchronized (this) {
+            m_bSessionRequested = true;
+         }
+      } else {
+         requestJoin();
+      }
+   }
+
+   /**
+    * Ticks the master's clock at the configured frame rate.
+    */
+   private void runClock() {
+      long interval = (long)(m_fDeltaTime * 1e9);
+      long next = FrameScheduler.nanoTime();
+      while (true) {
+         long wait = next - FrameScheduler.nanoTime();
+         if (wait > 0) {
+            try {
+               Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            } catch (InterruptedException e) {
+               return;
+            }
+            continue;
+         }
+         tick();
+         next += interval;
+         // After a long stall, carry on from now rather than sending a
+         // flood of frames.
+         if (FrameScheduler.nanoTime() - next > interval * 10) {
+            next = FrameScheduler.nanoTime();
+         }
+      }
+   }
+
+   /**
+    * Records the next frame on the master and sends it, together with the
+    * latest frames before it, to all targets.
+    */
+   void tick() {
+      int length;
+      synchronized (this) {
+         int frame = m_nNewest + 1;
+         if (m_oSession == null || m_bSessionRequested) {
+            long seed = m_oSession == null ? m_lFirstSeed : new Random().nextLong();
+            m_oSession = new Session(seed, frame, m_fDeltaTime);
+            m_bSessionRequested = false;
+            System.out.println("Lockstep session started at frame " + frame + ".");
+         }
+         Commands record = m_aRecords[frame & (HISTORY - 1)];
+         record.m_nFrame = frame;
+         record.m_nCount = 0;
+         for (int c = 0; c < m_oPending.m_nCount; c++) {
+            record.add(
+               m_oPending.m_aWorld[c],
+               m_oPending.m_aCommand[c],
+               m_oPending.m_aArgument[c],
+               m_oPending.m_aValue[c]);
+         }
+         m_oPending.m_nCount = 0;
+         m_nNewest = frame;
+         length = encodeFrames();
+      }
+      for (int t = 0; t < m_aTargets.length; t++) {
+         try {
+            m_oSocket.send(new DatagramPacket(m_oPacket.array(), length, m_aTargets[t]));
+         } catch (IOException e) {
+            // A target that cannot be reached now may be reachable on the
+            // next tick; the repeated records cover the gap.
+         }
+      }
+   }
+
+   /**
+    * Writes the newest frames of the session into the packet buffer, as
+    * many as fit.
+    *
+    * @return The length of the packet.
+    */
+   private int encodeFrames() {
+      Session session = m_oSession;
+      int first = m_nNewest;
+      int size = HEADER_SIZE + recordSize(m_aRecords[first & (HISTORY - 1)]);
+      while (first > session.m_nStart && m_nNewest - first + 1 < REDUNDANCY) {
+         int more = recordSize(m_aRecords[(first - 1) & (HISTORY - 1)]);
+         if (size + more > MAX_PACKET) {
+            break;
+         }
+         size += more;
+         first--;
+      }
+      ByteBuffer packet = m_oPacket;
+      packet.clear();
+      packet.putInt(MAGIC);
+      packet.put((byte)VERSION);
+      packet.put((byte)TYPE_FRAMES);
+      packet.putLong(session.m_lSeed);
+      packet.putInt(session.m_nStart);
+      packet.putFloat(session.m_fDeltaTime);
+      packet.putInt(m_nNewest);
+      packet.putShort((short)(m_nNewest - first + 1));
+      for (int frame = first; frame <= m_nNewest; frame++) {
+         Commands record = m_aRecords[frame & (HISTORY - 1)];
+         packet.putShort((short)record.m_nCount);
+         for (int c = 0; c < record.m_nCount; c++) {
+            packet.putShort((short)record.m_aWorld[c]);
+            packet.put((byte)record.m_aCommand[c]);
+            packet.putInt(record.m_aArgument[c]);
+            packet.putFloat(record.m_aValue[c]);
+         }
+      }
+      return packet.position();
+   }
+
+   /**
+    * Retrieves the number of bytes a record takes in a packet.
+    */
+   private static int recordSize(Commands record) {
+      return RECORD_SIZE + record.m_nCount * COMMAND_SIZE;
+   }
+
+   /**
+    * Receives packets until the socket is closed: frame records on a
+    * follower, join requests on the master.
+    */
+   private void receive() {
+      byte[] data = new byte[MAX_PACKET];
+      DatagramPacket packet = new DatagramPacket(data, data.length);
+      while (!m_oSocket.isClosed()) {
+         try {
+            packet.setLength(data.length);
+            m_oSocket.receive(packet);
+         } catch (IOException e) {
+            continue;
+         }
+         ByteBuffer buffer = ByteBuffer.wrap(data, 0, packet.getLength());
+         if (buffer.remaining() < 6
+            || buffer.getInt() != MAGIC
+            || buffer.get() != VERSION) {
+            continue;
+         }
+         int type = buffer.get();
+         try {
+            if (type == TYPE_JOIN && m_bMaster) {
+               System.out.println(
+                  "Lockstep follower " + packet.getSocketAddress() + " joined.");
+               requestSession();
+            } else if (type == TYPE_FRAMES && !m_bMaster) {
+               decodeFrames(buffer, packet.getSocketAddress());
+            }
+         } catch (RuntimeException e) {
+            // A truncated or damaged packet; the next one repeats it.
+         }
+      }
+   }
+
+   /**
+    * Stores the records of a frames packet on a follower.
+    *
+    * @param buffer The packet, positioned after the type.
+    * @param from The address of the master.
+    */
+   private void decodeFrames(ByteBuffer buffer, SocketAddress from) {
+      long seed = buffer.getLong();
+      int start = buffer.getInt();
+      float deltaTime = buffer.getFloat();
+      int newest = buffer.getInt();
+      int count = buffer.getShort();
+      int first = newest - count + 1;
+      boolean join = false;
+      synchronized (this) {
+         m_oMaster = from;
+         Session session = m_oSession;
+         if (session == null || session.m_lSeed != seed || session.m_nStart != start) {
+            if (first != start) {
+               // The session began before this follower listened; only a
+               // new one can be followed.
+               join = true;
+               count = 0;
+            } else {
+               m_oSession = new Session(seed, start, deltaTime);
+               m_nNewest = start - 1;
+            }
+         } else if (first > m_nNewest + 1) {
+            // More frames were lost than a packet repeats.
+            join = true;
+            count = 0;
+         }
+         for (int r = 0; r < count; r++) {
+            int frame = first + r;
+            int commands = buffer.getShort();
+            Commands record = null;
+            if (frame == m_nNewest + 1) {
+               record = m_aRecords[frame & (HISTORY - 1)];
+               record.m_nFrame = frame;
+               record.m_nCount = 0;
+            }
+            for (int c = 0; c < commands; c++) {
+               int world = buffer.getShort();
+               int command = buffer.get();
+               int argument = buffer.getInt();
+               float value = buffer.getFloat();
+               if (record != null) {
+                  record.add(world, command, argument, value);
+               }
+            }
+            if (record != null) {
+               m_nNewest = frame;
+            }
+         }
+      }
+      if (join) {
+         requestJoin();
+      }
+   }
+
+   /**
+    * Asks the master for a new session, at most once per JOIN_INTERVAL.
+    */
+   private void requestJoin() {
+      SocketAddress master;
+      synchronized (this) {
+         long now = System.currentTimeMillis();
+         if (m_oMaster == null || now - m_lLastJoin < JOIN_INTERVAL) {
+            return;
+         }
+         m_lLastJoin = now;
+         master = m_oMaster;
+      }
+      byte[] data = new byte[6];
+      ByteBuffer.wrap(data).putInt(MAGIC).put((byte)VERSION).put((byte)TYPE_JOIN);
+      try {
+         m_oSocket.send(new DatagramPacket(data, data.length, master));
+      } catch (IOException e) {
+         // Asked again on the next gap.
+      }
+   }
+
+   /**
+    * Stops sending and receiving.
+    */
+   public void close() {
+      m_oSocket.close();
+   }
+}
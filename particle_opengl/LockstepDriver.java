@@ -0,0 +1,131 @@
+import java.util.Random;
+
+/**
+ * Steps one world through the frames of its process's lockstep (see
+ * Lockstep). At the start of every session the world's controls are put
+ * back to their initial values and a new scene is seeded from the
+ * session, so every process showing the world starts from the same
+ * particles; after that each frame applies the world's commands and steps
+ * every layer with the session's fixed time step.
+ */
+public class LockstepDriver {
+   // The world being stepped.
+   private final ParticleWorld m_oWorld;
+   // Where the frames come from.
+   private final Lockstep m_oLockstep;
+   // Bounds given to every new scene. They must not depend on the size of
+   // the window, which may differ between processes.
+   private final int m_nWidth;
+   private final int m_nHeight;
+   // True to keep the particles in direct memory for drawing.
+   private final boolean m_bDirect;
+   // The session the scene belongs to, or null before the first one.
+   private Lockstep.Session m_oSession;
+   // The particles of the current session.
+   private ParticleScene m_oScene;
+   // The next frame to step.
+   private int m_nFrame;
+   // The world's commands of the frame being stepped.
+   private final Lockstep.Commands m_oCommands = new Lockstep.Commands();
+
+   /**
+    * Creates a driver for a world.
+    *
+    * @param world The world to step.
+    * @param lockstep The lockstep of the process.
+    * @param width The bound of the particles on the x axis.
+    * @param height The bound of the particles on the y axis.
+    * @param direct True to keep the particles' vertex buffer in direct
+    *        memory for drawing; false for worlds which are only simulated.
+    */
+   public LockstepDriver(
+      ParticleWorld world,
+      Lockstep lockstep,
+      int width,
+      int height,
+      boolean direct) {
+      m_oWorld = world;
+      m_oLockstep = lockstep;
+      m_nWidth = width;
+      m_nHeight = height;
+      m_bDirect = direct;
+   }
+
+   /**
+    * Starts the lockstep's current session if the world is not in it yet:
+    * restarts the world's controls and creates the session's scene. Only
+    * called from the thread stepping the world.
+    *
+    * @return True if a new scene was created.
+    */
+   public boolean join() {
+      Lockstep.Session session = m_oLockstep.getSession();
+      if (session == null || session == m_oSession) {
+         return false;
+      }
+      m_oSession = session;
+      m_nFrame = session.getStart();
+      Random random = new Random(session.getSeed(m_oWorld.getWorldId()));
+      m_oWorld.restart(random.nextLong());
+      // The random count is always drawn, so processes that override it
+      // with the same particles.count still pick the same particles.
+      int count = random.nextInt(1000) + 100;
+      int capacity = Integer.getInteger("particles.count", count).intValue();
+      m_oScene =
+         new ParticleScene(
+            m_oWorld,
+            new ParticleSystem(m_oWorld, capacity, m_bDirect, random),
+            m_bDirect);
+      m_oScene.setBounds(m_nWidth, m_nHeight);
+      return true;
+   }
+
+   /**
+    * Steps the world through the frames that have arrived, applying the
+    * world's commands before each step. A world which fell too far behind
+    * asks for a new session.
+    *
+    * @param maxSteps The most frames to step, so a world that fell behind
+    *        catches up over several calls rather than stalling.
+    * @return The number of frames stepped.
+    */
+   public int advance(int maxSteps) {
+      if (m_oScene == null) {
+         return 0;
+      }
+      int worldId = m_oWorld.getWorldId();
+      int steps = 0;
+      while (steps < maxSteps) {
+         int status = m_oLockstep.read(m_oSession, m_nFrame, worldId, m_oCommands);
+         if (status == Lockstep.FRAME_LOST) {
+            m_oLockstep.requestSession();
+         }
+         if (status != Lockstep.FRAME_READY) {
+            break;
+         }
+         m_oCommands.apply(m_oWorld);
+         m_oScene.step(m_oSession.getDeltaTime());
+         m_nFrame++;
+         steps++;
+      }
+      return steps;
+   }
+
+   /**
+    * Retrieves the particles of the current session.
+    *
+    * @return The scene, or null before the first session.
+    */
+   public ParticleScene getScene() {
+      return m_oScene;
+   }
+
+   /**
+    * Retrieves the next frame to be stepped.
+    *
+    * @return The frame number.
+    */
+   public int getFrame() {
+      return m_nFrame;
+   }
+}
@@ -0,0 +1,275 @@
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Finds the particles near a location without testing all pairs. The
+ * live particles are sorted into cubic cells once per step with a
+ * counting sort; a query then only looks at the 27 cells around the
+ * location. Cells are hashed into a table, so the particles may spread
+ * out arbitrarily far without the grid growing.
+ *
+ * A query only returns the particles within the radius, filtering out
+ * those of other cells that share a hash entry; no particle is returned
+ * twice. When there are more of them than the caller has room for, the
+ * nearest are kept, so a cap on the neighbours thins out dense regions
+ * evenly instead of favouring the cells visited first.
+ */
+public class NeighbourGrid {
+   // Edge length of a cell.
+   private float m_fCellSize = 1f;
+   // Number of hash entries minus one; the number is a power of two.
+   private final int m_nMask;
+   // First position in m_aSorted of each hash entry, and one entry more
+   // holding the end of the last one.
+   private final int[] m_aStart;
+   // Slots of the live particles, ordered by hash entry.
+   private final int[] m_aSorted;
+   // Hash entry of each slot, or -1 for dead particles.
+   private final int[] m_aCell;
+   // Hash entries already visited by the current query.
+   private final int[] m_aVisited = new int[27];
+   // Locations of the particles sorted by the last build().
+   private FloatBuffer m_oVertices;
+
+   /**
+    * Creates a grid for pools of the given capacity.
+    *
+    * @param capacity The number of particles in the pool.
+    */
+   public NeighbourGrid(int capacity) {
+      int size = 1;
+      while (size < capacity * 2) {
+         size <<= 1;
+      }
+      m_nMask = size - 1;
+      m_aStart = new int[size + 1];
+      m_aSorted = new int[capacity];
+      m_aCell = new int[capacity];
+   }
+
+   /**
+    * Sorts the live particles of a pool into cells.
+    *
+    * @param pool The pool to sort. Must not have more slots than the
+    *        capacity given to the constructor.
+    * @param cellSize The edge length of a cell; usually the radius the
+    *        neighbours are searched in.
+    */
+   public void build(ParticlePool pool, float cellSize) {
+      m_fCellSize = cellSize;
+      m_oVertices = pool.m_oVertices;
+      int capacity = pool.getCapacity();
+      int[] start = m_aStart;
+      int[] cell = m_aCell;
+      Arrays.fill(start, 0);
+      float scale = 1f / cellSize;
+      FloatBuffer v = pool.m_oVertices;
+      for (int i = 0; i < capacity; i++) {
+         if (!pool.isAlive(i)) {
+            cell[i] = -1;
+            continue;
+         }
+         int o = i * ParticlePool.VERTEX_SIZE;
+         int c =
+            hash(
+               floor(v.get(o + ParticlePool.OFFSET_X) * scale),
+               floor(v.get(o + ParticlePool.OFFSET_Y) * scale),
+               floor(v.get(o + ParticlePool.OFFSET_Z) * scale));
+         cell[i] = c;
+         start[c + 1]++;
+      }
+      for (int c = 0; c <= m_nMask; c++) {
+         start[c + 1] += start[c];
+      }
+      // Place each particle, moving the entry's start forward, then move
+      // the starts back.
+      for (int i = 0; i < capacity; i++) {
+         int c = cell[i];
+         if (c >= 0) {
+            m_aSorted[start[c]++] = i;
+         }
+      }
+      for (int c = m_nMask; c > 0; c--) {
+         start[c] = start[c - 1];
+      }
+      start[0] = 0;
+   }
+
+   /**
+    * Collects the particles within a radius of a location.
+    *
+    * @param x The x coordinate of the location.
+    * @param y The y coordinate of the location.
+    * @param z The z coordinate of the location.
+    * @param radius The distance within which particles are collected. No
+    *        more than the cell size given to build().
+    * @param self The slot of a particle to leave out, usually the one at
+    *        the location, or -1.
+    * @param result Receives the slots of the nearest max particles, in no
+    *        particular order.
+    * @param distances Receives the distance squared of each of them.
+    * @param max The maximum number of particles to collect.
+    * @return The number of particles within the radius, which may be more
+    *         than max; min(max, return value) slots were written.
+    */
+   public int query(
+      float x,
+      float y,
+      float z,
+      float radius,
+      int self,
+      int[] result,
+      float[] distances,
+      int max) {
+      return query(x, y, z, radius, self, result, distances, max, m_aVisited);
+   }
+
+   /**
+    * Collects the particles within a radius of a location, like query(),
+    * using the caller's scratch space so several threads can query the
+    * grid at once.
+    *
+    * @param x The x coordinate of the location.
+    * @param y The y coordinate of the location.
+    * @param z The z coordinate of the location.
+    * @param radius The distance within which particles are collected. No
+    *        more than the cell size given to build().
+    * @param self The slot of a particle to leave out, or -1.
+    * @param result Receives the slots of the nearest max particles, in no
+    *        particular order.
+    * @param distances Receives the distance squared of each of them.
+    * @param max The maximum number of particles to collect.
+    * @param visited Scratch space for at least 27 entries.
+    * @return The number of particles within the radius, which may be more
+    *         than max; min(max, return value) slots were written.
+    */
+   public int query(
+      float x,
+      float y,
+      float z,
+      float radius,
+      int self,
+      int[] result,
+      float[] distances,
+      int max,
+      int[] visited) {
+      FloatBuffer v = m_oVertices;
+      float radius2 = radius * radius;
+      float scale = 1f / m_fCellSize;
+      int cx = floor(x * scale);
+      int cy = floor(y * scale);
+      int cz = floor(z * scale);
+      int found = 0;
+      int seenCount = 0;
+      for (int dz = -1; dz <= 1; dz++) {
+         for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+               int c = hash(cx + dx, cy + dy, cz + dz);
+               // Two of the cells may share a hash entry.
+               boolean seen = false;
+               for (int s = 0; s < seenCount; s++) {
+                  seen |= visited[s] == c;
+               }
+               if (seen) {
+                  continue;
+               }
+               visited[seenCount++] = c;
+               int end = m_aStart[c + 1];
+               for (int k = m_aStart[c]; k < end; k++) {
+                  int j = m_aSorted[k];
+                  if (j == self) {
+                     continue;
+                  }
+                  int o = j * ParticlePool.VERTEX_SIZE;
+                  float ox = x - v.get(o + ParticlePool.OFFSET_X);
+                  float oy = y - v.get(o + ParticlePool.OFFSET_Y);
+                  float oz = z - v.get(o + ParticlePool.OFFSET_Z);
+                  float d2 = ox * ox + oy * oy + oz * oz;
+                  if (d2 >= radius2) {
+                     continue;
+                  }
+                  if (found < max) {
+                     result[found] = j;
+                     distances[found] = d2;
+                     if (found == max - 1) {
+                        // Full: from now on result is a heap with the
+                        // farthest particle on top.
+                        for (int h = max / 2 - 1; h >= 0; h--) {
+                           siftDown(result, distances, max, h);
+                        }
+                     }
+                  } else if (max > 0 && d2 < distances[0]) {
+                     // Replace the farthest particle kept.
+                     result[0] = j;
+                     distances[0] = d2;
+                     siftDown(result, distances, max, 0);
+                  }
+                  found++;
+               }
+            }
+         }
+      }
+      return found;
+   }
+
+   /**
+    * Moves an entry of a heap of particles down until no entry below it is
+    * farther away.
+    */
+   private static void siftDown(int[] result, float[] distances, int count, int h) {
+      int slot = result[h];
+      float d2 = distances[h];
+      while (true) {
+         int child = 2 * h + 1;
+         if (child >= count) {
+            break;
+         }
+         if (child + 1 < count && distances[child + 1] > distances[child]) {
+            child++;
+         }
+         if (distances[child] <= d2) {
+            break;
+         }
+         result[h] = result[child];
+         distances[h] = distances[child];
+         h = child;
+      }
+      result[h] = slot;
+      distances[h] = d2;
+   }
+
+   /**
+    * Retrieves the slots of the live particles ordered by cell, so
+    * particles which are close together follow each other. Only the first
+    * getCount() entries are valid.
+    *
+    * @return The sorted slots. Must not be modified.
+    */
+   public int[] getSorted() {
+      return m_aSorted;
+   }
+
+   /**
+    * Retrieves the number of particles sorted by the last build().
+    *
+    * @return The number of live particles.
+    */
+   public int getCount() {
+      return m_aStart[m_nMask + 1];
+   }
+
+   /**
+    * Maps a cell to its hash entry.
+    */
+   private int hash(int x, int y, int z) {
+      return (x * 73856093 ^ y * 19349663 ^ z * 83492791) & m_nMask;
+   }
+
+   /**
+    * Rounds down to the next integer, also for negative values.
+    */
+   private static int floor(float value) {
+      int i = (int)value;
+      return value < i ? i - 1 : i;
+   }
+}
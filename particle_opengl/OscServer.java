@@ -0,0 +1,480 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives Open Sound Control messages over UDP and turns them into
+ * control commands, so Max patches (udpsend) can drive the worlds. The
+ * commands are posted to the world's control queue and take effect at the
+ * next simulation step; in lockstep they go to the master's next frame.
+ *
+ * Addresses have the form /world/N/name, where N is the world number and
+ * name is one of:
+ *
+ * - a parameter, set to the first argument: zoom, xgravity, ygravity,
+ *   slowdown, xspeed, yspeed, rate, burstcount, replayspeed, sizestart,
+ *   sizeend, flockradius, separation, alignment, cohesion, fluidradius,
+ *   restdensity, stiffness, viscosity, timestep, glow, glowthreshold,
+ *   trail; or gravity and speed, which set x to the first argument and
+ *   y to the second, if given. glow, glowthreshold and trail only change
+ *   exported frames, not the window.
+ *   Appending /add adds the arguments instead (/world/3/zoom/add -1);
+ * - an action without arguments: reset, burst, filter, emitter, sprite,
+ *   render, behavior, integrator, record, replay, export, nextlayer,
+ *   removelayer;
+ * - save or restore, with the preset number as the argument; layer, with
+ *   the layer the force, emitter and sprite controls apply to; or
+ *   addlayer, with the particle budget of the new layer (0 for as many
+ *   particles as the world's own).
+ *
+ * Arguments may be floats, integers, doubles or booleans. Bundles are
+ * unpacked and their messages applied at once; time tags are ignored.
+ *
+ * The server receives into a preallocated buffer and parses messages in
+ * place, so handling a message allocates nothing.
+ *
+ * Started when the particles.osc.port system property is set.
+ */
+public class OscServer implements Runnable {
+   // Largest packet received.
+   private static final int MAX_PACKET = 8192;
+   // Most arguments of a message that are used.
+   private static final int MAX_ARGUMENTS = 2;
+   // Deepest nesting of bundles unpacked.
+   private static final int MAX_DEPTH = 4;
+   // Kinds of names: a parameter set or added to, an action, or an action
+   // taking a number, such as a snapshot preset.
+   private static final int KIND_PARAMETER = 0;
+   private static final int KIND_ACTION = 1;
+   private static final int KIND_PRESET = 2;
+
+   // The names after /world/N/, with their kind, command and parameters.
+   private static final String[] NAMES = {
+      "zoom", "gravity", "xgravity", "ygravity", "slowdown",
+      "speed", "xspeed", "yspeed", "rate", "burstcount",
+      "replayspeed", "sizestart", "sizeend", "flockradius", "separation",
+      "alignment", "cohesion", "fluidradius", "restdensity", "stiffness",
+      "viscosity", "timestep", "glow", "glowthreshold", "trail",
+      "reset", "burst", "filter", "emitter", "sprite",
+      "render", "behavior", "integrator", "record", "replay",
+      "export", "nextlayer", "removelayer",
+      "save", "restore", "layer", "addlayer"};
+   private static final int[] KINDS = {
+      KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER,
+      KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER,
+      KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER,
+      KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER,
+      KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER, KIND_PARAMETER,
+      KIND_ACTION, KIND_ACTION, KIND_ACTION, KIND_ACTION, KIND_ACTION,
+      KIND_ACTION, KIND_ACTION, KIND_ACTION, KIND_ACTION, KIND_ACTION,
+      KIND_ACTION, KIND_ACTION, KIND_ACTION,
+      KIND_PRESET, KIND_PRESET, KIND_PRESET, KIND_PRESET};
+   // The parameter set by the first argument, or the action's command.
+   private static final int[] FIRST = {
+      ControlQueue.PARAM_ZOOM,
+      ControlQueue.PARAM_X_GRAVITY,
+      ControlQueue.PARAM_X_GRAVITY,
+      ControlQueue.PARAM_Y_GRAVITY,
+      ControlQueue.PARAM_SLOW_DOWN,
+      ControlQueue.PARAM_X_SPEED,
+      ControlQueue.PARAM_X_SPEED,
+      ControlQueue.PARAM_Y_SPEED,
+      ControlQueue.PARAM_EMISSION_RATE,
+      ControlQueue.PARAM_BURST_COUNT,
+      ControlQueue.PARAM_REPLAY_SPEED,
+      ControlQueue.PARAM_SIZE_START,
+      ControlQueue.PARAM_SIZE_END,
+      ControlQueue.PARAM_FLOCK_RADIUS,
+      ControlQueue.PARAM_SEPARATION,
+      ControlQueue.PARAM_ALIGNMENT,
+      ControlQueue.PARAM_COHESION,
+      ControlQueue.PARAM_FLUID_RADIUS,
+      ControlQueue.PARAM_REST_DENSITY,
+      ControlQueue.PARAM_STIFFNESS,
+      ControlQueue.PARAM_VISCOSITY,
+      ControlQueue.PARAM_TIME_STEP,
+      ControlQueue.PARAM_GLOW,
+      ControlQueue.PARAM_GLOW_THRESHOLD,
+      ControlQueue.PARAM_TRAIL,
+      ControlQueue.CMD_RESET,
+      ControlQueue.CMD_BURST,
+      ControlQueue.CMD_NEXT_FILTER,
+      ControlQueue.CMD_NEXT_EMITTER_MODE,
+      ControlQueue.CMD_NEXT_SPRITE,
+      ControlQueue.CMD_NEXT_RENDER_MODE,
+      ControlQueue.CMD_NEXT_BEHAVIOR,
+      ControlQueue.CMD_NEXT_INTEGRATOR,
+      ControlQueue.CMD_TOGGLE_RECORDING,
+      ControlQueue.CMD_TOGGLE_REPLAY,
+      ControlQueue.CMD_TOGGLE_EXPORT,
+      ControlQueue.CMD_NEXT_LAYER,
+      ControlQueue.CMD_REMOVE_LAYER,
+      ControlQueue.CMD_SAVE_SNAPSHOT,
+      ControlQueue.CMD_RESTORE_SNAPSHOT,
+      ControlQueue.CMD_SELECT_LAYER,
+      ControlQueue.CMD_ADD_LAYER};
+   // The parameter set by the second argument, or -1.
+   private static final int[] SECOND = new int[NAMES.length];
+   // The names as ASCII bytes, compared against the received addresses.
+   private static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+   static {
+      for (int n = 0; n < NAMES.length; n++) {
+         NAME_BYTES[n] = ascii(NAMES[n]);
+         SECOND[n] = -1;
+      }
+      SECOND[1] = ControlQueue.PARAM_Y_GRAVITY;
+      SECOND[5] = ControlQueue.PARAM_Y_SPEED;
+   }
+   private static final byte[] WORLD_PREFIX = ascii("/world/");
+   private static final byte[] ADD_SUFFIX = ascii("/add");
+   private static final byte[] BUNDLE = ascii("#bundle");
+
+   // The process's server, or null if it is off.
+   private static OscServer s_oInstance;
+   // Whether the system properties have been read.
+   private static boolean s_bConfigured = false;
+
+   // The socket messages arrive on.
+   private final DatagramSocket m_oSocket;
+   // The receive buffer and the packet and buffer wrapping it.
+   private final byte[] m_aData = new byte[MAX_PACKET];
+   private final DatagramPacket m_oPacket = new DatagramPacket(m_aData, MAX_PACKET);
+   private final ByteBuffer m_oBuffer = ByteBuffer.wrap(m_aData);
+   // The arguments of the message being handled.
+   private final float[] m_aArguments = new float[MAX_ARGUMENTS];
+   // The process's lockstep, for worlds this process does not show.
+   private final Lockstep m_oLockstep = Lockstep.getInstance();
+   // Number of messages that could not be handled.
+   private volatile int m_nIgnored = 0;
+
+   /**
+    * Retrieves the OSC server of this process, starting it on first use if
+    * the particles.osc.port system property is set.
+    *
+    * @return The server, or null if it is off or its socket could not be
+    *         opened.
+    */
+   public static synchronized OscServer getInstance() {
+      if (!s_bConfigured) {
+         s_bConfigured = true;
+         Integer port = Integer.getInteger("particles.osc.port");
+         if (port != null) {
+            try {
+               s_oInstance = new OscServer(port.intValue());
+               Thread thread = new Thread(s_oInstance, "OSC server");
+               thread.setDaemon(true);
+               thread.setPriority(Thread.MAX_PRIORITY);
+               thread.start();
+               System.out.println("Listening for OSC on port " + s_oInstance.getPort() + ".");
+            } catch (IOException e) {
+               System.out.println("Cannot listen for OSC on port " + port + ": " + e.getMessage());
+            }
+         }
+      }
+      return s_oInstance;
+   }
+
+   /**
+    * Creates a server. Nothing is received until run() is called.
+    *
+    * @param port The UDP port to listen on; 0 picks a free port.
+    * @throws IOException If the socket cannot be opened.
+    */
+   public OscServer(int port) throws IOException {
+      m_oSocket = new DatagramSocket(port);
+   }
+
+   /**
+    * Retrieves the UDP port the server listens on.
+    *
+    * @return The local port.
+    */
+   public int getPort() {
+      return m_oSocket.getLocalPort();
+   }
+
+   /**
+    * Retrieves the number of messages that could not be handled, because
+    * they were malformed or their address is unknown.
+    *
+    * @return The number of ignored messages.
+    */
+   public int getIgnoredCount() {
+      return m_nIgnored;
+   }
+
+   /**
+    * Receives and handles packets until the socket is closed.
+    */
+   public void run() {
+      while (!m_oSocket.isClosed()) {
+         try {
+            m_oPacket.setLength(MAX_PACKET);
+            m_oSocket.receive(m_oPacket);
+         } catch (IOException e) {
+            continue;
+         }
+         handlePacket(m_oPacket.getLength());
+      }
+   }
+
+   /**
+    * Stops receiving.
+    */
+   public void close() {
+      m_oSocket.close();
+   }
+
+   /**
+    * Handles a packet in the receive buffer.
+    *
+    * @param length The length of the packet.
+    */
+   void handlePacket(int length) {
+      try {
+         handleElement(0, length, 0);
+      } catch (RuntimeException e) {
+         // Read past the end of a truncated packet.
+         m_nIgnored++;
+      }
+   }
+
+   /**
+    * Handles a message or a bundle.
+    *
+    * @param start The offset of the element in the receive buffer.
+    * @param end The offset after its last byte.
+    * @param depth The number of bundles the element is nested in.
+    */
+   private void handleElement(int start, int end, int depth) {
+      byte[] data = m_aData;
+      if (end - start >= 16 && matches(data, start, BUNDLE) && data[start + BUNDLE.length] == 0) {
+         if (depth >= MAX_DEPTH) {
+            m_nIgnored++;
+            return;
+         }
+         // Skip the tag and the time tag, then unpack the elements.
+         int position = start + 16;
+         while (position + 4 <= end) {
+            int size = m_oBuffer.getInt(position);
+            position += 4;
+            if (size < 0 || position + size > end) {
+               m_nIgnored++;
+               return;
+            }
+            handleElement(position, position + size, depth + 1);
+            position += size;
+         }
+         return;
+      }
+      handleMessage(start, end);
+   }
+
+   /**
+    * Handles a message, posting the control commands its address and
+    * arguments name.
+    *
+    * @param start The offset of the message in the receive buffer.
+    * @param end The offset after its last byte.
+    */
+   private void handleMessage(int start, int end) {
+      byte[] data = m_aData;
+      int addressEnd = terminator(data, start, end);
+      if (addressEnd < 0 || !matches(data, start, WORLD_PREFIX)) {
+         m_nIgnored++;
+         return;
+      }
+
+      // The world number.
+      int position = start + WORLD_PREFIX.length;
+      int worldId = 0;
+      int digits = 0;
+      while (position < addressEnd && data[position] >= '0' && data[position] <= '9' && digits < 9) {
+         worldId = worldId * 10 + data[position] - '0';
+         position++;
+         digits++;
+      }
+      if (digits == 0 || position >= addressEnd || data[position] != '/') {
+         m_nIgnored++;
+         return;
+      }
+      position++;
+
+      // The name, possibly followed by /add.
+      int nameEnd = position;
+      while (nameEnd < addressEnd && data[nameEnd] != '/') {
+         nameEnd++;
+      }
+      boolean add = false;
+      if (nameEnd < addressEnd) {
+         if (addressEnd - nameEnd != ADD_SUFFIX.length || !matches(data, nameEnd, ADD_SUFFIX)) {
+            m_nIgnored++;
+            return;
+         }
+         add = true;
+      }
+      int name = findName(data, position, nameEnd);
+      if (name < 0 || (add && KINDS[name] != KIND_PARAMETER)) {
+         m_nIgnored++;
+         return;
+      }
+
+      // The type tags and arguments. A message without type tags has no
+      // arguments.
+      int count = 0;
+      int tags = pad(addressEnd + 1 - start) + start;
+      if (tags < end && data[tags] == ',') {
+         int tagsEnd = terminator(data, tags, end);
+         if (tagsEnd < 0) {
+            m_nIgnored++;
+            return;
+         }
+         int argument = pad(tagsEnd + 1 - start) + start;
+         for (int t = tags + 1; t < tagsEnd; t++) {
+            float value;
+            switch (data[t]) {
+               case 'f' :
+                  value = m_oBuffer.getFloat(argument);
+                  argument += 4;
+                  break;
+               case 'i' :
+                  value = m_oBuffer.getInt(argument);
+                  argument += 4;
+                  break;
+               case 'd' :
+                  value = (float)m_oBuffer.getDouble(argument);
+                  argument += 8;
+                  break;
+               case 'h' :
+                  value = m_oBuffer.getLong(argument);
+                  argument += 8;
+                  break;
+               case 'T' :
+                  value = 1f;
+                  break;
+               case 'F' :
+                  value = 0f;
+                  break;
+               default :
+                  // Strings, blobs and the like are not controls.
+                  m_nIgnored++;
+                  return;
+            }
+            if (argument > end) {
+               m_nIgnored++;
+               return;
+            }
+            if (count < MAX_ARGUMENTS) {
+               m_aArguments[count++] = value;
+            }
+         }
+      }
+
+      switch (KINDS[name]) {
+         case KIND_PARAMETER :
+            if (count == 0) {
+               m_nIgnored++;
+               return;
+            }
+            int command = add ? ControlQueue.CMD_ADD : ControlQueue.CMD_SET;
+            post(worldId, command, FIRST[name], m_aArguments[0]);
+            if (count > 1 && SECOND[name] >= 0) {
+               post(worldId, command, SECOND[name], m_aArguments[1]);
+            }
+            break;
+         case KIND_ACTION :
+            post(worldId, FIRST[name], 0, 0f);
+            break;
+         case KIND_PRESET :
+            if (count == 0) {
+               m_nIgnored++;
+               return;
+            }
+            post(worldId, FIRST[name], (int)m_aArguments[0], 0f);
+            break;
+      }
+   }
+
+   /**
+    * Posts a control command to a world of this process or, in lockstep,
+    * to the master's next frame.
+    */
+   private void post(int worldId, int command, int argument, float value) {
+      ParticleWorld world = ParticleWorld.getWorld(worldId);
+      boolean posted;
+      if (world != null) {
+         posted = world.postControl(command, argument, value);
+      } else if (m_oLockstep != null) {
+         posted = m_oLockstep.post(worldId, command, argument, value);
+      } else {
+         posted = false;
+      }
+      if (!posted) {
+         m_nIgnored++;
+      }
+   }
+
+   /**
+    * Finds the name stored in data[start..end).
+    *
+    * @return The index into NAMES, or -1.
+    */
+   private static int findName(byte[] data, int start, int end) {
+      for (int n = 0; n < NAME_BYTES.length; n++) {
+         if (NAME_BYTES[n].length == end - start && matches(data, start, NAME_BYTES[n])) {
+            return n;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Checks whether data holds the given bytes at an offset.
+    */
+   private static boolean matches(byte[] data, int offset, byte[] bytes) {
+      if (offset + bytes.length > data.length) {
+         return false;
+      }
+      for (int b = 0; b < bytes.length; b++) {
+         if (data[offset + b] != bytes[b]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Finds the zero byte ending an OSC string.
+    *
+    * @return The offset of the zero byte, or -1 if there is none before
+    *         end.
+    */
+   private static int terminator(byte[] data, int start, int end) {
+      for (int b = start; b < end; b++) {
+         if (data[b] == 0) {
+            return b;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Rounds a length up to the next multiple of four, as OSC aligns all
+    * fields.
+    */
+   private static int pad(int length) {
+      return (length + 3) & ~3;
+   }
+
+   /**
+    * Converts a name to ASCII bytes.
+    */
+   private static byte[] ascii(String text) {
+      byte[] bytes = new byte[text.length()];
+      for (int c = 0; c < bytes.length; c++) {
+         bytes[c] = (byte)text.charAt(c);
+      }
+      return bytes;
+   }
+}
@@ -1,62 +1,58 @@
 
 public class ParticleApp {
-	public static void main(String[] args) {
-   		// Create the OpenGL windows displaying particles.
-		new ParticleWorld();
-		try {
-			Thread.currentThread().sleep(10);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
-		}
-		
-		new ParticleWorld();
-		try {
-			Thread.currentThread().sleep(10);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
-		}
+	// Number of worlds in the installation.
+	private static final int WORLD_COUNT = 8;
 
-		new ParticleWorld();
-		try {
-			Thread.currentThread().sleep(10);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
-		}
+	public static void main(String[] args) {
+		// Start the lockstep clock or listener, if this process takes part
+		// in one (see Lockstep).
+		Lockstep.getInstance();
+		// Listen for OSC control messages, if a port is configured (see
+		// OscServer).
+		OscServer.getInstance();
 
-		new ParticleWorld();
-		try {
-			Thread.currentThread().sleep(10);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
-		}
-		
-		new ParticleWorld();
-		try {
-			Thread.currentThread().sleep(10);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
+   		// Create the OpenGL windows displaying particles. The
+		// particles.worlds property lists the worlds this process shows,
+		// such as "1-4" or "5,6,7,8"; by default it shows all of them.
+		boolean[] shown = parseWorlds(System.getProperty("particles.worlds"));
+		for (int id = 1; id <= WORLD_COUNT; id++) {
+			if (!shown[id]) {
+				continue;
+			}
+			new ParticleWorld(id);
+			try {
+				Thread.currentThread().sleep(10);
+			} catch(InterruptedException e) {
+				e.printStackTrace();
+			}
 		}
-		
-		new ParticleWorld();
-		try {
-			Thread.currentThread().sleep(10);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
-		}
-		
-		new ParticleWorld();
-		try {
-			Thread.currentThread().sleep(10);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
-		}
-		
-		new ParticleWorld();
-		try {
-			Thread.currentThread().sleep(10);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
-		}
-
      }
+
+	/**
+	 * Parses a list of world numbers and ranges.
+	 *
+	 * @param worlds The list, such as "1-3,6", or null for all worlds.
+	 * @return For every world number, whether it is listed.
+	 */
+	private static boolean[] parseWorlds(String worlds) {
+		boolean[] shown = new boolean[WORLD_COUNT + 1];
+		if (worlds == null) {
+			worlds = "1-" + WORLD_COUNT;
+		}
+		String[] items = worlds.split(",");
+		for (int i = 0; i < items.length; i++) {
+			String item = items[i].trim();
+			try {
+				int dash = item.indexOf('-');
+				int first = Integer.parseInt(dash < 0 ? item : item.substring(0, dash).trim());
+				int last = dash < 0 ? first : Integer.parseInt(item.substring(dash + 1).trim());
+				for (int id = Math.max(1, first); id <= Math.min(WORLD_COUNT, last); id++) {
+					shown[id] = true;
+				}
+			} catch(NumberFormatException e) {
+				System.out.println("Ignoring world " + item + " in particles.worlds.");
+			}
+		}
+		return shown;
+	}
 }
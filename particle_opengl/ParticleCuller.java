@@ -0,0 +1,187 @@
+import java.nio.FloatBuffer;
+
+/**
+ * Collects the particles worth drawing into a compact list of slots.
+ * Particles outside the perspective frustum, or so faded that blending
+ * them would not change a single 8-bit color step, are left out and
+ * counted.
+ *
+ * The simulation tests each particle right after moving it, so building
+ * the list costs no extra pass over the pool. The list is only valid for
+ * the zoom and particle size it was built with; cullAll() rebuilds it
+ * when the view changed since, or for pools that are not simulated.
+ */
+public class ParticleCuller {
+   // Particles whose alpha is below this are not drawn.
+   public static final float MIN_ALPHA = 1f / 255f;
+
+   // Slots of the particles to draw.
+   private int[] m_aVisible;
+   // Number of entries in m_aVisible.
+   private int m_nVisible = 0;
+   // Particles left out of the current list.
+   private int m_nOffscreen = 0;
+   private int m_nFaded = 0;
+   // Tangents of half the horizontal and vertical field of view.
+   private float m_fTanX = 1f;
+   private float m_fTanY = 1f;
+   // Near and far clipping distances.
+   private float m_fNear = 0.1f;
+   private float m_fFar = 100f;
+   // Zoom and particle radius the current list was built with.
+   private float m_fZoom;
+   private float m_fRadius;
+   // Whether the list matches the pool.
+   private boolean m_bValid = false;
+
+   /**
+    * Creates a culler for pools of the given capacity.
+    *
+    * @param capacity The number of particles in the pool.
+    */
+   public ParticleCuller(int capacity) {
+      m_aVisible = new int[capacity];
+   }
+
+   /**
+    * Sets the perspective projection, as given to gluPerspective().
+    *
+    * @param fovY The vertical field of view in degrees.
+    * @param aspect The width of the viewport divided by its height.
+    * @param near The near clipping distance.
+    * @param far The far clipping distance.
+    */
+   public void setPerspective(float fovY, float aspect, float near, float far) {
+      m_fTanY = (float)Math.tan(Math.toRadians(fovY / 2));
+      m_fTanX = m_fTanY * aspect;
+      m_fNear = near;
+      m_fFar = far;
+      m_bValid = false;
+   }
+
+   /**
+    * Starts a new list.
+    *
+    * @param zoom The distance the particles are moved along the Z axis.
+    * @param radius Half the size of the largest particle.
+    */
+   public void begin(float zoom, float radius) {
+      m_nVisible = 0;
+      m_nOffscreen = 0;
+      m_nFaded = 0;
+      m_fZoom = zoom;
+      m_fRadius = radius;
+      m_bValid = true;
+   }
+
+   /**
+    * Adds a live particle to the list if it is visible.
+    *
+    * @param pool The pool holding the particle.
+    * @param i The slot of the particle.
+    */
+   public void test(ParticlePool pool, int i) {
+      FloatBuffer v = pool.m_oVertices;
+      int o = i * ParticlePool.VERTEX_SIZE;
+      if (v.get(o + ParticlePool.OFFSET_LIFE) < MIN_ALPHA) {
+         m_nFaded++;
+         return;
+      }
+      // The camera looks down the negative Z axis.
+      float depth = -(v.get(o + ParticlePool.OFFSET_Z) + m_fZoom);
+      float r = m_fRadius;
+      if (depth < m_fNear - r || depth > m_fFar + r) {
+         m_nOffscreen++;
+         return;
+      }
+      // Widen the sides by the radius along each axis; this keeps a few
+      // particles just outside the corners, which is harmless.
+      float x = v.get(o + ParticlePool.OFFSET_X);
+      float y = v.get(o + ParticlePool.OFFSET_Y);
+      float halfWidth = depth * m_fTanX + r * 2;
+      float halfHeight = depth * m_fTanY + r * 2;
+      if (x > halfWidth || x < -halfWidth || y > halfHeight || y < -halfHeight) {
+         m_nOffscreen++;
+         return;
+      }
+      m_aVisible[m_nVisible++] = i;
+   }
+
+   /**
+    * Rebuilds the list from all live particles of a pool.
+    *
+    * @param pool The pool to cull.
+    * @param zoom The distance the particles are moved along the Z axis.
+    * @param radius Half the size of the largest particle.
+    */
+   public void cullAll(ParticlePool pool, float zoom, float radius) {
+      int capacity = pool.getCapacity();
+      if (m_aVisible.length < capacity) {
+         m_aVisible = new int[capacity];
+      }
+      begin(zoom, radius);
+      for (int i = 0; i < capacity; i++) {
+         if (pool.isAlive(i)) {
+            test(pool, i);
+         }
+      }
+   }
+
+   /**
+    * Checks whether the list was built for the given view.
+    *
+    * @param zoom The current zoom.
+    * @param radius The current particle radius.
+    * @return True if the list can be drawn as it is.
+    */
+   public boolean isValid(float zoom, float radius) {
+      return m_bValid && m_fZoom == zoom && m_fRadius == radius;
+   }
+
+   /**
+    * Marks the list as outdated, for example after the particles were
+    * replaced.
+    */
+   public void invalidate() {
+      m_bValid = false;
+   }
+
+   /**
+    * Retrieves the slots of the particles to draw. Only the first
+    * getVisibleCount() entries are valid.
+    *
+    * @return The slot list. Must not be modified.
+    */
+   public int[] getVisible() {
+      return m_aVisible;
+   }
+
+   /**
+    * Retrieves the number of particles to draw.
+    *
+    * @return The length of the slot list.
+    */
+   public int getVisibleCount() {
+      return m_nVisible;
+   }
+
+   /**
+    * Retrieves the number of live particles left out because they are
+    * outside the frustum.
+    *
+    * @return The off-screen count.
+    */
+   public int getOffscreenCount() {
+      return m_nOffscreen;
+   }
+
+   /**
+    * Retrieves the number of live particles left out because they are
+    * nearly transparent.
+    *
+    * @return The faded count.
+    */
+   public int getFadedCount() {
+      return m_nFaded;
+   }
+}
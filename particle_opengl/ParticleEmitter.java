@@ -0,0 +1,194 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Decides how many particles are emitted on each simulation step. Like
+ * Director's particle emitter, it works either in stream mode (a steady
+ * number of particles per second) or in burst mode (a fixed number of
+ * particles at once). Refill mode restarts every dead particle right away,
+ * which is how the particles originally behaved.
+ */
+public class ParticleEmitter {
+   // Restart every dead particle on the next step.
+   public static final int MODE_REFILL = 0;
+   // Emit a steady number of particles per second.
+   public static final int MODE_STREAM = 1;
+   // Emit a fixed number of particles at once.
+   public static final int MODE_BURST = 2;
+   // Number of emission modes, used to cycle through them.
+   public static final int MODE_COUNT = 3;
+   // Number of bytes writeState() writes.
+   public static final int STATE_SIZE = 28;
+
+   // The current emission mode.
+   private int m_nMode = MODE_REFILL;
+   // Particles per second in stream mode.
+   private float m_fRate = 200f;
+   // Particles per burst in burst mode.
+   private int m_nBurstCount = 100;
+   // Seconds between automatic bursts. Zero means bursts only happen when
+   // triggered.
+   private float m_fBurstInterval = 0f;
+   // Fractional particles carried over between steps in stream mode.
+   private float m_fAccumulator = 0f;
+   // Seconds since the last automatic burst.
+   private float m_fBurstTimer = 0f;
+   // Number of triggered bursts not yet emitted.
+   private int m_nPendingBursts = 0;
+
+   /**
+    * Computes how many particles to emit for a step of the given length.
+    * The result never exceeds the number of free slots; particles which do
+    * not fit are dropped rather than saved up for later.
+    *
+    * @param dt        The length of the step in seconds.
+    * @param freeSlots The number of free slots in the particle pool.
+    * @return The number of particles to emit this step.
+    */
+   public int update(float dt, int freeSlots) {
+      int count = 0;
+      switch (m_nMode) {
+         case MODE_REFILL :
+            count = freeSlots;
+            break;
+         case MODE_STREAM :
+            m_fAccumulator += m_fRate * dt;
+            count = (int)m_fAccumulator;
+            m_fAccumulator -= count;
+            break;
+         case MODE_BURST :
+            if (m_fBurstInterval > 0f) {
+               m_fBurstTimer += dt;
+               while (m_fBurstTimer >= m_fBurstInterval) {
+                  m_fBurstTimer -= m_fBurstInterval;
+                  m_nPendingBursts++;
+               }
+            }
+            count = m_nPendingBursts * m_nBurstCount;
+            m_nPendingBursts = 0;
+            break;
+      }
+      if (count > freeSlots) {
+         count = freeSlots;
+      }
+      return count;
+   }
+
+   /**
+    * Writes the emitter's settings and timing state into the buffer.
+    *
+    * @param buffer The buffer to write to.
+    */
+   public void writeState(ByteBuffer buffer) {
+      buffer.putInt(m_nMode);
+      buffer.putFloat(m_fRate);
+      buffer.putInt(m_nBurstCount);
+      buffer.putFloat(m_fBurstInterval);
+      buffer.putFloat(m_fAccumulator);
+      buffer.putFloat(m_fBurstTimer);
+      buffer.putInt(m_nPendingBursts);
+   }
+
+   /**
+    * Restores the emitter's settings and timing state from the buffer, as
+    * written by writeState().
+    *
+    * @param buffer The buffer to read from.
+    */
+   public void readState(ByteBuffer buffer) {
+      m_nMode = buffer.getInt();
+      m_fRate = buffer.getFloat();
+      m_nBurstCount = buffer.getInt();
+      m_fBurstInterval = buffer.getFloat();
+      m_fAccumulator = buffer.getFloat();
+      m_fBurstTimer = buffer.getFloat();
+      m_nPendingBursts = buffer.getInt();
+   }
+
+   /**
+    * Requests a burst of particles on the next step. Only has an effect in
+    * burst mode.
+    */
+   public void triggerBurst() {
+      if (m_nMode == MODE_BURST) {
+         m_nPendingBursts++;
+      }
+   }
+
+   /**
+    * Sets the emission mode and clears any state left from the previous
+    * mode.
+    *
+    * @param mode One of MODE_REFILL, MODE_STREAM or MODE_BURST.
+    */
+   public void setMode(int mode) {
+      if (mode != m_nMode) {
+         m_nMode = mode;
+         m_fAccumulator = 0f;
+         m_fBurstTimer = 0f;
+         m_nPendingBursts = 0;
+      }
+   }
+
+   /**
+    * Retrieves the emission mode.
+    *
+    * @return One of MODE_REFILL, MODE_STREAM or MODE_BURST.
+    */
+   public int getMode() {
+      return m_nMode;
+   }
+
+   /**
+    * Sets the number of particles per second in stream mode.
+    *
+    * @param rate The emission rate. Negative values are treated as zero.
+    */
+   public void setRate(float rate) {
+      m_fRate = Math.max(0f, rate);
+   }
+
+   /**
+    * Retrieves the number of particles per second in stream mode.
+    *
+    * @return The emission rate.
+    */
+   public float getRate() {
+      return m_fRate;
+   }
+
+   /**
+    * Sets the number of particles emitted per burst.
+    *
+    * @param count The burst size. Negative values are treated as zero.
+    */
+   public void setBurstCount(int count) {
+      m_nBurstCount = Math.max(0, count);
+   }
+
+   /**
+    * Retrieves the number of particles emitted per burst.
+    *
+    * @return The burst size.
+    */
+   public int getBurstCount() {
+      return m_nBurstCount;
+   }
+
+   /**
+    * Sets the time between automatic bursts.
+    *
+    * @param seconds The burst interval, or zero to burst only on demand.
+    */
+   public void setBurstInterval(float seconds) {
+      m_fBurstInterval = Math.max(0f, seconds);
+   }
+
+   /**
+    * Retrieves the time between automatic bursts.
+    *
+    * @return The burst interval in seconds.
+    */
+   public float getBurstInterval() {
+      return m_fBurstInterval;
+   }
+}
@@ -0,0 +1,130 @@
+import java.nio.FloatBuffer;
+
+/**
+ * Steers particles like a flock of birds. Each particle reacts to the
+ * particles within the flock radius:
+ *
+ * - separation pushes it away from them, the more the closer they are;
+ * - alignment turns its speed towards their average speed;
+ * - cohesion pulls it towards their average location.
+ *
+ * The steering of all particles is computed from the same state before
+ * any particle moves, so the result does not depend on the update order.
+ * Neighbours are looked up in a NeighbourGrid built once per step; in
+ * dense regions a particle reacts to its MAX_NEIGHBOURS nearest ones.
+ */
+public class ParticleFlock {
+   // Most neighbours a particle reacts to, the nearest within the radius.
+   // Keeps dense clumps from slowing the step down.
+   private static final int MAX_NEIGHBOURS = 32;
+
+   // Sorts the particles into cells.
+   private final NeighbourGrid m_oGrid;
+   // Neighbours returned by the grid for one particle, and their
+   // distances squared.
+   private final int[] m_aCandidates = new int[MAX_NEIGHBOURS];
+   private final float[] m_aDistances = new float[MAX_NEIGHBOURS];
+
+   /**
+    * Creates a flock for pools of the given capacity.
+    *
+    * @param capacity The number of particles in the pool.
+    */
+   public ParticleFlock(int capacity) {
+      m_oGrid = new NeighbourGrid(capacity);
+   }
+
+   /**
+    * Computes the steering of every live particle.
+    *
+    * @param pool The particles.
+    * @param steerX Receives the change in x speed of every slot.
+    * @param steerY Receives the change in y speed of every slot.
+    * @param steerZ Receives the change in z speed of every slot.
+    * @param radius The distance within which particles are neighbours.
+    * @param separation The weight of the separation rule.
+    * @param alignment The weight of the alignment rule: the fraction of
+    *        the difference to the neighbours' average speed made up per
+    *        step.
+    * @param cohesion The weight of the cohesion rule: the speed gained
+    *        per unit of distance to the neighbours' centre.
+    */
+   public void steer(
+      ParticlePool pool,
+      float[] steerX,
+      float[] steerY,
+      float[] steerZ,
+      float radius,
+      float separation,
+      float alignment,
+      float cohesion) {
+      m_oGrid.build(pool, radius);
+      int capacity = pool.getCapacity();
+      FloatBuffer v = pool.m_oVertices;
+      float[] vx = pool.m_aXSpeed;
+      float[] vy = pool.m_aYSpeed;
+      float[] vz = pool.m_aZSpeed;
+      int[] candidates = m_aCandidates;
+      float[] distances = m_aDistances;
+      for (int i = 0; i < capacity; i++) {
+         steerX[i] = 0f;
+         steerY[i] = 0f;
+         steerZ[i] = 0f;
+         if (!pool.isAlive(i)) {
+            continue;
+         }
+         int o = i * ParticlePool.VERTEX_SIZE;
+         float x = v.get(o + ParticlePool.OFFSET_X);
+         float y = v.get(o + ParticlePool.OFFSET_Y);
+         float z = v.get(o + ParticlePool.OFFSET_Z);
+         int found =
+            Math.min(
+               MAX_NEIGHBOURS,
+               m_oGrid.query(x, y, z, radius, i, candidates, distances, MAX_NEIGHBOURS));
+         float sepX = 0f, sepY = 0f, sepZ = 0f;
+         float sumVX = 0f, sumVY = 0f, sumVZ = 0f;
+         float sumX = 0f, sumY = 0f, sumZ = 0f;
+         int neighbours = 0;
+         for (int k = 0; k < found; k++) {
+            int j = candidates[k];
+            int n = j * ParticlePool.VERTEX_SIZE;
+            float nx = v.get(n + ParticlePool.OFFSET_X);
+            float ny = v.get(n + ParticlePool.OFFSET_Y);
+            float nz = v.get(n + ParticlePool.OFFSET_Z);
+            float dx = x - nx;
+            float dy = y - ny;
+            float dz = z - nz;
+            float d2 = distances[k];
+            // Particles in the same spot cannot be separated by direction.
+            if (d2 > 1e-6f) {
+               sepX += dx / d2;
+               sepY += dy / d2;
+               sepZ += dz / d2;
+            }
+            sumVX += vx[j];
+            sumVY += vy[j];
+            sumVZ += vz[j];
+            sumX += nx;
+            sumY += ny;
+            sumZ += nz;
+            neighbours++;
+         }
+         if (neighbours == 0) {
+            continue;
+         }
+         float inv = 1f / neighbours;
+         steerX[i] =
+            separation * sepX
+               + alignment * (sumVX * inv - vx[i])
+               + cohesion * (sumX * inv - x);
+         steerY[i] =
+            separation * sepY
+               + alignment * (sumVY * inv - vy[i])
+               + cohesion * (sumY * inv - y);
+         steerZ[i] =
+            separation * sepZ
+               + alignment * (sumVZ * inv - vz[i])
+               + cohesion * (sumZ * inv - z);
+      }
+   }
+}
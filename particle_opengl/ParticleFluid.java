@@ -0,0 +1,275 @@
+import java.nio.FloatBuffer;
+
+/**
+ * Makes particles flow like a liquid with smoothed particle hydrodynamics
+ * (after Mueller, Charypar and Gross, "Particle-Based Fluid Simulation for
+ * Interactive Applications"). Each step runs two passes over the
+ * particles: the first sums every particle's density with the poly6
+ * kernel and derives its pressure, the second sums the pressure forces
+ * (spiky kernel gradient) and viscosity forces (viscosity kernel
+ * Laplacian) into a change of speed.
+ *
+ * Neighbours come from a NeighbourGrid. Both passes walk the particles in
+ * the grid's cell order, split into chunks which are evaluated in
+ * parallel on the WorkerPool. Every particle only writes its own results,
+ * so the chunks need no locking.
+ *
+ * A particle interacts with at most MAX_NEIGHBOURS particles, the nearest
+ * within the radius. At the default rest density a particle has about ten
+ * of them, so the cap only bites where the fluid is squeezed to several
+ * times its rest density; the neighbours it leaves out are counted (see
+ * getTruncatedCount()).
+ */
+public class ParticleFluid {
+   // Most neighbours a particle interacts with, the nearest within the
+   // radius.
+   private static final int MAX_NEIGHBOURS = 64;
+
+   // Sorts the particles into cells.
+   private final NeighbourGrid m_oGrid;
+   // Density and pressure of every slot for this step.
+   private final float[] m_aDensity;
+   private final float[] m_aPressure;
+   // The parallel work items; each owns its scratch space.
+   private final Chunk[] m_aChunks;
+
+   // Inputs and outputs of the current step, read by the chunks.
+   private ParticlePool m_oPool;
+   private float[] m_aSteerX;
+   private float[] m_aSteerY;
+   private float[] m_aSteerZ;
+   private float m_fRadius;
+   private float m_fRestDensity;
+   private float m_fStiffness;
+   private float m_fViscosity;
+   private float m_fSpeedScale;
+   // Kernel normalisation constants for the current radius.
+   private float m_fPoly6;
+   private float m_fSpiky;
+   // Neighbours left out by the cap during the last step.
+   private long m_lTruncated;
+
+   /**
+    * One range of the particles in cell order.
+    */
+   private class Chunk implements Runnable {
+      // Range in the grid's sorted slots.
+      int m_nFrom;
+      int m_nTo;
+      // True during the density pass, false during the force pass.
+      boolean m_bDensity;
+      // Neighbours left out by the cap in this chunk during the pass.
+      long m_lTruncated;
+      // Scratch space for grid queries.
+      final int[] m_aCandidates = new int[MAX_NEIGHBOURS];
+      final float[] m_aDistances = new float[MAX_NEIGHBOURS];
+      final int[] m_aVisited = new int[27];
+
+      public void run() {
+         int[] sorted = m_oGrid.getSorted();
+         m_lTruncated = 0;
+         for (int k = m_nFrom; k < m_nTo; k++) {
+            if (m_bDensity) {
+               m_lTruncated +=
+                  density(sorted[k], m_aCandidates, m_aDistances, m_aVisited);
+            } else {
+               m_lTruncated +=
+                  force(sorted[k], m_aCandidates, m_aDistances, m_aVisited);
+            }
+         }
+      }
+   }
+
+   /**
+    * Creates a fluid for pools of the given capacity.
+    *
+    * @param capacity The number of particles in the pool.
+    */
+   public ParticleFluid(int capacity) {
+      m_oGrid = new NeighbourGrid(capacity);
+      m_aDensity = new float[capacity];
+      m_aPressure = new float[capacity];
+      // A few chunks per worker even out chunks of different density.
+      m_aChunks = new Chunk[WorkerPool.getWorkerCount() * 4];
+      for (int c = 0; c < m_aChunks.length; c++) {
+         m_aChunks[c] = new Chunk();
+      }
+   }
+
+   /**
+    * Computes the change in speed of every live particle caused by
+    * pressure and viscosity.
+    *
+    * @param pool The particles. Every particle has unit mass.
+    * @param steerX Receives the change in x speed of every live slot.
+    * @param steerY Receives the change in y speed of every live slot.
+    * @param steerZ Receives the change in z speed of every live slot.
+    * @param radius The smoothing radius of the kernels.
+    * @param restDensity The density the fluid settles at.
+    * @param stiffness How strongly pressure pushes back against
+    *        compression.
+    * @param viscosity How strongly neighbours even out their speeds.
+    * @param speedScale The speed at which a particle moves one unit per
+    *        step (ParticleWorld's slow-down factor times 1000).
+    */
+   public void steer(
+      ParticlePool pool,
+      float[] steerX,
+      float[] steerY,
+      float[] steerZ,
+      float radius,
+      float restDensity,
+      float stiffness,
+      float viscosity,
+      float speedScale) {
+      m_oPool = pool;
+      m_aSteerX = steerX;
+      m_aSteerY = steerY;
+      m_aSteerZ = steerZ;
+      m_fRadius = radius;
+      m_fRestDensity = restDensity;
+      m_fStiffness = stiffness;
+      m_fViscosity = viscosity;
+      m_fSpeedScale = speedScale;
+      // StrictMath gives the same kernels on every machine, which keeps
+      // worlds in lockstep (see Lockstep).
+      double h = radius;
+      m_fPoly6 = (float)(315.0 / (64.0 * Math.PI * StrictMath.pow(h, 9)));
+      m_fSpiky = (float)(45.0 / (Math.PI * StrictMath.pow(h, 6)));
+
+      m_oGrid.build(pool, radius);
+      m_lTruncated = 0;
+      runPass(true);
+      runPass(false);
+      m_oPool = null;
+   }
+
+   /**
+    * Retrieves the density of a particle computed in the last step.
+    *
+    * @param i The slot of the particle.
+    * @return The density.
+    */
+   public float getDensity(int i) {
+      return m_aDensity[i];
+   }
+
+   /**
+    * Retrieves the number of neighbours left out in the last step because
+    * a particle had more than MAX_NEIGHBOURS within the radius, summed
+    * over both passes. Non-zero means the fluid is squeezed well past its
+    * rest density.
+    *
+    * @return The number of neighbours left out.
+    */
+   public long getTruncatedCount() {
+      return m_lTruncated;
+   }
+
+   /**
+    * Runs one pass over all particles on the workers and waits for it to
+    * finish.
+    */
+   private void runPass(boolean density) {
+      int count = m_oGrid.getCount();
+      int chunks = m_aChunks.length;
+      for (int c = 0; c < chunks; c++) {
+         Chunk chunk = m_aChunks[c];
+         chunk.m_nFrom = (int)((long)count * c / chunks);
+         chunk.m_nTo = (int)((long)count * (c + 1) / chunks);
+         chunk.m_bDensity = density;
+      }
+      WorkerPool.run(m_aChunks, chunks);
+      for (int c = 0; c < chunks; c++) {
+         m_lTruncated += m_aChunks[c].m_lTruncated;
+      }
+   }
+
+   /**
+    * Sums the density of one particle and derives its pressure.
+    *
+    * @return The number of neighbours left out by the cap.
+    */
+   private int density(int i, int[] candidates, float[] distances, int[] visited) {
+      FloatBuffer v = m_oPool.m_oVertices;
+      int o = i * ParticlePool.VERTEX_SIZE;
+      float x = v.get(o + ParticlePool.OFFSET_X);
+      float y = v.get(o + ParticlePool.OFFSET_Y);
+      float z = v.get(o + ParticlePool.OFFSET_Z);
+      float h = m_fRadius;
+      float h2 = h * h;
+      int found =
+         m_oGrid.query(x, y, z, h, i, candidates, distances, MAX_NEIGHBOURS, visited);
+      int kept = Math.min(MAX_NEIGHBOURS, found);
+      // The particle itself counts towards its own density.
+      float sum = h2 * h2 * h2;
+      for (int k = 0; k < kept; k++) {
+         float w = h2 - distances[k];
+         sum += w * w * w;
+      }
+      float density = sum * m_fPoly6;
+      m_aDensity[i] = density;
+      // Negative pressure would pull particles into clumps.
+      m_aPressure[i] = Math.max(0f, m_fStiffness * (density - m_fRestDensity));
+      return found - kept;
+   }
+
+   /**
+    * Sums the pressure and viscosity forces on one particle into its
+    * change of speed.
+    *
+    * @return The number of neighbours left out by the cap.
+    */
+   private int force(int i, int[] candidates, float[] distances, int[] visited) {
+      ParticlePool p = m_oPool;
+      FloatBuffer v = p.m_oVertices;
+      int o = i * ParticlePool.VERTEX_SIZE;
+      float x = v.get(o + ParticlePool.OFFSET_X);
+      float y = v.get(o + ParticlePool.OFFSET_Y);
+      float z = v.get(o + ParticlePool.OFFSET_Z);
+      float vx = p.m_aXSpeed[i];
+      float vy = p.m_aYSpeed[i];
+      float vz = p.m_aZSpeed[i];
+      float h = m_fRadius;
+      float pressure = m_aPressure[i];
+      int found =
+         m_oGrid.query(x, y, z, h, i, candidates, distances, MAX_NEIGHBOURS, visited);
+      int kept = Math.min(MAX_NEIGHBOURS, found);
+      float fx = 0f, fy = 0f, fz = 0f;
+      float gx = 0f, gy = 0f, gz = 0f;
+      for (int k = 0; k < kept; k++) {
+         int j = candidates[k];
+         int n = j * ParticlePool.VERTEX_SIZE;
+         float dx = x - v.get(n + ParticlePool.OFFSET_X);
+         float dy = y - v.get(n + ParticlePool.OFFSET_Y);
+         float dz = z - v.get(n + ParticlePool.OFFSET_Z);
+         float d2 = distances[k];
+         if (d2 < 1e-12f) {
+            continue;
+         }
+         float d = (float)Math.sqrt(d2);
+         float q = h - d;
+         float inverseDensity = 1f / m_aDensity[j];
+         // Pressure pushes along the line between the particles.
+         float push = (pressure + m_aPressure[j]) * 0.5f * inverseDensity * q * q / d;
+         fx += push * dx;
+         fy += push * dy;
+         fz += push * dz;
+         // Viscosity evens out the speeds.
+         float drag = inverseDensity * q;
+         gx += drag * (p.m_aXSpeed[j] - vx);
+         gy += drag * (p.m_aYSpeed[j] - vy);
+         gz += drag * (p.m_aZSpeed[j] - vz);
+      }
+      // The force is divided by the particle's own density to give an
+      // acceleration. Pressure moves locations, so it is scaled to speed;
+      // viscosity already works on speeds.
+      float scale = m_fSpiky / m_aDensity[i];
+      float pressureScale = scale * m_fSpeedScale;
+      float viscosityScale = scale * m_fViscosity;
+      m_aSteerX[i] = fx * pressureScale + gx * viscosityScale;
+      m_aSteerY[i] = fy * pressureScale + gy * viscosityScale;
+      m_aSteerZ[i] = fz * pressureScale + gz * viscosityScale;
+      return found - kept;
+   }
+}
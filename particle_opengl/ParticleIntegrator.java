@@ -0,0 +1,59 @@
+/**
+ * Moves particles forward in time. An integrator updates the locations,
+ * speeds and gravity of a list of particles in passes over the pool's
+ * arrays, without allocating.
+ *
+ * Time is measured in simulation steps: a step of 1 is one frame at the
+ * original rate. A particle moves speed / speedScale location units per
+ * step, and its speed changes by its gravity plus its steering per step.
+ * Gravity itself changes by the world's gravity change per step on the x
+ * and y axes.
+ *
+ * The steering of the flock and fluid behaviours depends on where the
+ * particles are, so the integrator asks for it whenever it needs the
+ * steering at the particles' current locations: once per step for the
+ * Euler integrators and position Verlet, twice for velocity Verlet.
+ */
+public interface ParticleIntegrator {
+   /**
+    * Works out the steering of the particles from where they are.
+    */
+   public interface Steering {
+      /**
+       * Fills the steering arrays passed to integrate() for the particles'
+       * current locations and speeds.
+       */
+      public void steer();
+   }
+
+   /**
+    * Advances the listed particles by one time step.
+    *
+    * @param pool The pool holding the particles.
+    * @param slots The slots of the particles to move.
+    * @param count The number of slots in the list.
+    * @param dt The length of the step, in steps of the original rate.
+    * @param speedScale The speed at which a particle moves one unit per
+    *        step (ParticleWorld's slow-down factor times 1000).
+    * @param steering Fills steerX, steerY and steerZ. Their contents are
+    *        undefined until it is first called.
+    * @param steerX The change in x speed per step caused by the behaviour
+    *        of each slot.
+    * @param steerY The change in y speed per step of each slot.
+    * @param steerZ The change in z speed per step of each slot.
+    * @param xGravityChange The change in x gravity per step.
+    * @param yGravityChange The change in y gravity per step.
+    */
+   public void integrate(
+      ParticlePool pool,
+      int[] slots,
+      int count,
+      float dt,
+      float speedScale,
+      Steering steering,
+      float[] steerX,
+      float[] steerY,
+      float[] steerZ,
+      float xGravityChange,
+      float yGravityChange);
+}
@@ -0,0 +1,96 @@
+/**
+ * The controls of one particle system of a world: the forces acting on
+ * its particles, how its emitter releases them, the sprite they are drawn
+ * with and how many of them there are. A world holds one layer per
+ * particle system. Layer 0 is the world's own and always exists; further
+ * layers are added and removed through control commands. The rules the
+ * particles follow (behaviour, integrator, time step) belong to the world
+ * and are shared by all layers.
+ *
+ * Like the world's controls, a layer is only changed by the render thread,
+ * through ParticleWorld.applyControl().
+ */
+public class ParticleLayer {
+   // Change in y gravitional pull.
+   protected float m_fYGravityChange = 0f;
+   // Change in x gravitional pull.
+   protected float m_fXGravityChange = 0f;
+   // Variable to slow down/speed up particles. The higher the value,
+   // the slower the particles will be. The smaller the value, the faster
+   // the particles will travel.
+   protected float m_fSlowDown = 2f;
+   // Reset the particles? Particles are reset after they become "dead"
+   // (i.e. the particle's life becomes <= 0).
+   protected boolean resetParticles = false;
+   // Variable for user to control the particles' speed in the X direction.
+   // Depending on the value of this variable, the user can even change
+   // the direction (positive X or negative X) the particles travel.
+   protected float m_fXSpeed;
+   // Variable for user to control the particles' speed in the Y direction.
+   protected float m_fYSpeed;
+   // How new particles are emitted: refill, stream or burst (see
+   // ParticleEmitter).
+   protected int m_nEmitterMode = ParticleEmitter.MODE_REFILL;
+   // Particles per second emitted in stream mode.
+   protected float m_fEmissionRate = 200f;
+   // Particles emitted per burst in burst mode.
+   protected int m_nBurstCount = 100;
+   // Emit a burst of particles? Only has an effect in burst mode.
+   protected boolean triggerBurst = false;
+   // Sprite given to newly emitted particles. Indexes the sprites loaded
+   // into the texture atlas.
+   protected int m_nSprite = 0;
+
+   // Most particles of the layer's system, or 0 for as many as layer 0.
+   private final int m_nBudget;
+   // Seed of the random numbers of the layer's particles.
+   private final long m_lSeed;
+
+   /**
+    * Creates a layer with the default controls.
+    *
+    * @param budget The most particles of the layer's system, or 0 for as
+    *        many as the world's own system.
+    * @param seed The seed the layer's particles are derived from.
+    */
+   public ParticleLayer(int budget, long seed) {
+      m_nBudget = Math.max(0, budget);
+      m_lSeed = seed;
+   }
+
+   /**
+    * Retrieves the particle budget.
+    *
+    * @return The most particles, or 0 for as many as layer 0.
+    */
+   public int getBudget() {
+      return m_nBudget;
+   }
+
+   /**
+    * Retrieves the seed of the layer's particles.
+    *
+    * @return The seed.
+    */
+   public long getSeed() {
+      return m_lSeed;
+   }
+
+   /**
+    * Retrieves the user configurable X speed.
+    *
+    * @return Current float value of the x speed.
+    */
+   public float getXSpeed() {
+      return m_fXSpeed;
+   }
+
+   /**
+    * Retrieves the user configurable Y speed.
+    *
+    * @return Current float value of the y speed.
+    */
+   public float getYSpeed() {
+      return m_fYSpeed;
+   }
+}
@@ -0,0 +1,368 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Holds a fixed number of particles together with a stack of free slots.
+ * A slot is free once its particle's life has run out; emitting particles
+ * pops slots off the free stack and initializes them in one batch.
+ *
+ * The properties OpenGL draws - location, color and life - are stored
+ * interleaved in one float buffer, VERTEX_SIZE floats per slot, laid out
+ * as the vertex format of PointSpriteRenderer: x, y, z, then red, green,
+ * blue and the life as alpha. The simulation writes this buffer in place
+ * and the renderer draws straight from it. The buffer is direct memory in
+ * native order, or wraps a heap array for pools which are never drawn.
+ * The other properties are kept in parallel arrays, one per property.
+ */
+public class ParticlePool {
+   // Floats per slot in the vertex buffer.
+   public static final int VERTEX_SIZE = 7;
+   // Position of each property within a slot of the vertex buffer.
+   public static final int OFFSET_X = 0;
+   public static final int OFFSET_Y = 1;
+   public static final int OFFSET_Z = 2;
+   public static final int OFFSET_RED = 3;
+   public static final int OFFSET_GREEN = 4;
+   public static final int OFFSET_BLUE = 5;
+   public static final int OFFSET_LIFE = 6;
+
+   // Maximum number of particles the pool can hold.
+   private final int m_nCapacity;
+   // X, Y, Z locations, red, green and blue colors, and life of each
+   // particle, VERTEX_SIZE floats per slot. Full life has the value 1.0f.
+   // Only accessed with absolute get() and put(); the position and limit
+   // never change.
+   protected final FloatBuffer m_oVertices;
+   // How fast each particle's life decreases.
+   protected final float[] m_aLifeFade;
+   // X, Y, Z directions and speeds for each particle.
+   protected final float[] m_aXSpeed;
+   protected final float[] m_aYSpeed;
+   protected final float[] m_aZSpeed;
+   // X, Y, Z gravity on each particle (direction and pull force).
+   protected final float[] m_aXGravity;
+   protected final float[] m_aYGravity;
+   protected final float[] m_aZGravity;
+   // Index of each particle's sprite in the texture atlas.
+   protected final int[] m_aSprite;
+   // Sprite given to particles when they are reset or emitted.
+   private int m_nSprite = 0;
+   // Indices of the slots whose particles are dead, used as a stack.
+   private final int[] m_aFreeSlots;
+   // Number of entries on the free slot stack.
+   private int m_nFreeCount;
+   // Random generator used for all particle properties.
+   private final Random m_oRandom;
+
+   /**
+    * Creates a pool holding the given number of particles. All particles
+    * start out alive, as if reset with the "explode" effect.
+    *
+    * @param capacity The number of particles in the pool.
+    */
+   public ParticlePool(int capacity) {
+      this(capacity, new Random());
+   }
+
+   /**
+    * Creates a pool holding the given number of particles, drawing all
+    * random properties from the given generator.
+    *
+    * @param capacity The number of particles in the pool.
+    * @param random   The random generator to use.
+    */
+   public ParticlePool(int capacity, Random random) {
+      this(capacity, random, true);
+   }
+
+   /**
+    * Creates a pool holding the given number of particles, drawing all
+    * random properties from the given generator.
+    *
+    * @param capacity The number of particles in the pool.
+    * @param random   The random generator to use.
+    * @param direct   True to keep the vertex buffer in direct memory, so
+    *        OpenGL can draw from it; false to keep it on the heap, for
+    *        pools which are only simulated.
+    */
+   public ParticlePool(int capacity, Random random, boolean direct) {
+      m_nCapacity = capacity;
+      m_oRandom = random;
+      if (direct) {
+         m_oVertices =
+            ByteBuffer.allocateDirect(capacity * VERTEX_SIZE * 4)
+               .order(ByteOrder.nativeOrder())
+               .asFloatBuffer();
+      } else {
+         m_oVertices = FloatBuffer.wrap(new float[capacity * VERTEX_SIZE]);
+      }
+      m_aLifeFade = new float[capacity];
+      m_aXSpeed = new float[capacity];
+      m_aYSpeed = new float[capacity];
+      m_aZSpeed = new float[capacity];
+      m_aXGravity = new float[capacity];
+      m_aYGravity = new float[capacity];
+      m_aZGravity = new float[capacity];
+      m_aSprite = new int[capacity];
+      m_aFreeSlots = new int[capacity];
+      resetAll(true);
+   }
+
+   /**
+    * Resets every particle in the pool to its default values. After this
+    * call all particles are alive and there are no free slots.
+    *
+    * @param explode A boolean indicating if the particles should have the
+    *        "explode" effect when starting out.
+    */
+   public void resetAll(boolean explode) {
+      float speedScale = explode ? 10f : 1f;
+      for (int i = 0; i < m_nCapacity; i++) {
+         resetCommonProperties(i);
+         // Assign direction and speed for this particle.
+         m_aXSpeed[i] = (m_oRandom.nextInt(50) - 25f) * speedScale;
+         m_aYSpeed[i] = (m_oRandom.nextInt(50) - 25f) * speedScale;
+         m_aZSpeed[i] = (m_oRandom.nextInt(50) - 25f) * speedScale;
+         // Assign initial gravity.
+         m_aXGravity[i] = 0f;
+         m_aYGravity[i] = 0f;
+         m_aZGravity[i] = m_oRandom.nextFloat() * 0.1f + .003f;
+      }
+      m_nFreeCount = 0;
+   }
+
+   /**
+    * Restarts up to <code>count</code> dead particles, taking their slots
+    * from the free stack. Restarted particles get full life, new colors and
+    * new speeds biased by the user configurable X and Y speeds; their
+    * gravity is left as it was.
+    *
+    * @param count  The number of particles to emit.
+    * @param xSpeed The user configurable speed in the x direction.
+    * @param ySpeed The user configurable speed in the y direction.
+    * @return The number of particles actually emitted, which is limited by
+    *         the number of free slots.
+    */
+   public int emit(int count, float xSpeed, float ySpeed) {
+      if (count > m_nFreeCount) {
+         count = m_nFreeCount;
+      }
+      int end = m_nFreeCount - count;
+      for (int n = m_nFreeCount - 1; n >= end; n--) {
+         int i = m_aFreeSlots[n];
+         resetCommonProperties(i);
+         m_aXSpeed[i] = xSpeed + m_oRandom.nextInt(60) - 32f;
+         m_aYSpeed[i] = ySpeed + m_oRandom.nextInt(60) - 30f;
+         m_aZSpeed[i] = m_oRandom.nextInt(60) - 30f;
+      }
+      m_nFreeCount = end;
+      return count;
+   }
+
+   /**
+    * Retrieves an entry of the free stack. The entries from getFreeCount()
+    * up to the free count before the last emit() are the slots that emit()
+    * has just filled.
+    *
+    * @param n The position in the free stack.
+    * @return The slot stored at that position.
+    */
+   public int getFreeSlot(int n) {
+      return m_aFreeSlots[n];
+   }
+
+   /**
+    * Returns the slot of a particle which has just died to the free stack.
+    * Must be called exactly once per death.
+    *
+    * @param index The slot of the dead particle.
+    */
+   public void release(int index) {
+      m_aFreeSlots[m_nFreeCount++] = index;
+   }
+
+   /**
+    * Resets the life, lifeFade, color, and location of one particle.
+    *
+    * @param i The slot of the particle.
+    */
+   private void resetCommonProperties(int i) {
+      FloatBuffer v = m_oVertices;
+      int o = i * VERTEX_SIZE;
+      // Give the particle full life and a random lifeFade value.
+      v.put(o + OFFSET_LIFE, 1.0f);
+      m_aLifeFade[i] = m_oRandom.nextFloat() * 0.1f + .003f;
+      // Assign random red and green values, full blue.
+      v.put(o + OFFSET_RED, m_oRandom.nextFloat());
+      v.put(o + OFFSET_GREEN, m_oRandom.nextFloat());
+      v.put(o + OFFSET_BLUE, 1.0f);
+      // Initial location for the particle is at 0,0,0.
+      v.put(o + OFFSET_X, 0f);
+      v.put(o + OFFSET_Y, 0f);
+      v.put(o + OFFSET_Z, 0f);
+      m_aSprite[i] = m_nSprite;
+   }
+
+   /**
+    * Checks to see if the particle in the given slot is alive.
+    *
+    * @param i The slot of the particle.
+    * @return Returns true if the particle's life is > 0.
+    */
+   public boolean isAlive(int i) {
+      return m_oVertices.get(i * VERTEX_SIZE + OFFSET_LIFE) > 0.0f;
+   }
+
+   /**
+    * Retrieves the life of a particle, which is also its alpha.
+    *
+    * @param i The slot of the particle.
+    * @return The life; full life is 1.0f.
+    */
+   public float getLife(int i) {
+      return m_oVertices.get(i * VERTEX_SIZE + OFFSET_LIFE);
+   }
+
+   /**
+    * Retrieves the vertex buffer holding the location, color and life of
+    * every slot. Callers must only use absolute get() and put().
+    *
+    * @return The vertex buffer.
+    */
+   public FloatBuffer getVertices() {
+      return m_oVertices;
+   }
+
+   /**
+    * Sets the sprite given to particles from now on. Particles which are
+    * already alive keep their sprite.
+    *
+    * @param sprite The index of the sprite in the texture atlas.
+    */
+   public void setSprite(int sprite) {
+      m_nSprite = sprite;
+   }
+
+   /**
+    * Retrieves the number of bytes writeState() writes.
+    *
+    * @return The size of the pool's state in bytes.
+    */
+   public int getStateSize() {
+      // The vertex buffer and seven float arrays, the sprite and free slot
+      // arrays, and the capacity, free count and current sprite.
+      return (m_nCapacity * 16 + 3) * 4;
+   }
+
+   /**
+    * Writes the state of every particle, and the free slot stack, into the
+    * given buffer. The vertex buffer and each property array are copied in
+    * one bulk operation.
+    *
+    * @param buffer The buffer to write to, positioned where the state
+    *        should start.
+    */
+   public void writeState(ByteBuffer buffer) {
+      buffer.putInt(m_nCapacity);
+      buffer.putInt(m_nFreeCount);
+      buffer.putInt(m_nSprite);
+      FloatBuffer vertices = m_oVertices.duplicate();
+      vertices.clear();
+      buffer.asFloatBuffer().put(vertices);
+      buffer.position(buffer.position() + m_nCapacity * VERTEX_SIZE * 4);
+      putFloats(buffer, m_aLifeFade);
+      putFloats(buffer, m_aXSpeed);
+      putFloats(buffer, m_aYSpeed);
+      putFloats(buffer, m_aZSpeed);
+      putFloats(buffer, m_aXGravity);
+      putFloats(buffer, m_aYGravity);
+      putFloats(buffer, m_aZGravity);
+      putInts(buffer, m_aSprite);
+      putInts(buffer, m_aFreeSlots);
+   }
+
+   /**
+    * Replaces the state of every particle with the state read from the
+    * given buffer, as written by writeState().
+    *
+    * @param buffer The buffer to read from.
+    * @throws IllegalArgumentException If the state was written by a pool
+    *         of a different capacity.
+    */
+   public void readState(ByteBuffer buffer) {
+      int capacity = buffer.getInt();
+      if (capacity != m_nCapacity) {
+         throw new IllegalArgumentException(
+            "Pool state holds " + capacity + " particles, expected " + m_nCapacity);
+      }
+      m_nFreeCount = buffer.getInt();
+      m_nSprite = buffer.getInt();
+      FloatBuffer vertices = m_oVertices.duplicate();
+      vertices.clear();
+      FloatBuffer state = buffer.asFloatBuffer();
+      state.limit(m_nCapacity * VERTEX_SIZE);
+      vertices.put(state);
+      buffer.position(buffer.position() + m_nCapacity * VERTEX_SIZE * 4);
+      getFloats(buffer, m_aLifeFade);
+      getFloats(buffer, m_aXSpeed);
+      getFloats(buffer, m_aYSpeed);
+      getFloats(buffer, m_aZSpeed);
+      getFloats(buffer, m_aXGravity);
+      getFloats(buffer, m_aYGravity);
+      getFloats(buffer, m_aZGravity);
+      getInts(buffer, m_aSprite);
+      getInts(buffer, m_aFreeSlots);
+   }
+
+   /**
+    * Copies a float array into the buffer and advances its position.
+    */
+   private static void putFloats(ByteBuffer buffer, float[] values) {
+      buffer.asFloatBuffer().put(values);
+      buffer.position(buffer.position() + values.length * 4);
+   }
+
+   /**
+    * Fills a float array from the buffer and advances its position.
+    */
+   private static void getFloats(ByteBuffer buffer, float[] values) {
+      buffer.asFloatBuffer().get(values);
+      buffer.position(buffer.position() + values.length * 4);
+   }
+
+   /**
+    * Copies an int array into the buffer and advances its position.
+    */
+   private static void putInts(ByteBuffer buffer, int[] values) {
+      buffer.asIntBuffer().put(values);
+      buffer.position(buffer.position() + values.length * 4);
+   }
+
+   /**
+    * Fills an int array from the buffer and advances its position.
+    */
+   private static void getInts(ByteBuffer buffer, int[] values) {
+      buffer.asIntBuffer().get(values);
+      buffer.position(buffer.position() + values.length * 4);
+   }
+
+   /**
+    * Retrieves the number of particles this pool can hold.
+    *
+    * @return The capacity of the pool.
+    */
+   public int getCapacity() {
+      return m_nCapacity;
+   }
+
+   /**
+    * Retrieves the number of free (dead) slots.
+    *
+    * @return The number of slots available for emission.
+    */
+   public int getFreeCount() {
+      return m_nFreeCount;
+   }
+}
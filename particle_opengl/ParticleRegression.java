@@ -0,0 +1,367 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32;
+
+/**
+ * Checks that changes to the simulation leave the particles exactly where
+ * they were. Every case runs a seeded scene headless for a number of
+ * steps under its own controls, then hashes the state of every particle
+ * and compares the checksum with the golden one recorded before:
+ *
+ *    java ParticleRegression [-record] [-tolerance t] [golden file] [case ...]
+ *
+ * -record writes the checksums of the cases run into the golden file
+ * instead of checking them. Changes which reorder floating point sums,
+ * such as running a loop in parallel, move the particles by rounding
+ * errors and change every checksum; -tolerance t then also accepts cases
+ * whose particle statistics (the number alive and the mean and spread of
+ * their locations, speeds and life) stay within the relative tolerance t
+ * of the golden ones. The golden file defaults to data/regression.txt.
+ *
+ * Prints one line per case and exits with status 1 if any case failed.
+ */
+public class ParticleRegression {
+   // Length of a step: the frame rate the worlds usually run at.
+   private static final float DELTA_TIME = 1f / 60f;
+   // Bounds of the particles, as set for a world in a default window.
+   private static final int WIDTH = 160;
+   private static final int HEIGHT = 120;
+   // Statistics compared in tolerance mode: the number of live particles,
+   // the mean and root mean square of x, y and z, the mean speed on each
+   // axis and the mean life.
+   private static final int STATISTICS = 11;
+
+   /**
+    * A seeded scene and the controls it runs under.
+    */
+   private static class Case {
+      final String m_sName;
+      final long m_lSeed;
+      final int m_nParticles;
+      final int m_nSteps;
+      // Control commands applied before the first step, in order.
+      final ArrayList m_aCommands = new ArrayList();
+
+      Case(String name, long seed, int particles, int steps) {
+         m_sName = name;
+         m_lSeed = seed;
+         m_nParticles = particles;
+         m_nSteps = steps;
+      }
+
+      /**
+       * Adds a control command to apply before the first step.
+       *
+       * @return This case.
+       */
+      Case control(int command, int argument, float value) {
+         m_aCommands.add(new float[] {command, argument, value});
+         return this;
+      }
+
+      /**
+       * Adds a command setting a parameter before the first step.
+       *
+       * @return This case.
+       */
+      Case set(int parameter, float value) {
+         return control(ControlQueue.CMD_SET, parameter, value);
+      }
+
+      /**
+       * Adds the same command several times.
+       *
+       * @return This case.
+       */
+      Case repeat(int command, int times) {
+         for (int t = 0; t < times; t++) {
+            control(command, 0, 0f);
+         }
+         return this;
+      }
+   }
+
+   // The cases, covering every behaviour, integrator and emission mode.
+   private static final Case[] CASES = {
+      new Case("swarm-euler", 1L, 500, 300),
+      new Case("swarm-symplectic-euler", 2L, 500, 300)
+         .repeat(ControlQueue.CMD_NEXT_INTEGRATOR, 1),
+      new Case("swarm-position-verlet", 3L, 500, 300)
+         .repeat(ControlQueue.CMD_NEXT_INTEGRATOR, 2),
+      new Case("swarm-velocity-verlet", 4L, 500, 300)
+         .repeat(ControlQueue.CMD_NEXT_INTEGRATOR, 3),
+      new Case("swarm-gravity", 5L, 500, 300)
+         .set(ControlQueue.PARAM_X_GRAVITY, .5f)
+         .set(ControlQueue.PARAM_Y_GRAVITY, -.3f)
+         .set(ControlQueue.PARAM_SLOW_DOWN, 1.5f),
+      new Case("swarm-half-step", 6L, 500, 300)
+         .repeat(ControlQueue.CMD_NEXT_INTEGRATOR, 3)
+         .set(ControlQueue.PARAM_TIME_STEP, .5f),
+      new Case("swarm-double-step", 7L, 500, 300)
+         .set(ControlQueue.PARAM_TIME_STEP, 2f),
+      new Case("stream-emitter", 8L, 500, 300)
+         .repeat(ControlQueue.CMD_NEXT_EMITTER_MODE, 1)
+         .set(ControlQueue.PARAM_EMISSION_RATE, 400f),
+      new Case("burst-emitter", 9L, 500, 40)
+         .repeat(ControlQueue.CMD_NEXT_EMITTER_MODE, 2)
+         .set(ControlQueue.PARAM_BURST_COUNT, 100f)
+         .repeat(ControlQueue.CMD_BURST, 1),
+      new Case("flock", 10L, 500, 300)
+         .repeat(ControlQueue.CMD_NEXT_BEHAVIOR, 1),
+      new Case("fluid", 11L, 500, 300)
+         .repeat(ControlQueue.CMD_NEXT_BEHAVIOR, 2),
+      new Case("fluid-velocity-verlet", 12L, 500, 300)
+         .repeat(ControlQueue.CMD_NEXT_BEHAVIOR, 2)
+         .repeat(ControlQueue.CMD_NEXT_INTEGRATOR, 3),
+      new Case("layers", 13L, 500, 300)
+         .control(ControlQueue.CMD_ADD_LAYER, 200, 0f)
+         .set(ControlQueue.PARAM_Y_GRAVITY, -.5f)
+         .repeat(ControlQueue.CMD_NEXT_EMITTER_MODE, 1)
+         .control(ControlQueue.CMD_ADD_LAYER, 0, 0f)
+         .set(ControlQueue.PARAM_X_SPEED, 2f),
+   };
+
+   /**
+    * The outcome of running a case.
+    */
+   private static class Result {
+      // CRC-32 of the state of every system of the scene.
+      long m_lChecksum;
+      // The statistics compared in tolerance mode.
+      final double[] m_aStatistics = new double[STATISTICS];
+   }
+
+   public static void main(String[] args) throws IOException {
+      boolean record = false;
+      double tolerance = -1;
+      File golden = new File("data/regression.txt");
+      ArrayList names = new ArrayList();
+      for (int a = 0; a < args.length; a++) {
+         if (args[a].equals("-record")) {
+            record = true;
+         } else if (args[a].equals("-tolerance") && a + 1 < args.length) {
+            tolerance = Double.parseDouble(args[++a]);
+         } else if (args[a].endsWith(".txt")) {
+            golden = new File(args[a]);
+         } else {
+            names.add(args[a]);
+         }
+      }
+
+      // Recording keeps the golden results of the cases not run.
+      HashMap expected =
+         record && !golden.exists() ? new HashMap() : readGolden(golden);
+      int failed = 0;
+      for (int c = 0; c < CASES.length; c++) {
+         Case test = CASES[c];
+         if (!names.isEmpty() && !names.contains(test.m_sName)) {
+            continue;
+         }
+         long start = System.nanoTime();
+         Result result = run(test);
+         long millis = (System.nanoTime() - start) / 1000000L;
+         String line = format(test.m_sName, result);
+         if (record) {
+            expected.put(test.m_sName, result);
+            System.out.println("Recorded " + line);
+            continue;
+         }
+         Result previous = (Result)expected.get(test.m_sName);
+         String verdict;
+         if (previous == null) {
+            verdict = "MISSING";
+            failed++;
+         } else if (previous.m_lChecksum == result.m_lChecksum) {
+            verdict = "PASS";
+         } else if (tolerance >= 0 && withinTolerance(previous, result, tolerance)) {
+            verdict = "PASS (within tolerance)";
+         } else {
+            verdict = "FAIL";
+            failed++;
+         }
+         System.out.println(
+            verdict + " " + test.m_sName + " "
+               + Long.toHexString(result.m_lChecksum) + " (" + millis + " ms)");
+         if (previous != null && !verdict.equals("PASS")) {
+            System.out.println("   expected " + format(test.m_sName, previous));
+            System.out.println("   got      " + line);
+         }
+      }
+
+      if (record) {
+         writeGolden(golden, expected);
+         System.out.println("Wrote " + expected.size() + " checksums to " + golden + ".");
+         return;
+      }
+      System.exit(failed == 0 ? 0 : 1);
+   }
+
+   /**
+    * Runs a case in a world of its own, without a window.
+    *
+    * @param test The case to run.
+    * @return The checksum and statistics of the particles after the last
+    *         step.
+    */
+   private static Result run(Case test) {
+      ParticleWorld world = new ParticleWorld(0, false);
+      Random random = new Random(test.m_lSeed);
+      world.restart(random.nextLong());
+      for (int i = 0; i < test.m_aCommands.size(); i++) {
+         float[] command = (float[])test.m_aCommands.get(i);
+         world.applyControl((int)command[0], (int)command[1], command[2]);
+      }
+      ParticleScene scene =
+         new ParticleScene(
+            world,
+            new ParticleSystem(world, test.m_nParticles, false, random),
+            false);
+      scene.setBounds(WIDTH, HEIGHT);
+      for (int s = 0; s < test.m_nSteps; s++) {
+         scene.step(DELTA_TIME);
+      }
+
+      Result result = new Result();
+      CRC32 crc = new CRC32();
+      double[] sums = new double[STATISTICS];
+      for (int s = 0; s < scene.getSystemCount(); s++) {
+         ParticleSystem system = scene.getSystem(s);
+         ByteBuffer state = ByteBuffer.allocate(system.getStateSize());
+         system.writeState(state);
+         crc.update(state.array(), 0, state.position());
+         addStatistics(system.getPool(), sums);
+      }
+      result.m_lChecksum = crc.getValue();
+      double live = sums[0];
+      result.m_aStatistics[0] = live;
+      for (int i = 1; i < STATISTICS; i++) {
+         result.m_aStatistics[i] = live > 0 ? sums[i] / live : 0;
+      }
+      for (int i = 4; i < 7; i++) {
+         result.m_aStatistics[i] = Math.sqrt(result.m_aStatistics[i]);
+      }
+      return result;
+   }
+
+   /**
+    * Adds up the statistics of the live particles of a pool: their number,
+    * then the sums of x, y and z, of their squares, of the speeds and of
+    * the life.
+    */
+   private static void addStatistics(ParticlePool pool, double[] sums) {
+      int capacity = pool.getCapacity();
+      for (int i = 0; i < capacity; i++) {
+         if (!pool.isAlive(i)) {
+            continue;
+         }
+         int o = i * ParticlePool.VERTEX_SIZE;
+         double x = pool.getVertices().get(o + ParticlePool.OFFSET_X);
+         double y = pool.getVertices().get(o + ParticlePool.OFFSET_Y);
+         double z = pool.getVertices().get(o + ParticlePool.OFFSET_Z);
+         sums[0] += 1;
+         sums[1] += x;
+         sums[2] += y;
+         sums[3] += z;
+         sums[4] += x * x;
+         sums[5] += y * y;
+         sums[6] += z * z;
+         sums[7] += pool.m_aXSpeed[i];
+         sums[8] += pool.m_aYSpeed[i];
+         sums[9] += pool.m_aZSpeed[i];
+         sums[10] += pool.getLife(i);
+      }
+   }
+
+   /**
+    * Tells whether every statistic of a result is within the tolerance of
+    * the golden one. Values smaller than 1 are compared absolutely.
+    */
+   private static boolean withinTolerance(Result golden, Result result, double tolerance) {
+      for (int i = 0; i < STATISTICS; i++) {
+         double a = golden.m_aStatistics[i];
+         double b = result.m_aStatistics[i];
+         double scale = Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+         if (Math.abs(a - b) > tolerance * scale) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Formats a result as a line of the golden file: the case's name, the
+    * checksum in hexadecimal and the statistics.
+    */
+   private static String format(String name, Result result) {
+      StringBuffer line = new StringBuffer(name);
+      line.append(' ').append(Long.toHexString(result.m_lChecksum));
+      for (int i = 0; i < STATISTICS; i++) {
+         line.append(' ').append(result.m_aStatistics[i]);
+      }
+      return line.toString();
+   }
+
+   /**
+    * Reads the golden file, skipping blank lines and lines starting with #.
+    *
+    * @return The golden results keyed by case name.
+    */
+   private static HashMap readGolden(File file) throws IOException {
+      HashMap results = new HashMap();
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+               continue;
+            }
+            StringTokenizer tokens = new StringTokenizer(line);
+            String name = tokens.nextToken();
+            Result result = new Result();
+            result.m_lChecksum = Long.parseLong(tokens.nextToken(), 16);
+            for (int i = 0; i < STATISTICS && tokens.hasMoreTokens(); i++) {
+               result.m_aStatistics[i] = Double.parseDouble(tokens.nextToken());
+            }
+            results.put(name, result);
+         }
+      } finally {
+         in.close();
+      }
+      return results;
+   }
+
+   /**
+    * Writes the golden file, with the cases in the order they are run.
+    *
+    * @param file The file to write.
+    * @param results The results keyed by case name.
+    */
+   private static void writeGolden(File file, HashMap results) throws IOException {
+      PrintWriter out = new PrintWriter(new FileWriter(file));
+      try {
+         out.println("# Golden checksums of ParticleRegression. Each line holds a case,");
+         out.println("# the CRC-32 of its particles after the last step, the number of");
+         out.println("# live particles, the mean x, y and z, their root mean squares, the");
+         out.println("# mean speeds and the mean life. Rewrite with -record only after a");
+         out.println("# change which is meant to alter the simulation.");
+         for (int c = 0; c < CASES.length; c++) {
+            Result result = (Result)results.get(CASES[c].m_sName);
+            if (result != null) {
+               out.println(format(CASES[c].m_sName, result));
+            }
+         }
+      } finally {
+         out.close();
+      }
+   }
+}
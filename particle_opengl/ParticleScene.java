@@ -0,0 +1,189 @@
+import java.util.Random;
+
+/**
+ * The particle systems of a world, one per layer (see ParticleLayer). The
+ * world's own system is handed to the constructor; the systems of added
+ * layers are created and dropped as the world's layers come and go, each
+ * with the layer's budget and seeded from the layer.
+ *
+ * The systems share nothing but the world's rules, which are only read
+ * while they step, so a frame steps all of them in parallel on the
+ * WorkerPool.
+ */
+public class ParticleScene {
+   // The world whose layers are simulated.
+   private final ParticleWorld m_oWorld;
+   // True to keep the particles in direct memory for drawing.
+   private final boolean m_bDirect;
+   // The systems in layer order, the world's own first.
+   private ParticleSystem[] m_aSystems = new ParticleSystem[ParticleWorld.MAX_LAYERS];
+   private int m_nCount = 1;
+   // Scratch space for matching systems to layers.
+   private ParticleSystem[] m_aNext = new ParticleSystem[ParticleWorld.MAX_LAYERS];
+   // Bounds given to every system.
+   private int m_nWidth;
+   private int m_nHeight;
+   // Perspective given to the cullers of every system.
+   private float m_fFovY = 45f;
+   private float m_fAspect = 1f;
+   private float m_fNear = 0.1f;
+   private float m_fFar = 100f;
+   // The parallel work items, one per system.
+   private final Step[] m_aSteps = new Step[ParticleWorld.MAX_LAYERS];
+
+   /**
+    * Steps one system.
+    */
+   private class Step implements Runnable {
+      ParticleSystem m_oSystem;
+      float m_fDeltaTime;
+
+      public void run() {
+         m_oSystem.step(m_fDeltaTime);
+      }
+   }
+
+   /**
+    * Creates a scene around the world's own particle system.
+    *
+    * @param world The world whose layers are simulated.
+    * @param system The particle system of the world's own layer.
+    * @param direct True to keep the particles of added layers in direct
+    *        memory for drawing; false for worlds which are only simulated.
+    */
+   public ParticleScene(ParticleWorld world, ParticleSystem system, boolean direct) {
+      m_oWorld = world;
+      m_bDirect = direct;
+      m_aSystems[0] = system;
+      for (int s = 0; s < m_aSteps.length; s++) {
+         m_aSteps[s] = new Step();
+      }
+   }
+
+   /**
+    * Sets the bounds the particles of every system bounce between.
+    *
+    * @param width The bound on the x axis.
+    * @param height The bound on the y axis.
+    */
+   public void setBounds(int width, int height) {
+      m_nWidth = width;
+      m_nHeight = height;
+      for (int s = 0; s < m_nCount; s++) {
+         m_aSystems[s].setBounds(width, height);
+      }
+   }
+
+   /**
+    * Sets the perspective projection of the cullers of every system, as
+    * given to gluPerspective().
+    *
+    * @param fovY The vertical field of view in degrees.
+    * @param aspect The width of the viewport divided by its height.
+    * @param near The near clipping distance.
+    * @param far The far clipping distance.
+    */
+   public void setPerspective(float fovY, float aspect, float near, float far) {
+      m_fFovY = fovY;
+      m_fAspect = aspect;
+      m_fNear = near;
+      m_fFar = far;
+      for (int s = 0; s < m_nCount; s++) {
+         m_aSystems[s].getCuller().setPerspective(fovY, aspect, near, far);
+      }
+   }
+
+   /**
+    * Matches the systems to the world's layers, then advances every system
+    * by one frame. Only called from the thread stepping the world.
+    *
+    * @param dt The time since the last frame in seconds.
+    */
+   public void step(float dt) {
+      update();
+      if (m_nCount == 1) {
+         m_aSystems[0].step(dt);
+         return;
+      }
+      for (int s = 0; s < m_nCount; s++) {
+         Step step = m_aSteps[s];
+         step.m_oSystem = m_aSystems[s];
+         step.m_fDeltaTime = dt;
+      }
+      WorkerPool.run(m_aSteps, m_nCount);
+   }
+
+   /**
+    * Keeps a system for every layer of the world, in layer order. Systems
+    * of removed layers are dropped; new layers get a new system.
+    */
+   private void update() {
+      int layers = m_oWorld.getLayerCount();
+      ParticleSystem[] next = m_aNext;
+      next[0] = m_aSystems[0];
+      for (int l = 1; l < layers; l++) {
+         ParticleLayer layer = m_oWorld.getLayer(l);
+         ParticleSystem system = null;
+         for (int s = 1; s < m_nCount; s++) {
+            if (m_aSystems[s].getLayer() == layer) {
+               system = m_aSystems[s];
+               break;
+            }
+         }
+         if (system == null) {
+            int budget = layer.getBudget();
+            if (budget == 0) {
+               budget = m_aSystems[0].getPool().getCapacity();
+            }
+            system =
+               new ParticleSystem(
+                  m_oWorld,
+                  layer,
+                  budget,
+                  m_bDirect,
+                  new Random(layer.getSeed()));
+            system.setBounds(m_nWidth, m_nHeight);
+            system.getCuller().setPerspective(m_fFovY, m_fAspect, m_fNear, m_fFar);
+         }
+         next[l] = system;
+      }
+      for (int s = layers; s < m_nCount; s++) {
+         next[s] = null;
+      }
+      m_aNext = m_aSystems;
+      m_aSystems = next;
+      m_nCount = layers;
+   }
+
+   /**
+    * Retrieves the number of systems, one per layer as of the last step.
+    *
+    * @return The number of systems, at least 1.
+    */
+   public int getSystemCount() {
+      return m_nCount;
+   }
+
+   /**
+    * Retrieves a system.
+    *
+    * @param index The layer of the system; 0 is the world's own.
+    * @return The system.
+    */
+   public ParticleSystem getSystem(int index) {
+      return m_aSystems[index];
+   }
+
+   /**
+    * Retrieves the total number of particles of all systems.
+    *
+    * @return The sum of the systems' capacities.
+    */
+   public int getCapacity() {
+      int capacity = 0;
+      for (int s = 0; s < m_nCount; s++) {
+         capacity += m_aSystems[s].getPool().getCapacity();
+      }
+      return capacity;
+   }
+}
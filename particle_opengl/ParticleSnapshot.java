@@ -0,0 +1,98 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A copy of the complete particle state of a world: the user controls
+ * that drive the simulation, the emitter and force state, and every
+ * particle. Capturing and restoring copy each property array in one bulk
+ * operation, so a developed scene can be brought back instantly instead of
+ * growing a new swarm after a reset.
+ */
+public class ParticleSnapshot {
+   // Marks the start of a snapshot ("PSNP").
+   private static final int MAGIC = 0x50534e50;
+   // Incremented whenever the layout changes.
+   private static final int VERSION = 3;
+   // Size of the header: magic and version.
+   private static final int HEADER_SIZE = 8;
+
+   // The snapshot data.
+   private final byte[] m_aData;
+
+   /**
+    * Wraps existing snapshot data.
+    *
+    * @param data The bytes written by capture().
+    */
+   public ParticleSnapshot(byte[] data) {
+      m_aData = data;
+   }
+
+   /**
+    * Captures the state of the given world and particle system.
+    *
+    * @param world The world whose controls are captured.
+    * @param system The particle system to capture.
+    * @param reuse A previous snapshot whose storage may be reused if it
+    *        has the right size, or null.
+    * @return The new snapshot.
+    */
+   public static ParticleSnapshot capture(
+      ParticleWorld world,
+      ParticleSystem system,
+      ParticleSnapshot reuse) {
+      int size =
+         HEADER_SIZE + ParticleWorld.CONTROL_STATE_SIZE + system.getStateSize();
+      ParticleSnapshot snapshot = reuse;
+      if (snapshot == null || snapshot.m_aData.length != size) {
+         snapshot = new ParticleSnapshot(new byte[size]);
+      }
+      ByteBuffer buffer = snapshot.wrap();
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      world.writeControlState(buffer);
+      system.writeState(buffer);
+      return snapshot;
+   }
+
+   /**
+    * Restores the captured state into the given world and particle system.
+    *
+    * @param world The world whose controls are restored.
+    * @param system The particle system to restore.
+    * @return False if the snapshot is damaged, of another version, or was
+    *         taken from a particle system of a different size; nothing is
+    *         restored in that case.
+    */
+   public boolean restore(ParticleWorld world, ParticleSystem system) {
+      int expected =
+         HEADER_SIZE + ParticleWorld.CONTROL_STATE_SIZE + system.getStateSize();
+      if (m_aData.length != expected) {
+         return false;
+      }
+      ByteBuffer buffer = wrap();
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+         return false;
+      }
+      world.readControlState(buffer);
+      system.readState(buffer);
+      return true;
+   }
+
+   /**
+    * Retrieves the snapshot data, for storing it elsewhere.
+    *
+    * @return The snapshot bytes. Must not be modified.
+    */
+   public byte[] getData() {
+      return m_aData;
+   }
+
+   /**
+    * Wraps the data in a native-order buffer, so the bulk copies of the
+    * property arrays need no byte swapping.
+    */
+   private ByteBuffer wrap() {
+      return ByteBuffer.wrap(m_aData).order(ByteOrder.nativeOrder());
+   }
+}
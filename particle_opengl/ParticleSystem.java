@@ -0,0 +1,418 @@
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A population of particles together with the rules that move them. Each
+ * simulation step updates the live particles and then lets the emitter
+ * refill the pool's free slots.
+ */
+public class ParticleSystem {
+   // Behaviours: particles move on their own, flock (see ParticleFlock) or
+   // flow like a liquid (see ParticleFluid).
+   public static final int BEHAVIOR_SWARM = 0;
+   public static final int BEHAVIOR_FLOCK = 1;
+   public static final int BEHAVIOR_FLUID = 2;
+   public static final int BEHAVIOR_COUNT = 3;
+   // Integrators moving the particles (see ParticleIntegrator).
+   public static final int INTEGRATOR_EULER = 0;
+   public static final int INTEGRATOR_SYMPLECTIC_EULER = 1;
+   public static final int INTEGRATOR_POSITION_VERLET = 2;
+   public static final int INTEGRATOR_VELOCITY_VERLET = 3;
+   public static final int INTEGRATOR_COUNT = 4;
+   // The integrators hold no state, so all systems share them.
+   private static final ParticleIntegrator[] s_aIntegrators = {
+      new EulerIntegrator(),
+      new SymplecticEulerIntegrator(),
+      new PositionVerletIntegrator(),
+      new VelocityVerletIntegrator()};
+
+   // The parent world, which holds the user configurable controls.
+   private ParticleWorld m_oParent;
+   // The layer of the world holding this system's forces, emitter settings
+   // and sprite.
+   private final ParticleLayer m_oLayer;
+   // The particle storage.
+   private ParticlePool m_oPool;
+   // Decides how many particles are emitted each step.
+   private ParticleEmitter m_oEmitter = new ParticleEmitter();
+   // Collects the particles worth drawing while they are updated.
+   private ParticleCuller m_oCuller;
+   // Steer the particles in the flock and fluid behaviours, created on
+   // first use.
+   private ParticleFlock m_oFlock;
+   private ParticleFluid m_oFluid;
+   // Change in speed per step of every slot computed by the behaviour,
+   // all zero while the particles swarm.
+   private final float[] m_aSteerX;
+   private final float[] m_aSteerY;
+   private final float[] m_aSteerZ;
+   private boolean m_bSteering = false;
+   // Lets the integrator work out the steering whenever it needs it.
+   private final ParticleIntegrator.Steering m_oSteering =
+      new ParticleIntegrator.Steering() {
+         public void steer() {
+            ParticleSystem.this.steer();
+         }
+      };
+   // Slots of the particles alive at the start of the current step.
+   private final int[] m_aActive;
+   // Frames not yet covered by a simulation step.
+   private float m_fPendingSteps = 0f;
+   // Seconds not yet passed to the emitter.
+   private float m_fPendingTime = 0f;
+
+   // Current direction of travel along each axis. Flips whenever a particle
+   // leaves the bounds on that axis.
+   private float[] pick = {1f, -1f};
+   private float xDir;
+   private float yDir;
+   private float zDir;
+
+   // Bounds for the particles' locations on the x and y axes.
+   private int winWidth;
+   private int winHeight;
+
+   /**
+    * Creates a particle system whose particles can be drawn with OpenGL.
+    *
+    * @param parent   The world the particles live in.
+    * @param capacity The maximum number of particles.
+    */
+   public ParticleSystem(ParticleWorld parent, int capacity) {
+      this(parent, capacity, true);
+   }
+
+   /**
+    * Creates a particle system.
+    *
+    * @param parent   The world the particles live in.
+    * @param capacity The maximum number of particles.
+    * @param direct   True to keep the particles' vertex buffer in direct
+    *        memory for drawing; false to keep it on the heap, for systems
+    *        which are only simulated.
+    */
+   public ParticleSystem(ParticleWorld parent, int capacity, boolean direct) {
+      this(parent, capacity, direct, new Random());
+   }
+
+   /**
+    * Creates a particle system whose particles are all derived from the
+    * given random numbers, so two systems created from generators with the
+    * same seed run the same simulation.
+    *
+    * @param parent   The world the particles live in.
+    * @param capacity The maximum number of particles.
+    * @param direct   True to keep the particles' vertex buffer in direct
+    *        memory for drawing; false to keep it on the heap.
+    * @param random   The random numbers for the initial directions of
+    *        travel and for every particle emitted.
+    */
+   public ParticleSystem(
+      ParticleWorld parent,
+      int capacity,
+      boolean direct,
+      Random random) {
+      this(parent, parent.getLayer(0), capacity, direct, random);
+   }
+
+   /**
+    * Creates a particle system for one layer of a world.
+    *
+    * @param parent   The world the particles live in.
+    * @param layer    The layer holding the system's forces, emitter
+    *        settings and sprite.
+    * @param capacity The maximum number of particles.
+    * @param direct   True to keep the particles' vertex buffer in direct
+    *        memory for drawing; false to keep it on the heap.
+    * @param random   The random numbers for the initial directions of
+    *        travel and for every particle emitted.
+    */
+   public ParticleSystem(
+      ParticleWorld parent,
+      ParticleLayer layer,
+      int capacity,
+      boolean direct,
+      Random random) {
+      m_oParent = parent;
+      m_oLayer = layer;
+      xDir = pick[random.nextInt(2)];
+      yDir = pick[random.nextInt(2)];
+      zDir = pick[random.nextInt(2)];
+      m_oPool = new ParticlePool(capacity, random, direct);
+      m_oCuller = new ParticleCuller(capacity);
+      m_aSteerX = new float[capacity];
+      m_aSteerY = new float[capacity];
+      m_aSteerZ = new float[capacity];
+      m_aActive = new int[capacity];
+   }
+
+   /**
+    * Sets the bounds the particles bounce between on the x and y axes.
+    *
+    * @param width  The bound on the x axis.
+    * @param height The bound on the y axis.
+    */
+   public void setBounds(int width, int height) {
+      winWidth = width;
+      winHeight = height;
+   }
+
+   /**
+    * Advances the simulation by one frame. The world's time step decides
+    * how many frames one simulation step covers: with a time step of 2
+    * every other frame runs a step twice as long, with a time step of 0.5
+    * every frame runs two steps. Every particle that is still alive after
+    * the last step is passed to the culler, which leaves the list of
+    * particles to draw; frames without a step keep the previous list.
+    *
+    * @param dt The time since the last frame in seconds.
+    */
+   public void step(float dt) {
+      float timeStep = m_oParent.m_fTimeStep;
+      m_fPendingSteps += 1f;
+      m_fPendingTime += dt;
+      while (m_fPendingSteps >= timeStep) {
+         m_fPendingSteps -= timeStep;
+         simulate(timeStep, m_fPendingTime);
+         m_fPendingTime = 0f;
+      }
+   }
+
+   /**
+    * Runs one simulation step: applies the world's emitter settings, moves
+    * all live particles with the world's integrator and emits new
+    * particles into the free slots.
+    *
+    * @param length The length of the step in frames.
+    * @param dt The time passed to the emitter in seconds.
+    */
+   private void simulate(float length, float dt) {
+      // Test if we should reset the particles.
+      ParticleLayer layer = m_oLayer;
+      if (layer.resetParticles) {
+         m_oPool.resetAll(true);
+         layer.resetParticles = false;
+      }
+      m_oEmitter.setMode(layer.m_nEmitterMode);
+      m_oEmitter.setRate(layer.m_fEmissionRate);
+      m_oEmitter.setBurstCount(layer.m_nBurstCount);
+      m_oPool.setSprite(layer.m_nSprite);
+      if (layer.triggerBurst) {
+         m_oEmitter.triggerBurst();
+         layer.triggerBurst = false;
+      }
+
+      int active = age(length);
+      s_aIntegrators[m_oParent.m_nIntegrator].integrate(
+         m_oPool,
+         m_aActive,
+         active,
+         length,
+         layer.m_fSlowDown * 1000,
+         m_oSteering,
+         m_aSteerX,
+         m_aSteerY,
+         m_aSteerZ,
+         layer.m_fXGravityChange,
+         layer.m_fYGravityChange);
+
+      ParticleCuller culler = m_oCuller;
+      culler.begin(m_oParent.m_fZoom, m_oParent.getParticleRadius());
+      for (int k = 0; k < active; k++) {
+         int i = m_aActive[k];
+         if (!m_oPool.isAlive(i)) {
+            m_oPool.release(i);
+         } else {
+            culler.test(m_oPool, i);
+         }
+      }
+
+      int free = m_oPool.getFreeCount();
+      int count = m_oEmitter.update(dt, free);
+      if (count > 0) {
+         count = m_oPool.emit(count, layer.getXSpeed(), layer.getYSpeed());
+         for (int n = free - count; n < free; n++) {
+            culler.test(m_oPool, m_oPool.getFreeSlot(n));
+         }
+      }
+   }
+
+   /**
+    * Works out how every particle steers in the flock and fluid
+    * behaviours from where the particles are now. Called by the
+    * integrator, once or twice per step.
+    */
+   private void steer() {
+      int behavior = m_oParent.m_nBehavior;
+      boolean steering = behavior == BEHAVIOR_FLOCK || behavior == BEHAVIOR_FLUID;
+      if (!steering) {
+         // Swarming particles are not steered; clear what the last
+         // behaviour left behind.
+         if (m_bSteering) {
+            Arrays.fill(m_aSteerX, 0f);
+            Arrays.fill(m_aSteerY, 0f);
+            Arrays.fill(m_aSteerZ, 0f);
+            m_bSteering = false;
+         }
+         return;
+      }
+      m_bSteering = true;
+      int capacity = m_oPool.getCapacity();
+      if (behavior == BEHAVIOR_FLOCK) {
+         if (m_oFlock == null) {
+            m_oFlock = new ParticleFlock(capacity);
+         }
+         m_oFlock.steer(
+            m_oPool,
+            m_aSteerX,
+            m_aSteerY,
+            m_aSteerZ,
+            m_oParent.m_fFlockRadius,
+            m_oParent.m_fSeparation,
+            m_oParent.m_fAlignment,
+            m_oParent.m_fCohesion);
+      } else {
+         if (m_oFluid == null) {
+            m_oFluid = new ParticleFluid(capacity);
+         }
+         m_oFluid.steer(
+            m_oPool,
+            m_aSteerX,
+            m_aSteerY,
+            m_aSteerZ,
+            m_oParent.m_fFluidRadius,
+            m_oParent.m_fRestDensity,
+            m_oParent.m_fStiffness,
+            m_oParent.m_fViscosity,
+            m_oLayer.m_fSlowDown * 1000);
+      }
+   }
+
+   /**
+    * Decreases the life of every live particle and lets it drift in the
+    * current direction of travel, flipping a direction whenever a particle
+    * is found outside the bounds on that axis. Collects the slots of the
+    * particles into m_aActive for the integrator.
+    *
+    * @param length The length of the step in frames.
+    * @return The number of particles collected.
+    */
+   private int age(float length) {
+      ParticlePool p = m_oPool;
+      FloatBuffer v = p.m_oVertices;
+      int capacity = p.getCapacity();
+      int[] active = m_aActive;
+      int count = 0;
+      // Drift one tenth of a unit per frame.
+      float drift = length / 10;
+      for (int i = 0; i < capacity; i++) {
+         int o = i * ParticlePool.VERTEX_SIZE;
+         float life = v.get(o + ParticlePool.OFFSET_LIFE);
+         if (life <= 0f) {
+            continue;
+         }
+         // Update the particles' life. Each particle's life decreases.
+         v.put(o + ParticlePool.OFFSET_LIFE, life - p.m_aLifeFade[i] * length);
+         float x = v.get(o + ParticlePool.OFFSET_X);
+         if (x > winWidth - 1 || x < 1)
+            xDir = xDir * -1;
+         v.put(o + ParticlePool.OFFSET_X, x + xDir * drift);
+         float y = v.get(o + ParticlePool.OFFSET_Y);
+         if (y > winHeight - 1 || y < 1)
+            yDir = yDir * -1;
+         v.put(o + ParticlePool.OFFSET_Y, y + yDir * drift);
+         float z = v.get(o + ParticlePool.OFFSET_Z);
+         if (z > 99 || z < 1)
+            zDir = zDir * -1;
+         v.put(o + ParticlePool.OFFSET_Z, z + zDir * drift);
+         active[count++] = i;
+      }
+      return count;
+   }
+
+   /**
+    * Retrieves the number of bytes writeState() writes.
+    *
+    * @return The size of the system's state in bytes.
+    */
+   public int getStateSize() {
+      return 28 + ParticleEmitter.STATE_SIZE + m_oPool.getStateSize();
+   }
+
+   /**
+    * Writes the force state, the frames and time not yet simulated, the
+    * emitter state and all particles into the buffer.
+    *
+    * @param buffer The buffer to write to.
+    */
+   public void writeState(ByteBuffer buffer) {
+      buffer.putFloat(xDir);
+      buffer.putFloat(yDir);
+      buffer.putFloat(zDir);
+      buffer.putInt(winWidth);
+      buffer.putInt(winHeight);
+      buffer.putFloat(m_fPendingSteps);
+      buffer.putFloat(m_fPendingTime);
+      m_oEmitter.writeState(buffer);
+      m_oPool.writeState(buffer);
+   }
+
+   /**
+    * Restores the force state, the frames and time not yet simulated, the
+    * emitter state and all particles from the buffer, as written by
+    * writeState().
+    *
+    * @param buffer The buffer to read from.
+    */
+   public void readState(ByteBuffer buffer) {
+      xDir = buffer.getFloat();
+      yDir = buffer.getFloat();
+      zDir = buffer.getFloat();
+      winWidth = buffer.getInt();
+      winHeight = buffer.getInt();
+      m_fPendingSteps = buffer.getFloat();
+      m_fPendingTime = buffer.getFloat();
+      m_oEmitter.readState(buffer);
+      m_oPool.readState(buffer);
+      m_oCuller.invalidate();
+   }
+
+   /**
+    * Retrieves the particle storage.
+    *
+    * @return The pool holding this system's particles.
+    */
+   public ParticlePool getPool() {
+      return m_oPool;
+   }
+
+   /**
+    * Retrieves the layer holding this system's controls.
+    *
+    * @return The layer.
+    */
+   public ParticleLayer getLayer() {
+      return m_oLayer;
+   }
+
+   /**
+    * Retrieves the culler holding the particles to draw after the last
+    * step.
+    *
+    * @return The culler of this system.
+    */
+   public ParticleCuller getCuller() {
+      return m_oCuller;
+   }
+
+   /**
+    * Retrieves the emitter.
+    *
+    * @return The emitter controlling this system's emission.
+    */
+   public ParticleEmitter getEmitter() {
+      return m_oEmitter;
+   }
+}
@@ -11,6 +11,12 @@ import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
 import java.awt.HeadlessException;
 import java.awt.IllegalComponentStateException;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
 import javax.swing.JOptionPane;
 // Import classes needed for JOGL.
 import net.java.games.jogl.GLCanvas;
@@ -20,7 +26,7 @@ import net.java.games.jogl.GLCapabilities;
 /**
  * Defines a particle world/scene
  */
-public class ParticleWorld implements Runnable {
+public class ParticleWorld implements Runnable, ControlHandler {
    //	The height and width for the window, if in windowed mode.
    private final int WIN_HEIGHT;
    private final int WIN_WIDTH;
@@ -37,28 +43,98 @@ public class ParticleWorld implements Runnable {
    private KeyHandler m_oKeyHandler;
    // The GLEventListener used to process OpenGL events.
    private GLEventHandler m_oGLEventHandler;
+   // Number of bytes writeControlState() writes.
+   static final int CONTROL_STATE_SIZE = 80;
+   // Range of the time step. Shorter steps would run too many steps per
+   // frame, longer ones would make the motion visibly jerky.
+   static final float MIN_TIME_STEP = .25f;
+   static final float MAX_TIME_STEP = 4f;
+   // Control commands waiting to be applied by the render thread. The
+   // control fields below are only changed through this queue, so they are
+   // only ever touched by the render thread.
+   private final ControlQueue m_oControls = new ControlQueue(256);
    // The zoom distance. Used to zoom the objects in and out on the Z axis.
    protected float m_fZoom = -30f;
    // Current texture filter. This counter is used to signify which texture
-   // mapping we will use.
-   protected int m_nCurrentFilter = 0;
-   // Change in y gravitional pull.
-   protected float m_fYGravityChange = 0f;
-   // Change in x gravitional pull.
-   protected float m_fXGravityChange = 0f;
-   // Variable to slow down/speed up particles. The higher the value, 
-   // the slower the particles will be. The smaller the value, the faster 
-   // the particles will travel.
-   protected float m_fSlowDown = 2f;
-   // Reset the particles? Particles are reset after they become "dead"
-   // (i.e. the particle's life becomes <= 0).
-   protected boolean resetParticles = false;
-   // Variable for user to control the particles' speed in the X direction.
-   // Depending on the value of this variable, the user can even change
-   // the direction (positive X or negative X) the particles travel.
-   protected float m_fXSpeed;
-   // Variable for user to control the particles' speed in the Y direction.
-   protected float m_fYSpeed;
+   // filter (nearest, linear or mipmapped) the particle texture atlas uses.
+   protected int m_nCurrentFilter = TextureAtlas.FILTER_LINEAR;
+   // Number of sprites available, set once the atlas has been loaded.
+   protected int m_nSpriteCount = 1;
+   // Most layers of a world, layer 0 included.
+   static final int MAX_LAYERS = 8;
+   // The forces, emitter and sprite of the world's own particle system.
+   private final ParticleLayer m_oBaseLayer = new ParticleLayer(0, 0L);
+   // The world's own layer, followed by the layers added with
+   // CMD_ADD_LAYER, each simulated by a particle system of its own (see
+   // ParticleScene).
+   private final ArrayList m_aLayers = new ArrayList();
+   // The layer the force, emitter and sprite controls apply to.
+   protected ParticleLayer m_oLayer = m_oBaseLayer;
+   // Seeds of the added layers' particles.
+   private Random m_oLayerSeeds = new Random();
+   // Snapshots of developed scenes, keyed by preset number.
+   private final SnapshotCache m_oSnapshots = new SnapshotCache(8);
+   // Frame rate while this world's window is active.
+   protected float m_fTargetFPS = 60f;
+   // Frame rate while another window is active, leaving CPU time to the
+   // evolver.
+   protected float m_fBackgroundFPS = 20f;
+   // The controls as they were when the world was created, restored at
+   // the start of a lockstep session.
+   private final ByteBuffer m_oInitialControls =
+      ByteBuffer.allocate(CONTROL_STATE_SIZE);
+   // The process's lockstep, or null if this world runs on its own.
+   private final Lockstep m_oLockstep = Lockstep.getInstance();
+   // Number of worlds created so far, used to number them.
+   private static int s_nWorldCount = 0;
+   // The worlds of this process, indexed by world number.
+   private static ParticleWorld[] s_aWorlds = new ParticleWorld[9];
+   // The number of this world, starting at 1.
+   protected final int m_nWorldId;
+   // Compression used for recordings (see FrameRecorder).
+   protected int m_nRecordFlags =
+      FrameRecorder.FLAG_QUANTIZE | FrameRecorder.FLAG_DELTA;
+   // Playback speed of a replay. Negative speeds play backwards.
+   protected float m_fReplaySpeed = 1f;
+   // Image format of exported frames (see FrameExporter).
+   protected int m_nExportFormat = FrameExporter.FORMAT_PNG;
+   // How particles are drawn (see GLEventHandler). Point sprites are the
+   // default when the particles.pointSprites system property is true.
+   protected int m_nRenderMode =
+      Boolean.getBoolean("particles.pointSprites")
+         ? GLEventHandler.RENDER_POINT_SPRITES
+         : GLEventHandler.RENDER_QUADS;
+   // Size of point sprites when they are emitted and when they die (the
+   // evolved sizeRange). A quad particle has size 1.
+   protected float m_fSizeStart = 1f;
+   protected float m_fSizeEnd = 1f;
+   // How the particles move: as a swarm, a flock or a fluid (see
+   // ParticleSystem).
+   protected int m_nBehavior = ParticleSystem.BEHAVIOR_SWARM;
+   // Distance within which flocking particles react to each other.
+   protected float m_fFlockRadius = 2f;
+   // Weights of the separation, alignment and cohesion rules.
+   protected float m_fSeparation = 1f;
+   protected float m_fAlignment = .05f;
+   protected float m_fCohesion = .5f;
+   // Smoothing radius, rest density, stiffness and viscosity of the fluid
+   // behaviour (see ParticleFluid).
+   protected float m_fFluidRadius = 1f;
+   protected float m_fRestDensity = 4f;
+   protected float m_fStiffness = .002f;
+   protected float m_fViscosity = .05f;
+   // How the particles are moved forward in time (see ParticleSystem).
+   protected int m_nIntegrator = ParticleSystem.INTEGRATOR_EULER;
+   // Frames covered by one simulation step. Longer steps cost less per
+   // rendered second; the Verlet integrators keep them stable.
+   protected float m_fTimeStep = 1f;
+   // Brightness of the glow added to exported frames, and the brightness
+   // above which pixels glow (see PostProcessor). A glow of 0 is off.
+   protected float m_fGlow = 0f;
+   protected float m_fGlowThreshold = .6f;
+   // Weight of the earlier frames blended into each exported frame, so
+   // moving particles leave trails. 0 is off.
+   protected float m_fTrail = 0f;
    
    // thread stuff
    private boolean stopthread = false;
@@ -79,8 +155,12 @@ public class ParticleWorld implements Runnable {
     * Constructors for this class.
     */
    public ParticleWorld(int width, int height) {
+   		m_nWorldId = nextWorldId();
    		WIN_WIDTH = width;
    		WIN_HEIGHT = height;
+   		writeControlState(m_oInitialControls);
+   		register(this);
+   		m_aLayers.add(m_oBaseLayer);
         runner = new Thread(this);
       	//runner.setPriority(Thread.MIN_PRIORITY);
         runner.start();
@@ -88,14 +168,86 @@ public class ParticleWorld implements Runnable {
    }
    
    public ParticleWorld() {
+   		m_nWorldId = nextWorldId();
    		WIN_WIDTH = 320;
    		WIN_HEIGHT = 240;
+   		writeControlState(m_oInitialControls);
+   		register(this);
+   		m_aLayers.add(m_oBaseLayer);
+        runner = new Thread(this);
+      	//runner.setPriority(Thread.MIN_PRIORITY);
+        runner.start();
+        stopthread = false;
+   }
+
+   /**
+    * Creates the world with the given number, for processes which show
+    * only some of the worlds (see Lockstep).
+    */
+   public ParticleWorld(int worldId) {
+   		this(worldId, true);
+   }
+
+   /**
+    * Creates the world with the given number, with or without a window.
+    * A world without a window simulates particles headless (see
+    * ParticleRegression): it is not one of the worlds of the process, so
+    * neither the network nor the keyboard reach it, and its controls are
+    * only changed through applyControl().
+    *
+    * @param worldId The number of the world.
+    * @param window False to create the world without a window.
+    */
+   ParticleWorld(int worldId, boolean window) {
+   		m_nWorldId = worldId;
+   		WIN_WIDTH = 320;
+   		WIN_HEIGHT = 240;
+   		writeControlState(m_oInitialControls);
+   		m_aLayers.add(m_oBaseLayer);
+   		if (!window) {
+   		   stopthread = true;
+   		   return;
+   		}
+   		register(this);
         runner = new Thread(this);
       	//runner.setPriority(Thread.MIN_PRIORITY);
         runner.start();
         stopthread = false;
    }
    
+   /**
+    * Hands out the next world number.
+    */
+   private static synchronized int nextWorldId() {
+      return ++s_nWorldCount;
+   }
+
+   /**
+    * Adds a world to the worlds of this process.
+    */
+   private static synchronized void register(ParticleWorld world) {
+      int id = world.m_nWorldId;
+      if (id >= s_aWorlds.length) {
+         ParticleWorld[] worlds = new ParticleWorld[Math.max(id + 1, s_aWorlds.length * 2)];
+         System.arraycopy(s_aWorlds, 0, worlds, 0, s_aWorlds.length);
+         s_aWorlds = worlds;
+      }
+      s_aWorlds[id] = world;
+   }
+
+   /**
+    * Looks up a world of this process by its number.
+    *
+    * @param worldId The number of the world.
+    * @return The world, or null if this process does not show it.
+    */
+   public static synchronized ParticleWorld getWorld(int worldId) {
+      if (worldId < 0 || worldId >= s_aWorlds.length) {
+         return null;
+      }
+      return s_aWorlds[worldId];
+   }
+
    public void stopWorld() {
         runner = null;
         stopthread = true;
@@ -170,6 +322,15 @@ public class ParticleWorld implements Runnable {
       // First, create a Frame which is initialized to display OpenGL
       // components.
       m_oMainWindow = new Frame();
+      // Render at the full frame rate only while this window is active.
+      m_oMainWindow.addWindowListener(new WindowAdapter() {
+         public void windowActivated(WindowEvent e) {
+            m_oGLEventHandler.setTargetFPS(m_fTargetFPS);
+         }
+         public void windowDeactivated(WindowEvent e) {
+            m_oGLEventHandler.setTargetFPS(m_fBackgroundFPS);
+         }
+      });
       // Now create components inside this frame which is OpenGL enabled. 
       createGLEnabledFrame(width, height, bit);
       
@@ -220,7 +381,7 @@ public class ParticleWorld implements Runnable {
          m_oMainWindow.dispose();
       } */
 
-      m_oGLEventHandler.stopAnimator();
+      m_oGLEventHandler.stopRendering();
       System.exit(0);
    }
 
@@ -265,9 +426,9 @@ public class ParticleWorld implements Runnable {
                + eHeadless.getMessage());
          return;
       }
-      // Must stop the Animator thread before switching window modes, or
-      // else the JOGL GLException will be thrown (error swapping buffers).
-      m_oGLEventHandler.stopAnimator();
+      // Must stop rendering before switching window modes, or else the
+      // JOGL GLException will be thrown (error swapping buffers).
+      m_oGLEventHandler.stopRendering();
       if (defaultScreen != null) {
          if (!m_bIsFullScreen) {
             // Current window is not in full screen mode. Try to set it to
@@ -279,8 +440,8 @@ public class ParticleWorld implements Runnable {
             setWindowedMode(defaultScreen);
          }
       }
-      // Start up animator again.
-      m_oGLEventHandler.startAnimator();
+      // Start up rendering again.
+      m_oGLEventHandler.startRendering();
    }
 */
 
@@ -425,18 +586,480 @@ public class ParticleWorld implements Runnable {
    }
 
    /**
-    * Toggles the currently displayed texture. The counter m_nCurrentFilter
-    * is used to select which texture filter to use. We will create 3 
-    * texture mappings later on in the application. Therefore, the counter
-    * will range from 0 to 2, inclusive. Each time this method is called,
-    * the counter will increase by 1.
+    * Posts a control command for this world. May be called from any
+    * thread; the command takes effect at the start of the next simulation
+    * step. In lockstep the command goes to the master's next frame, so
+    * every process showing this world applies it at the same step.
+    *
+    * @param command One of the ControlQueue.CMD_ constants.
+    * @param argument The parameter for CMD_ADD and CMD_SET.
+    * @param value The value for CMD_ADD and CMD_SET.
+    * @return False if the command was dropped because too many commands
+    *         are waiting, or because this process is a lockstep follower.
     */
-   protected synchronized void toggleFilter() {
-      if (m_nCurrentFilter < 2) {
-         m_nCurrentFilter += 1;
-      } else {
-         m_nCurrentFilter = 0;
+   public boolean postControl(int command, int argument, float value) {
+      if (m_oLockstep != null) {
+         return m_oLockstep.post(m_nWorldId, command, argument, value);
       }
+      return m_oControls.post(command, argument, value);
+   }
+
+   /**
+    * Retrieves the number of this world.
+    *
+    * @return The world number, starting at 1.
+    */
+   public int getWorldId() {
+      return m_nWorldId;
+   }
+
+   /**
+    * Retrieves the width of the world's window in windowed mode.
+    *
+    * @return The width in pixels.
+    */
+   int getWindowWidth() {
+      return WIN_WIDTH;
+   }
+
+   /**
+    * Retrieves the height of the world's window in windowed mode.
+    *
+    * @return The height in pixels.
+    */
+   int getWindowHeight() {
+      return WIN_HEIGHT;
+   }
+
+   /**
+    * Retrieves the lockstep this world takes part in.
+    *
+    * @return The process's lockstep, or null.
+    */
+   Lockstep getLockstep() {
+      return m_oLockstep;
+   }
+
+   /**
+    * Puts the controls which drive the simulation back to the values they
+    * had when the world was created, removes the added layers and forgets
+    * the stored snapshots, so the world starts a lockstep session in the
+    * same state on every process. Only called from the render thread.
+    *
+    * @param seed The seed of the particles of layers added from now on.
+    */
+   void restart(long seed) {
+      m_oInitialControls.rewind();
+      readControlState(m_oInitialControls);
+      m_oBaseLayer.resetParticles = false;
+      m_oBaseLayer.triggerBurst = false;
+      m_aLayers.clear();
+      m_aLayers.add(m_oBaseLayer);
+      m_oLayer = m_oBaseLayer;
+      m_oLayerSeeds = new Random(seed);
+      m_oSnapshots.clear();
+   }
+
+   /**
+    * Applies all posted control commands. Called by the render thread once
+    * per simulation step, before the particles are updated.
+    */
+   protected void drainControls() {
+      m_oControls.drain(this);
+   }
+
+   /**
+    * Applies one control command to this world's controls. Only called
+    * from the render thread, through drainControls().
+    *
+    * @param command One of the ControlQueue.CMD_ constants.
+    * @param argument The parameter for CMD_ADD and CMD_SET.
+    * @param value The value for CMD_ADD and CMD_SET.
+    */
+   public void applyControl(int command, int argument, float value) {
+      switch (command) {
+         case ControlQueue.CMD_ADD :
+            setParameter(argument, getParameter(argument) + value);
+            break;
+         case ControlQueue.CMD_SET :
+            setParameter(argument, value);
+            break;
+         case ControlQueue.CMD_RESET :
+            m_oLayer.resetParticles = true;
+            break;
+         case ControlQueue.CMD_BURST :
+            m_oLayer.triggerBurst = true;
+            break;
+         case ControlQueue.CMD_NEXT_FILTER :
+            // Cycle through the nearest, linear and mipmapped filters.
+            m_nCurrentFilter = (m_nCurrentFilter + 1) % 3;
+            break;
+         case ControlQueue.CMD_NEXT_EMITTER_MODE :
+            m_oLayer.m_nEmitterMode =
+               (m_oLayer.m_nEmitterMode + 1) % ParticleEmitter.MODE_COUNT;
+            break;
+         case ControlQueue.CMD_NEXT_SPRITE :
+            m_oLayer.m_nSprite = (m_oLayer.m_nSprite + 1) % m_nSpriteCount;
+            break;
+         case ControlQueue.CMD_SAVE_SNAPSHOT :
+            saveSnapshot(new Integer(argument));
+            break;
+         case ControlQueue.CMD_RESTORE_SNAPSHOT :
+            restoreSnapshot(new Integer(argument));
+            break;
+         case ControlQueue.CMD_TOGGLE_RECORDING :
+            m_oGLEventHandler.toggleRecording();
+            break;
+         case ControlQueue.CMD_TOGGLE_REPLAY :
+            m_oGLEventHandler.toggleReplay();
+            break;
+         case ControlQueue.CMD_TOGGLE_EXPORT :
+            m_oGLEventHandler.toggleExport();
+            break;
+         case ControlQueue.CMD_NEXT_RENDER_MODE :
+            m_nRenderMode = 1 - m_nRenderMode;
+            break;
+         case ControlQueue.CMD_NEXT_BEHAVIOR :
+            m_nBehavior = (m_nBehavior + 1) % ParticleSystem.BEHAVIOR_COUNT;
+            break;
+         case ControlQueue.CMD_NEXT_INTEGRATOR :
+            m_nIntegrator = (m_nIntegrator + 1) % ParticleSystem.INTEGRATOR_COUNT;
+            break;
+         case ControlQueue.CMD_NEXT_LAYER :
+            m_oLayer = getLayer((m_aLayers.indexOf(m_oLayer) + 1) % m_aLayers.size());
+            break;
+         case ControlQueue.CMD_SELECT_LAYER :
+            m_oLayer = getLayer(Math.max(0, Math.min(m_aLayers.size() - 1, argument)));
+            break;
+         case ControlQueue.CMD_ADD_LAYER :
+            if (m_aLayers.size() < MAX_LAYERS) {
+               m_oLayer = new ParticleLayer(argument, m_oLayerSeeds.nextLong());
+               m_aLayers.add(m_oLayer);
+            }
+            break;
+         case ControlQueue.CMD_REMOVE_LAYER :
+            if (m_oLayer != m_oBaseLayer) {
+               m_aLayers.remove(m_oLayer);
+               m_oLayer = m_oBaseLayer;
+            }
+            break;
+      }
+   }
+
+   /**
+    * Retrieves the number of layers, including the world's own.
+    *
+    * @return The number of layers, at least 1.
+    */
+   int getLayerCount() {
+      return m_aLayers.size();
+   }
+
+   /**
+    * Retrieves a layer. Only called from the render thread.
+    *
+    * @param index The layer's position; 0 is the world's own layer.
+    * @return The layer.
+    */
+   ParticleLayer getLayer(int index) {
+      return (ParticleLayer)m_aLayers.get(index);
+   }
+
+   /**
+    * Stores a snapshot of the current particles under the given preset.
+    * Only called from the render thread.
+    *
+    * @param preset The preset key.
+    */
+   private void saveSnapshot(Object preset) {
+      ParticleSystem system = m_oGLEventHandler.getParticleSystem();
+      if (system != null) {
+         m_oSnapshots.put(
+            preset,
+            ParticleSnapshot.capture(this, system, m_oSnapshots.get(preset)));
+      }
+   }
+
+   /**
+    * Replaces the current particles with the snapshot stored under the
+    * given preset, if there is one. Only called from the render thread.
+    *
+    * @param preset The preset key.
+    */
+   private void restoreSnapshot(Object preset) {
+      ParticleSystem system = m_oGLEventHandler.getParticleSystem();
+      ParticleSnapshot snapshot = m_oSnapshots.get(preset);
+      if (system != null && snapshot != null) {
+         if (!snapshot.restore(this, system)) {
+            System.out.println("Snapshot " + preset + " does not fit this world.");
+         }
+      }
+   }
+
+   /**
+    * Writes the controls which drive the simulation into the buffer. The
+    * zoom is a view setting and is not included; of the layers only the
+    * world's own is, as snapshots only hold the world's own particles.
+    *
+    * @param buffer The buffer to write to.
+    */
+   void writeControlState(ByteBuffer buffer) {
+      buffer.putFloat(m_oBaseLayer.m_fXGravityChange);
+      buffer.putFloat(m_oBaseLayer.m_fYGravityChange);
+      buffer.putFloat(m_oBaseLayer.m_fSlowDown);
+      buffer.putFloat(m_oBaseLayer.m_fXSpeed);
+      buffer.putFloat(m_oBaseLayer.m_fYSpeed);
+      buffer.putInt(m_oBaseLayer.m_nEmitterMode);
+      buffer.putFloat(m_oBaseLayer.m_fEmissionRate);
+      buffer.putInt(m_oBaseLayer.m_nBurstCount);
+      buffer.putInt(m_oBaseLayer.m_nSprite);
+      buffer.putInt(m_nBehavior);
+      buffer.putFloat(m_fFlockRadius);
+      buffer.putFloat(m_fSeparation);
+      buffer.putFloat(m_fAlignment);
+      buffer.putFloat(m_fCohesion);
+      buffer.putFloat(m_fFluidRadius);
+      buffer.putFloat(m_fRestDensity);
+      buffer.putFloat(m_fStiffness);
+      buffer.putFloat(m_fViscosity);
+      buffer.putInt(m_nIntegrator);
+      buffer.putFloat(m_fTimeStep);
+   }
+
+   /**
+    * Restores the controls written by writeControlState().
+    *
+    * @param buffer The buffer to read from.
+    */
+   void readControlState(ByteBuffer buffer) {
+      m_oBaseLayer.m_fXGravityChange = buffer.getFloat();
+      m_oBaseLayer.m_fYGravityChange = buffer.getFloat();
+      m_oBaseLayer.m_fSlowDown = buffer.getFloat();
+      m_oBaseLayer.m_fXSpeed = buffer.getFloat();
+      m_oBaseLayer.m_fYSpeed = buffer.getFloat();
+      m_oBaseLayer.m_nEmitterMode = buffer.getInt();
+      m_oBaseLayer.m_fEmissionRate = buffer.getFloat();
+      m_oBaseLayer.m_nBurstCount = buffer.getInt();
+      m_oBaseLayer.m_nSprite = buffer.getInt() % m_nSpriteCount;
+      m_nBehavior = buffer.getInt();
+      m_fFlockRadius = buffer.getFloat();
+      m_fSeparation = buffer.getFloat();
+      m_fAlignment = buffer.getFloat();
+      m_fCohesion = buffer.getFloat();
+      m_fFluidRadius = buffer.getFloat();
+      m_fRestDensity = buffer.getFloat();
+      m_fStiffness = buffer.getFloat();
+      m_fViscosity = buffer.getFloat();
+      m_nIntegrator = buffer.getInt();
+      m_fTimeStep = buffer.getFloat();
+   }
+
+   /**
+    * Retrieves the current value of a control parameter.
+    *
+    * @param parameter One of the ControlQueue.PARAM_ constants.
+    * @return The parameter's value.
+    */
+   protected float getParameter(int parameter) {
+      switch (parameter) {
+         case ControlQueue.PARAM_ZOOM :
+            return m_fZoom;
+         case ControlQueue.PARAM_X_GRAVITY :
+            return m_oLayer.m_fXGravityChange;
+         case ControlQueue.PARAM_Y_GRAVITY :
+            return m_oLayer.m_fYGravityChange;
+         case ControlQueue.PARAM_SLOW_DOWN :
+            return m_oLayer.m_fSlowDown;
+         case ControlQueue.PARAM_X_SPEED :
+            return m_oLayer.m_fXSpeed;
+         case ControlQueue.PARAM_Y_SPEED :
+            return m_oLayer.m_fYSpeed;
+         case ControlQueue.PARAM_EMISSION_RATE :
+            return m_oLayer.m_fEmissionRate;
+         case ControlQueue.PARAM_BURST_COUNT :
+            return m_oLayer.m_nBurstCount;
+         case ControlQueue.PARAM_REPLAY_SPEED :
+            return m_fReplaySpeed;
+         case ControlQueue.PARAM_SIZE_START :
+            return m_fSizeStart;
+         case ControlQueue.PARAM_SIZE_END :
+            return m_fSizeEnd;
+         case ControlQueue.PARAM_FLOCK_RADIUS :
+            return m_fFlockRadius;
+         case ControlQueue.PARAM_SEPARATION :
+            return m_fSeparation;
+         case ControlQueue.PARAM_ALIGNMENT :
+            return m_fAlignment;
+         case ControlQueue.PARAM_COHESION :
+            return m_fCohesion;
+         case ControlQueue.PARAM_FLUID_RADIUS :
+            return m_fFluidRadius;
+         case ControlQueue.PARAM_REST_DENSITY :
+            return m_fRestDensity;
+         case ControlQueue.PARAM_STIFFNESS :
+            return m_fStiffness;
+         case ControlQueue.PARAM_VISCOSITY :
+            return m_fViscosity;
+         case ControlQueue.PARAM_TIME_STEP :
+            return m_fTimeStep;
+         case ControlQueue.PARAM_GLOW :
+            return m_fGlow;
+         case ControlQueue.PARAM_GLOW_THRESHOLD :
+            return m_fGlowThreshold;
+         case ControlQueue.PARAM_TRAIL :
+            return m_fTrail;
+         default :
+            return 0f;
+      }
+   }
+
+   /**
+    * Sets a control parameter.
+    *
+    * @param parameter One of the ControlQueue.PARAM_ constants.
+    * @param value The new value. The emission rate, burst count and sizes
+    *        never drop below zero, nor do the fluid's rest density,
+    *        stiffness and viscosity; the flock and fluid radii never drop
+    *        below 0.1. The time step stays between MIN_TIME_STEP and
+    *        MAX_TIME_STEP. The glow never drops below zero, its threshold
+    *        stays between 0 and 1 and the trail between 0 and 0.95.
+    */
+   protected void setParameter(int parameter, float value) {
+      switch (parameter) {
+         case ControlQueue.PARAM_ZOOM :
+            m_fZoom = value;
+            break;
+         case ControlQueue.PARAM_X_GRAVITY :
+            m_oLayer.m_fXGravityChange = value;
+            break;
+         case ControlQueue.PARAM_Y_GRAVITY :
+            m_oLayer.m_fYGravityChange = value;
+            break;
+         case ControlQueue.PARAM_SLOW_DOWN :
+            m_oLayer.m_fSlowDown = value;
+            break;
+         case ControlQueue.PARAM_X_SPEED :
+            m_oLayer.m_fXSpeed = value;
+            break;
+         case ControlQueue.PARAM_Y_SPEED :
+            m_oLayer.m_fYSpeed = value;
+            break;
+         case ControlQueue.PARAM_EMISSION_RATE :
+            m_oLayer.m_fEmissionRate = Math.max(0f, value);
+            break;
+         case ControlQueue.PARAM_BURST_COUNT :
+            m_oLayer.m_nBurstCount = Math.max(0, (int)value);
+            break;
+         case ControlQueue.PARAM_REPLAY_SPEED :
+            m_fReplaySpeed = value;
+            break;
+         case ControlQueue.PARAM_SIZE_START :
+            m_fSizeStart = Math.max(0f, value);
+            break;
+         case ControlQueue.PARAM_SIZE_END :
+            m_fSizeEnd = Math.max(0f, value);
+            break;
+         case ControlQueue.PARAM_FLOCK_RADIUS :
+            // The radius is the grid's cell size and must stay positive.
+            m_fFlockRadius = Math.max(.1f, value);
+            break;
+         case ControlQueue.PARAM_SEPARATION :
+            m_fSeparation = value;
+            break;
+         case ControlQueue.PARAM_ALIGNMENT :
+            m_fAlignment = value;
+            break;
+         case ControlQueue.PARAM_COHESION :
+            m_fCohesion = value;
+            break;
+         case ControlQueue.PARAM_FLUID_RADIUS :
+            m_fFluidRadius = Math.max(.1f, value);
+            break;
+         case ControlQueue.PARAM_REST_DENSITY :
+            m_fRestDensity = Math.max(0f, value);
+            break;
+         case ControlQueue.PARAM_STIFFNESS :
+            m_fStiffness = Math.max(0f, value);
+            break;
+         case ControlQueue.PARAM_VISCOSITY :
+            m_fViscosity = Math.max(0f, value);
+            break;
+         case ControlQueue.PARAM_TIME_STEP :
+            m_fTimeStep = Math.min(MAX_TIME_STEP, Math.max(MIN_TIME_STEP, value));
+            break;
+         case ControlQueue.PARAM_GLOW :
+            m_fGlow = Math.max(0f, value);
+            break;
+         case ControlQueue.PARAM_GLOW_THRESHOLD :
+            m_fGlowThreshold = Math.min(1f, Math.max(0f, value));
+            break;
+         case ControlQueue.PARAM_TRAIL :
+            m_fTrail = Math.min(.95f, Math.max(0f, value));
+            break;
+      }
+   }
+
+   /**
+    * Toggles the texture filter. The counter m_nCurrentFilter is used to
+    * select which filter the texture atlas uses: nearest, linear or
+    * mipmapped. Therefore, the counter will range from 0 to 2, inclusive.
+    * Each time the command is applied, the counter will increase by 1.
+    */
+   protected void toggleFilter() {
+      postControl(ControlQueue.CMD_NEXT_FILTER, 0, 0f);
+   }
+
+   /**
+    * Switches newly emitted particles to the next sprite in the texture
+    * atlas. Particles which are already alive keep their sprite.
+    */
+   protected void cycleSprite() {
+      postControl(ControlQueue.CMD_NEXT_SPRITE, 0, 0f);
+   }
+
+   /**
+    * Restarts all particles on the next simulation step.
+    */
+   protected void requestReset() {
+      postControl(ControlQueue.CMD_RESET, 0, 0f);
+   }
+
+   /**
+    * Emits a burst of particles on the next simulation step. Only has an
+    * effect in burst mode.
+    */
+   protected void requestBurst() {
+      postControl(ControlQueue.CMD_BURST, 0, 0f);
+   }
+
+   /**
+    * Stores a snapshot of the particles under the given preset on the
+    * next simulation step.
+    *
+    * @param preset The preset number.
+    */
+   protected void requestSaveSnapshot(int preset) {
+      postControl(ControlQueue.CMD_SAVE_SNAPSHOT, preset, 0f);
+   }
+
+   /**
+    * Restores the snapshot stored under the given preset on the next
+    * simulation step.
+    *
+    * @param preset The preset number.
+    */
+   protected void requestRestoreSnapshot(int preset) {
+      postControl(ControlQueue.CMD_RESTORE_SNAPSHOT, preset, 0f);
+   }
+
+   /**
+    * Zooms the particles in or out along the Z axis.
+    *
+    * @param zoomIn A boolean indicating if the particles should move
+    *        closer to the viewer.
+    */
+   protected void changeZoom(boolean zoomIn) {
+      postControl(ControlQueue.CMD_ADD, ControlQueue.PARAM_ZOOM, zoomIn ? .5f : -.5f);
    }
 
    /**
@@ -447,11 +1070,10 @@ public class ParticleWorld implements Runnable {
     *        Y) increases. If false, the downward pull deceases. 
     */
    protected void changeYGravity(boolean increase) {
-      if (increase) {
-         m_fYGravityChange += 0.01f;
-      } else {
-         m_fYGravityChange += -0.01f;
-      }
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_Y_GRAVITY,
+         increase ? 0.01f : -0.01f);
    }
 
    /**
@@ -463,11 +1085,10 @@ public class ParticleWorld implements Runnable {
     *        pull increases). 
     */
    protected void changeXGravity(boolean increase) {
-      if (increase) {
-         m_fXGravityChange += 0.01f;
-      } else {
-         m_fXGravityChange += -0.01;
-      }
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_X_GRAVITY,
+         increase ? 0.01f : -0.01f);
    }
 
    /**
@@ -480,11 +1101,10 @@ public class ParticleWorld implements Runnable {
     *        factor decreases, therefore the particles travel faster.
     */
    protected void changeSlowDown(boolean increase) {
-      if (increase) {
-         m_fSlowDown += 0.01f;
-      } else {
-         m_fSlowDown += -0.01f;
-      }
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_SLOW_DOWN,
+         increase ? 0.01f : -0.01f);
    }
 
    /**
@@ -498,11 +1118,10 @@ public class ParticleWorld implements Runnable {
     *        
     */
    protected void changeXSpeed(boolean increase) {
-      if (increase) {
-         m_fXSpeed += 1f;
-      } else {
-         m_fXSpeed += -1f;
-      }
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_X_SPEED,
+         increase ? 1f : -1f);
    }
 
    /**
@@ -516,29 +1135,257 @@ public class ParticleWorld implements Runnable {
     *        
     */
    protected void changeYSpeed(boolean increase) {
-      if (increase) {
-         m_fYSpeed += 1f;
-      } else {
-         m_fYSpeed += -1f;
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_Y_SPEED,
+         increase ? 1f : -1f);
+   }
+
+   /**
+    * Switches to the next emission mode: refill, stream, burst, and back
+    * to refill.
+    */
+   protected void cycleEmitterMode() {
+      postControl(ControlQueue.CMD_NEXT_EMITTER_MODE, 0, 0f);
+   }
+
+   /**
+    * Changes the number of particles emitted per second in stream mode.
+    *
+    * @param increase A boolean indicating whether to emit more or fewer
+    *        particles per second. The rate never drops below zero.
+    */
+   protected void changeEmissionRate(boolean increase) {
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_EMISSION_RATE,
+         increase ? 50f : -50f);
+   }
+
+   /**
+    * Starts recording the particles to this world's recording file, or
+    * stops recording if a recording is in progress.
+    */
+   protected void toggleRecording() {
+      postControl(ControlQueue.CMD_TOGGLE_RECORDING, 0, 0f);
+   }
+
+   /**
+    * Starts replaying this world's recording file, or returns to the
+    * simulation if a replay is in progress.
+    */
+   protected void toggleReplay() {
+      postControl(ControlQueue.CMD_TOGGLE_REPLAY, 0, 0f);
+   }
+
+   /**
+    * Changes the replay speed. Lowering it below zero plays the recording
+    * backwards.
+    *
+    * @param increase A boolean indicating whether to play faster forward
+    *        or faster backward.
+    */
+   protected void changeReplaySpeed(boolean increase) {
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_REPLAY_SPEED,
+         increase ? .5f : -.5f);
+   }
+
+   /**
+    * Starts exporting the rendered frames to this world's export
+    * directory, or stops exporting.
+    */
+   protected void toggleExport() {
+      postControl(ControlQueue.CMD_TOGGLE_EXPORT, 0, 0f);
+   }
+
+   /**
+    * Switches between drawing the particles as quads and as point sprites.
+    */
+   protected void toggleRenderMode() {
+      postControl(ControlQueue.CMD_NEXT_RENDER_MODE, 0, 0f);
+   }
+
+   /**
+    * Changes the size of point sprites at the start or the end of their
+    * life.
+    *
+    * @param end A boolean indicating whether to change the end size
+    *        instead of the start size.
+    * @param increase A boolean indicating whether to grow or shrink. Sizes
+    *        never drop below zero.
+    */
+   protected void changeSize(boolean end, boolean increase) {
+      postControl(
+         ControlQueue.CMD_ADD,
+         end ? ControlQueue.PARAM_SIZE_END : ControlQueue.PARAM_SIZE_START,
+         increase ? .25f : -.25f);
+   }
+
+   /**
+    * Switches to the next behaviour: swarm, flock, fluid, and back to
+    * swarm.
+    */
+   protected void cycleBehavior() {
+      postControl(ControlQueue.CMD_NEXT_BEHAVIOR, 0, 0f);
+   }
+
+   /**
+    * Switches to the next integrator: Euler, symplectic Euler, position
+    * Verlet, velocity Verlet, and back to Euler.
+    */
+   protected void cycleIntegrator() {
+      postControl(ControlQueue.CMD_NEXT_INTEGRATOR, 0, 0f);
+   }
+
+   /**
+    * Points the force, emitter and sprite controls at the next layer.
+    */
+   protected void cycleLayer() {
+      postControl(ControlQueue.CMD_NEXT_LAYER, 0, 0f);
+   }
+
+   /**
+    * Adds a layer with as many particles as the world's own and points the
+    * controls at it.
+    */
+   protected void addLayer() {
+      postControl(ControlQueue.CMD_ADD_LAYER, 0, 0f);
+   }
+
+   /**
+    * Removes the layer the controls point at, unless it is the world's
+    * own.
+    */
+   protected void removeLayer() {
+      postControl(ControlQueue.CMD_REMOVE_LAYER, 0, 0f);
+   }
+
+   /**
+    * Lengthens or shortens the simulation step.
+    *
+    * @param increase A boolean indicating whether each step should cover
+    *        more frames, making the simulation cheaper but coarser.
+    */
+   protected void changeTimeStep(boolean increase) {
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_TIME_STEP,
+         increase ? .25f : -.25f);
+   }
+
+   /**
+    * Brightens or dims the glow of exported frames.
+    *
+    * @param increase A boolean indicating whether to brighten the glow.
+    *        The glow is off once it drops to zero.
+    */
+   protected void changeGlow(boolean increase) {
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_GLOW,
+         increase ? .25f : -.25f);
+   }
+
+   /**
+    * Lengthens or shortens the trails of exported frames.
+    *
+    * @param increase A boolean indicating whether earlier frames should
+    *        weigh more. The trails are off once the weight drops to zero.
+    */
+   protected void changeTrail(boolean increase) {
+      postControl(
+         ControlQueue.CMD_ADD,
+         ControlQueue.PARAM_TRAIL,
+         increase ? .1f : -.1f);
+   }
+
+   /**
+    * Retrieves half the size of the largest particle, as drawn in the
+    * current render mode.
+    *
+    * @return The particle radius in the units of the particle locations.
+    */
+   protected float getParticleRadius() {
+      if (m_nRenderMode != GLEventHandler.RENDER_POINT_SPRITES) {
+         return .5f;
       }
+      return Math.max(.5f, Math.max(m_fSizeStart, m_fSizeEnd) / 2);
+   }
+
+   /**
+    * Retrieves the directory this world exports its frames to.
+    *
+    * @return The export directory.
+    */
+   protected File getExportDirectory() {
+      return new File("export" + m_nWorldId);
+   }
+
+   /**
+    * Retrieves the file this world records to and replays from.
+    *
+    * @return The recording file.
+    */
+   protected File getRecordingFile() {
+      return new File("recording" + m_nWorldId + ".prec");
+   }
+
+   /**
+    * Prints the frame accounting of this world to the console.
+    */
+   protected void printStats() {
+      FrameTarget target = m_oGLEventHandler.getFrameTarget();
+      if (target != null) {
+         System.out.println(
+            "Frames: " + target.getFrameCount()
+               + ", dropped: " + target.getDroppedFrames()
+               + ", target fps: " + target.getTargetFPS());
+      }
+      ParticleSystem system = m_oGLEventHandler.getParticleSystem();
+      if (system != null) {
+         ParticleCuller culler = system.getCuller();
+         System.out.println(
+            "Drawn: " + culler.getVisibleCount()
+               + ", off-screen: " + culler.getOffscreenCount()
+               + ", faded: " + culler.getFadedCount());
+      }
+      FrameExporter exporter = m_oGLEventHandler.getExporter();
+      if (exporter != null) {
+         System.out.println(
+            "Exported: " + exporter.getWrittenFrames()
+               + ", dropped: " + exporter.getDroppedFrames()
+               + ", failed: " + exporter.getFailedFrames());
+      }
+   }
+
+   /**
+    * Retrieves the scheduler entry of this world, which holds its frame
+    * accounting.
+    *
+    * @return The frame target, or null before OpenGL is initialized.
+    */
+   protected FrameTarget getFrameTarget() {
+      return m_oGLEventHandler == null ? null : m_oGLEventHandler.getFrameTarget();
    }
 
    /**
-    * Retrieves the user configurable X speed.
+    * Retrieves the user configurable X speed of the world's own layer.
     * 
     * @return Current float value of the x speed.
     */
    protected float getXSpeed() {
-      return m_fXSpeed;
+      return m_oBaseLayer.m_fXSpeed;
    }
 
    /**
-    * Retrieves the user configurable Y speed.
+    * Retrieves the user configurable Y speed of the world's own layer.
     * 
     * @return Current float value of the y speed.
     */
    protected float getYSpeed() {
-      return m_fYSpeed;
+      return m_oBaseLayer.m_fYSpeed;
    }
 
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+/**
+ * Checks that a world keeps an interactive frame rate with a million
+ * particles drawn as point sprites. Run it on the software OpenGL path
+ * (for example with LIBGL_ALWAYS_SOFTWARE=1 on Mesa) to check the worst
+ * case:
+ *
+ *    java PointSpriteBenchmark [particles] [seconds] [minimum fps]
+ *
+ * Prints the frame rate every second and exits with status 1 if the
+ * average frame rate after the warm-up second stays below the minimum.
+ */
+public class PointSpriteBenchmark {
+   public static void main(String[] args) throws InterruptedException {
+      int particles = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+      float minimumFPS = args.length > 2 ? Float.parseFloat(args[2]) : 24f;
+      // Must be set before the first world is created.
+      System.setProperty("particles.count", String.valueOf(particles));
+      System.setProperty("particles.pointSprites", "true");
+      ParticleWorld world = new ParticleWorld(640, 480);
+      // Keep the full frame rate even if the window does not get focus.
+      world.m_fBackgroundFPS = world.m_fTargetFPS;
+
+      // Wait for OpenGL to come up, then let the first frames settle.
+      FrameTarget target = null;
+      while (target == null) {
+         Thread.sleep(100);
+         target = world.getFrameTarget();
+      }
+      Thread.sleep(1000);
+
+      long startFrames = target.getFrameCount();
+      long startTime = FrameScheduler.nanoTime();
+      long lastFrames = startFrames;
+      for (int s = 0; s < seconds; s++) {
+         Thread.sleep(1000);
+         long frames = target.getFrameCount();
+         System.out.println(
+            particles + " particles: " + (frames - lastFrames) + " fps, "
+               + target.getDroppedFrames() + " dropped");
+         lastFrames = frames;
+      }
+      float elapsed = (FrameScheduler.nanoTime() - startTime) / 1e9f;
+      float fps = (target.getFrameCount() - startFrames) / elapsed;
+      System.out.println("Average: " + fps + " fps (minimum " + minimumFPS + ")");
+      System.exit(fps >= minimumFPS ? 0 : 1);
+   }
+}
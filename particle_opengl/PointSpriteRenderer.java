@@ -0,0 +1,360 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+// Import classes for OpenGL.
+import net.java.games.jogl.GL;
+
+/**
+ * Draws particles as point sprites: one vertex per particle, handed to
+ * OpenGL in a few draw calls, instead of four immediate-mode
+ * vertices. This removes the quad setup that limits the particle count in
+ * the default render mode.
+ *
+ * The vertices are read straight from the pool's vertex buffer, which the
+ * simulation writes in place; only the slots of the particles to draw are
+ * written each frame. Pools kept on the heap are copied into a direct
+ * buffer first, as OpenGL cannot read heap memory.
+ *
+ * A point has one size per draw call, so particles are grouped by sprite
+ * and by size band. A particle's size follows its life from the start to
+ * the end of the size range, in steps of one band.
+ *
+ * Particles of several pools, such as the layers of a world, are drawn
+ * together by adding each pool between begin() and flush(). Their visible
+ * vertices are then gathered in group order into one buffer, so each
+ * group costs one draw call however many pools it spans.
+ */
+public class PointSpriteRenderer {
+   // Number of size steps between the start and the end of the size range.
+   public static final int SIZE_BANDS = 8;
+   // Tangent of half the vertical field of view set up by GLEventHandler.
+   private static final float HALF_FOV_TAN = (float)Math.tan(Math.toRadians(22.5));
+   // Bytes from one vertex to the next in a pool's vertex buffer.
+   private static final int STRIDE = ParticlePool.VERTEX_SIZE * 4;
+   // Most pools drawn together.
+   private static final int MAX_POOLS = 16;
+
+   // Number of particles the buffers hold.
+   private final int m_nCapacity;
+   // Slots of the particles drawn, grouped by sprite and size band.
+   private final IntBuffer m_oIndices;
+   // The same slots, gathered on the heap and copied to the buffer in one
+   // bulk operation. When several pools are drawn, the positions of the
+   // added particles in group order instead.
+   private final int[] m_aIndices;
+   // Pool, slot and group of each particle added since begin().
+   private final int[] m_aEntryPool;
+   private final int[] m_aEntrySlot;
+   private final int[] m_aGroup;
+   // Number of particles added since begin().
+   private int m_nEntries;
+   // The pools added since begin().
+   private final ParticlePool[] m_aPools = new ParticlePool[MAX_POOLS];
+   private int m_nPools;
+   // Number of groups of the atlas given to begin().
+   private int m_nGroups;
+   // Particles per group, then the next write position of each group.
+   private int[] m_aGroupStart;
+   // Vertices of several pools gathered in group order, on the heap and
+   // in direct memory, with views starting at the location and the color
+   // of the first vertex. Created on first use.
+   private float[] m_aGathered;
+   private FloatBuffer m_oGathered;
+   private FloatBuffer m_oGatheredLocations;
+   private FloatBuffer m_oGatheredColors;
+   // Distance attenuation making points shrink like quads: size / d.
+   private final float[] m_aAttenuation = { 0f, 0f, 1f };
+   // Direct copy of the vertices of a heap pool, created on first use.
+   private FloatBuffer m_oHeapCopy;
+   // The vertex buffer the pointers below were made for, and views of it
+   // starting at the location and the color of the first slot.
+   private FloatBuffer m_oSource;
+   private FloatBuffer m_oLocations;
+   private FloatBuffer m_oColors;
+
+   /**
+    * Creates a renderer for pools of the given capacity.
+    *
+    * @param capacity The number of particles the renderer can draw.
+    */
+   public PointSpriteRenderer(int capacity) {
+      m_nCapacity = capacity;
+      m_oIndices =
+         ByteBuffer.allocateDirect(capacity * 4)
+            .order(ByteOrder.nativeOrder())
+            .asIntBuffer();
+      m_aIndices = new int[capacity];
+      m_aEntryPool = new int[capacity];
+      m_aEntrySlot = new int[capacity];
+      m_aGroup = new int[capacity];
+      m_aGroupStart = new int[SIZE_BANDS + 1];
+   }
+
+   /**
+    * Retrieves the number of particles the renderer can draw.
+    *
+    * @return The capacity.
+    */
+   public int getCapacity() {
+      return m_nCapacity;
+   }
+
+   /**
+    * Draws the given particles of a pool.
+    *
+    * @param gl The OpenGL reference.
+    * @param pool The pool holding the particles. Must not hold more
+    *        particles than the capacity of the renderer.
+    * @param visible The slots of the particles to draw.
+    * @param count The number of slots in the list.
+    * @param atlas The sprites.
+    * @param zoom The distance the particles are moved along the Z axis.
+    * @param sizeStart The size of a new particle, in the units of the
+    *        particle locations. A quad particle has size 1.
+    * @param sizeEnd The size of a particle about to die.
+    * @param viewportHeight The height of the viewport in pixels.
+    * @return The number of particles drawn.
+    */
+   public int draw(
+      GL gl,
+      ParticlePool pool,
+      int[] visible,
+      int count,
+      TextureAtlas atlas,
+      float zoom,
+      float sizeStart,
+      float sizeEnd,
+      int viewportHeight) {
+      begin(atlas);
+      add(pool, visible, count);
+      return flush(gl, atlas, zoom, sizeStart, sizeEnd, viewportHeight);
+   }
+
+   /**
+    * Starts a batch of particles from one or more pools.
+    *
+    * @param atlas The sprites the particles are drawn with.
+    */
+   public void begin(TextureAtlas atlas) {
+      m_nGroups = atlas.getSpriteCount() * SIZE_BANDS;
+      if (m_aGroupStart.length < m_nGroups + 1) {
+         m_aGroupStart = new int[m_nGroups + 1];
+      }
+      for (int g = 0; g <= m_nGroups; g++) {
+         m_aGroupStart[g] = 0;
+      }
+      m_nEntries = 0;
+      m_nPools = 0;
+   }
+
+   /**
+    * Adds particles of a pool to the batch. Particles beyond the capacity
+    * of the renderer, or of pools beyond the sixteenth, are left out.
+    *
+    * @param pool The pool holding the particles.
+    * @param visible The slots of the particles to draw.
+    * @param count The number of slots in the list.
+    */
+   public void add(ParticlePool pool, int[] visible, int count) {
+      if (m_nPools == MAX_POOLS) {
+         return;
+      }
+      int p = m_nPools++;
+      m_aPools[p] = pool;
+      count = Math.min(count, m_nCapacity - m_nEntries);
+      int[] sprite = pool.m_aSprite;
+      int[] start = m_aGroupStart;
+      int e = m_nEntries;
+      for (int k = 0; k < count; k++, e++) {
+         int i = visible[k];
+         int band = Math.min(SIZE_BANDS - 1, (int)(pool.getLife(i) * SIZE_BANDS));
+         int g = sprite[i] * SIZE_BANDS + band;
+         m_aEntryPool[e] = p;
+         m_aEntrySlot[e] = i;
+         m_aGroup[e] = g;
+         start[g + 1]++;
+      }
+      m_nEntries = e;
+   }
+
+   /**
+    * Draws the batch.
+    *
+    * @param gl The OpenGL reference.
+    * @param atlas The sprites given to begin().
+    * @param zoom The distance the particles are moved along the Z axis.
+    * @param sizeStart The size of a new particle, in the units of the
+    *        particle locations. A quad particle has size 1.
+    * @param sizeEnd The size of a particle about to die.
+    * @param viewportHeight The height of the viewport in pixels.
+    * @return The number of particles drawn.
+    */
+   public int flush(
+      GL gl,
+      TextureAtlas atlas,
+      float zoom,
+      float sizeStart,
+      float sizeEnd,
+      int viewportHeight) {
+      int live = m_nEntries;
+      if (live == 0) {
+         return 0;
+      }
+      int groups = m_nGroups;
+      sort(groups);
+      // One pool is drawn straight from its vertex buffer through the
+      // index list; several are gathered into one buffer and drawn in
+      // order.
+      boolean gathered = m_nPools > 1;
+      if (gathered) {
+         gather(live);
+      } else {
+         m_oIndices.clear();
+         m_oIndices.put(m_aIndices, 0, live);
+         m_oIndices.flip();
+         setSource(m_aPools[0]);
+      }
+
+      gl.glPushMatrix();
+      gl.glTranslatef(0f, 0f, zoom);
+      gl.glEnableClientState(GL.GL_VERTEX_ARRAY);
+      gl.glEnableClientState(GL.GL_COLOR_ARRAY);
+      gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE, gathered ? m_oGatheredLocations : m_oLocations);
+      gl.glColorPointer(4, GL.GL_FLOAT, STRIDE, gathered ? m_oGatheredColors : m_oColors);
+      gl.glEnable(GL.GL_POINT_SPRITE_ARB);
+      gl.glTexEnvi(GL.GL_POINT_SPRITE_ARB, GL.GL_COORD_REPLACE_ARB, GL.GL_TRUE);
+      gl.glPointParameterfvARB(GL.GL_POINT_DISTANCE_ATTENUATION_ARB, m_aAttenuation);
+      // A particle of size 1 at distance 1 covers this many pixels.
+      float pixels = viewportHeight / (2f * HALF_FOV_TAN);
+      int start = 0;
+      for (int g = 0; g < groups; g++) {
+         // After sort() each entry holds the end of its group.
+         int end = m_aGroupStart[g];
+         if (end > start) {
+            int band = g % SIZE_BANDS;
+            float life = (band + 0.5f) / SIZE_BANDS;
+            float size = sizeEnd + (sizeStart - sizeEnd) * life;
+            atlas.bindSprite(gl, g / SIZE_BANDS);
+            gl.glPointSize(Math.max(1f, size * pixels));
+            if (gathered) {
+               gl.glDrawArrays(GL.GL_POINTS, start, end - start);
+            } else {
+               // OpenGL reads index buffers from their start, not from
+               // their position, so each group gets a view of its own.
+               m_oIndices.position(start);
+               gl.glDrawElements(
+                  GL.GL_POINTS,
+                  end - start,
+                  GL.GL_UNSIGNED_INT,
+                  m_oIndices.slice());
+            }
+         }
+         start = end;
+      }
+      gl.glDisable(GL.GL_POINT_SPRITE_ARB);
+      gl.glDisableClientState(GL.GL_COLOR_ARRAY);
+      gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
+      gl.glPopMatrix();
+      atlas.bind(gl);
+      for (int p = 0; p < m_nPools; p++) {
+         m_aPools[p] = null;
+      }
+      return live;
+   }
+
+   /**
+    * Copies the vertices of the added particles in group order into the
+    * gathered buffer.
+    *
+    * @param live The number of particles added.
+    */
+   private void gather(int live) {
+      int size = m_nCapacity * ParticlePool.VERTEX_SIZE;
+      if (m_oGathered == null) {
+         m_aGathered = new float[size];
+         m_oGathered =
+            ByteBuffer.allocateDirect(size * 4)
+               .order(ByteOrder.nativeOrder())
+               .asFloatBuffer();
+         m_oGatheredLocations = view(m_oGathered, ParticlePool.OFFSET_X);
+         m_oGatheredColors = view(m_oGathered, ParticlePool.OFFSET_RED);
+      }
+      float[] gathered = m_aGathered;
+      int o = 0;
+      for (int k = 0; k < live; k++) {
+         int e = m_aIndices[k];
+         FloatBuffer vertices = m_aPools[m_aEntryPool[e]].getVertices();
+         int v = m_aEntrySlot[e] * ParticlePool.VERTEX_SIZE;
+         for (int c = 0; c < ParticlePool.VERTEX_SIZE; c++) {
+            gathered[o++] = vertices.get(v + c);
+         }
+      }
+      m_oGathered.clear();
+      m_oGathered.put(gathered, 0, o);
+   }
+
+   /**
+    * Points the location and color views at the vertex buffer of a pool,
+    * copying it into direct memory first if it is kept on the heap.
+    */
+   private void setSource(ParticlePool pool) {
+      FloatBuffer vertices = pool.getVertices();
+      if (!vertices.isDirect()) {
+         int size = pool.getCapacity() * ParticlePool.VERTEX_SIZE;
+         if (m_oHeapCopy == null || m_oHeapCopy.capacity() < size) {
+            m_oHeapCopy =
+               ByteBuffer.allocateDirect(size * 4)
+                  .order(ByteOrder.nativeOrder())
+                  .asFloatBuffer();
+         }
+         FloatBuffer source = vertices.duplicate();
+         source.clear();
+         m_oHeapCopy.clear();
+         m_oHeapCopy.put(source);
+         vertices = m_oHeapCopy;
+      }
+      if (vertices != m_oSource) {
+         m_oSource = vertices;
+         m_oLocations = view(vertices, ParticlePool.OFFSET_X);
+         m_oColors = view(vertices, ParticlePool.OFFSET_RED);
+      }
+   }
+
+   /**
+    * Creates a view of a vertex buffer starting at the given float.
+    */
+   private static FloatBuffer view(FloatBuffer vertices, int offset) {
+      FloatBuffer view = vertices.duplicate();
+      view.clear();
+      view.position(offset);
+      return view.slice();
+   }
+
+   /**
+    * Orders the added particles by group with a counting sort. A single
+    * pool's slots are written into the index array; for several pools the
+    * positions of the added particles are.
+    */
+   private void sort(int groups) {
+      int[] start = m_aGroupStart;
+      for (int g = 0; g < groups; g++) {
+         start[g + 1] += start[g];
+      }
+      // start[g] is now the first position of group g; advancing it while
+      // writing leaves it at the group's end.
+      int[] indices = m_aIndices;
+      int[] group = m_aGroup;
+      int count = m_nEntries;
+      if (m_nPools > 1) {
+         for (int e = 0; e < count; e++) {
+            indices[start[group[e]]++] = e;
+         }
+      } else {
+         int[] slot = m_aEntrySlot;
+         for (int e = 0; e < count; e++) {
+            indices[start[group[e]]++] = slot[e];
+         }
+      }
+   }
+}
@@ -0,0 +1,513 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Adds glow and motion blur to rendered frames on the CPU. A frame goes
+ * through a chain of passes:
+ *
+ * 1. threshold: only the part of each pixel brighter than the threshold
+ *    glows, and the bright parts are averaged down to a smaller image;
+ * 2. blur: the small image is blurred by repeated separable box blurs
+ *    (the fastblur of the ParticleAttraction sketch), which approach a
+ *    gaussian after three passes;
+ * 3. composite: the blurred image is scaled back up and added to the
+ *    frame;
+ * 4. accumulation: the frame is blended with the frames before it, so
+ *    moving particles leave trails.
+ *
+ * Frames are packed RGB integers, as drawn by a software renderer, or RGB
+ * bytes as read back from OpenGL. All buffers are kept between frames and
+ * only reallocated when the frame size changes. Every pass is split into
+ * stripes of rows or columns which run in parallel on the WorkerPool.
+ */
+public class PostProcessor {
+   // The passes, as run by a stripe.
+   private static final int PASS_UNPACK = 0;
+   private static final int PASS_THRESHOLD = 1;
+   private static final int PASS_BLUR_ROWS = 2;
+   private static final int PASS_BLUR_COLUMNS = 3;
+   private static final int PASS_COMPOSITE = 4;
+   private static final int PASS_ACCUMULATE = 5;
+   private static final int PASS_PACK = 6;
+
+   // How many times smaller the glow image is than the frame on each axis.
+   private final int m_nDownsample;
+   // Radius of the box blur in pixels of the glow image.
+   private final int m_nRadius;
+   // Number of box blurs run over the glow image.
+   private final int m_nPasses;
+   // Divides a sum of 2 * radius + 1 channel values by the window size.
+   private final int[] m_aDivide;
+   // Size of the frame.
+   private int m_nWidth;
+   private int m_nHeight;
+   // Size of the glow image.
+   private int m_nLowWidth;
+   private int m_nLowHeight;
+   // A frame unpacked from bytes.
+   private int[] m_aFrame;
+   // The glow image, and the image blurred into between the two halves of
+   // a box blur.
+   private int[] m_aLow;
+   private int[] m_aBlurred;
+   // The frames shown so far, blended together.
+   private int[] m_aHistory;
+   // True if the history holds no frame yet.
+   private boolean m_bHistoryEmpty = true;
+   // Scale of the part of a pixel above the threshold, in 1/256, by
+   // brightness.
+   private final int[] m_aBright = new int[256];
+   // The threshold m_aBright was built for.
+   private int m_nThreshold = -1;
+   // Brightness of the glow added to the frame, in 1/256. 0 turns the glow
+   // off.
+   private int m_nGlow;
+   // Weight of the earlier frames in the blend, in 1/256. 0 turns motion
+   // blur off.
+   private int m_nTrail;
+   // The frame being processed, and the bytes it was unpacked from.
+   private int[] m_aTarget;
+   private ByteBuffer m_oBytes;
+   // The parallel work items, one per worker.
+   private final Stripe[] m_aStripes = new Stripe[WorkerPool.getWorkerCount()];
+
+   /**
+    * Runs one pass over a range of rows or columns.
+    */
+   private class Stripe implements Runnable {
+      int m_nPass;
+      int m_nStart;
+      int m_nEnd;
+      // Running sums of the columns of a vertical blur.
+      int[] m_aRed;
+      int[] m_aGreen;
+      int[] m_aBlue;
+
+      public void run() {
+         runPass(this);
+      }
+   }
+
+   /**
+    * Creates a post-processor with the glow and motion blur turned off.
+    *
+    * @param downsample How many times smaller the glow image is than the
+    *        frame on each axis, at least 1. Larger factors make wider and
+    *        cheaper glows.
+    * @param radius The radius of the box blur in pixels of the glow image,
+    *        at least 1.
+    * @param passes The number of box blurs, at least 1. Three look like a
+    *        gaussian blur.
+    */
+   public PostProcessor(int downsample, int radius, int passes) {
+      m_nDownsample = Math.max(1, downsample);
+      m_nRadius = Math.max(1, radius);
+      m_nPasses = Math.max(1, passes);
+      int window = 2 * m_nRadius + 1;
+      m_aDivide = new int[256 * window];
+      for (int i = 0; i < m_aDivide.length; i++) {
+         m_aDivide[i] = i / window;
+      }
+      for (int s = 0; s < m_aStripes.length; s++) {
+         m_aStripes[s] = new Stripe();
+      }
+   }
+
+   /**
+    * Sets the strength of the effects.
+    *
+    * @param threshold The brightness, between 0 and 1, above which pixels
+    *        glow.
+    * @param glow The brightness of the glow added to the frame; 0 turns
+    *        the glow off.
+    * @param trail The weight of the earlier frames, between 0 and 1, in
+    *        the motion blur; 0 turns motion blur off.
+    */
+   public void setEffects(float threshold, float glow, float trail) {
+      int t = Math.round(Math.max(0f, Math.min(1f, threshold)) * 255f);
+      if (t != m_nThreshold) {
+         m_nThreshold = t;
+         for (int l = 0; l < 256; l++) {
+            m_aBright[l] = l > t ? ((l - t) << 8) / l : 0;
+         }
+      }
+      m_nGlow = Math.round(Math.max(0f, glow) * 256f);
+      int weight = Math.round(Math.max(0f, Math.min(1f, trail)) * 256f);
+      if (weight == 0) {
+         m_bHistoryEmpty = true;
+      }
+      m_nTrail = Math.min(255, weight);
+   }
+
+   /**
+    * Tells whether any effect is turned on.
+    *
+    * @return False if process() would leave frames unchanged.
+    */
+   public boolean isActive() {
+      return m_nGlow > 0 || m_nTrail > 0;
+   }
+
+   /**
+    * Processes a frame of packed RGB integers in place.
+    *
+    * @param rgb The pixels, row by row.
+    * @param width The width of the frame in pixels.
+    * @param height The height of the frame in pixels.
+    */
+   public void process(int[] rgb, int width, int height) {
+      if (!isActive()) {
+         return;
+      }
+      resize(width, height);
+      m_aTarget = rgb;
+      runChain();
+      m_aTarget = null;
+   }
+
+   /**
+    * Processes a frame of RGB bytes in place, such as a frame read back
+    * from OpenGL.
+    *
+    * @param pixels The pixels, three bytes per pixel with no row padding,
+    *        from position 0.
+    * @param width The width of the frame in pixels.
+    * @param height The height of the frame in pixels.
+    */
+   public void process(ByteBuffer pixels, int width, int height) {
+      if (!isActive()) {
+         return;
+      }
+      resize(width, height);
+      m_oBytes = pixels;
+      m_aTarget = m_aFrame;
+      runPass(PASS_UNPACK, height);
+      runChain();
+      runPass(PASS_PACK, height);
+      m_oBytes = null;
+      m_aTarget = null;
+   }
+
+   /**
+    * Runs the passes of the effects turned on over m_aTarget.
+    */
+   private void runChain() {
+      if (m_nGlow > 0) {
+         runPass(PASS_THRESHOLD, m_nLowHeight);
+         for (int p = 0; p < m_nPasses; p++) {
+            runPass(PASS_BLUR_ROWS, m_nLowHeight);
+            runPass(PASS_BLUR_COLUMNS, m_nLowWidth);
+         }
+         runPass(PASS_COMPOSITE, m_nHeight);
+      }
+      if (m_nTrail > 0) {
+         if (m_bHistoryEmpty) {
+            System.arraycopy(m_aTarget, 0, m_aHistory, 0, m_nWidth * m_nHeight);
+            m_bHistoryEmpty = false;
+         }
+         runPass(PASS_ACCUMULATE, m_nHeight);
+      }
+   }
+
+   /**
+    * Makes sure the buffers fit a frame of the given size. The motion blur
+    * starts over when the size changes.
+    */
+   private void resize(int width, int height) {
+      if (width == m_nWidth && height == m_nHeight && m_aHistory != null) {
+         return;
+      }
+      m_nWidth = width;
+      m_nHeight = height;
+      m_nLowWidth = Math.max(1, width / m_nDownsample);
+      m_nLowHeight = Math.max(1, height / m_nDownsample);
+      m_aFrame = new int[width * height];
+      m_aHistory = new int[width * height];
+      m_aLow = new int[m_nLowWidth * m_nLowHeight];
+      m_aBlurred = new int[m_nLowWidth * m_nLowHeight];
+      for (int s = 0; s < m_aStripes.length; s++) {
+         m_aStripes[s].m_aRed = new int[m_nLowWidth];
+         m_aStripes[s].m_aGreen = new int[m_nLowWidth];
+         m_aStripes[s].m_aBlue = new int[m_nLowWidth];
+      }
+      m_bHistoryEmpty = true;
+   }
+
+   /**
+    * Runs a pass over rows or columns, split into one stripe per worker.
+    *
+    * @param pass One of the PASS_ constants.
+    * @param lines The number of rows or columns.
+    */
+   private void runPass(int pass, int lines) {
+      int stripes = Math.min(m_aStripes.length, lines);
+      if (stripes <= 1) {
+         Stripe stripe = m_aStripes[0];
+         stripe.m_nPass = pass;
+         stripe.m_nStart = 0;
+         stripe.m_nEnd = lines;
+         runPass(stripe);
+         return;
+      }
+      for (int s = 0; s < stripes; s++) {
+         Stripe stripe = m_aStripes[s];
+         stripe.m_nPass = pass;
+         stripe.m_nStart = lines * s / stripes;
+         stripe.m_nEnd = lines * (s + 1) / stripes;
+      }
+      WorkerPool.run(m_aStripes, stripes);
+   }
+
+   /**
+    * Runs a stripe's part of its pass.
+    */
+   private void runPass(Stripe stripe) {
+      switch (stripe.m_nPass) {
+         case PASS_UNPACK :
+            unpack(stripe.m_nStart, stripe.m_nEnd);
+            break;
+         case PASS_THRESHOLD :
+            threshold(stripe.m_nStart, stripe.m_nEnd);
+            break;
+         case PASS_BLUR_ROWS :
+            blurRows(stripe.m_nStart, stripe.m_nEnd);
+            break;
+         case PASS_BLUR_COLUMNS :
+            blurColumns(stripe);
+            break;
+         case PASS_COMPOSITE :
+            composite(stripe.m_nStart, stripe.m_nEnd);
+            break;
+         case PASS_ACCUMULATE :
+            accumulate(stripe.m_nStart, stripe.m_nEnd);
+            break;
+         case PASS_PACK :
+            pack(stripe.m_nStart, stripe.m_nEnd);
+            break;
+      }
+   }
+
+   /**
+    * Copies rows of the byte frame into the integer frame.
+    */
+   private void unpack(int start, int end) {
+      ByteBuffer bytes = m_oBytes;
+      int[] frame = m_aFrame;
+      int o = start * m_nWidth * 3;
+      for (int i = start * m_nWidth; i < end * m_nWidth; i++) {
+         frame[i] =
+            (bytes.get(o) & 0xff) << 16
+               | (bytes.get(o + 1) & 0xff) << 8
+               | bytes.get(o + 2) & 0xff;
+         o += 3;
+      }
+   }
+
+   /**
+    * Copies rows of the integer frame back into the byte frame.
+    */
+   private void pack(int start, int end) {
+      ByteBuffer bytes = m_oBytes;
+      int[] frame = m_aFrame;
+      int o = start * m_nWidth * 3;
+      for (int i = start * m_nWidth; i < end * m_nWidth; i++) {
+         int c = frame[i];
+         bytes.put(o, (byte)(c >> 16));
+         bytes.put(o + 1, (byte)(c >> 8));
+         bytes.put(o + 2, (byte)c);
+         o += 3;
+      }
+   }
+
+   /**
+    * Fills rows of the glow image with the average of the parts of the
+    * frame's pixels above the threshold.
+    */
+   private void threshold(int start, int end) {
+      int[] frame = m_aTarget;
+      int[] low = m_aLow;
+      int[] bright = m_aBright;
+      int width = m_nWidth;
+      int lowWidth = m_nLowWidth;
+      int factor = m_nDownsample;
+      int area = factor * factor;
+      for (int ly = start; ly < end; ly++) {
+         for (int lx = 0; lx < lowWidth; lx++) {
+            int red = 0;
+            int green = 0;
+            int blue = 0;
+            int row = ly * factor * width + lx * factor;
+            for (int dy = 0; dy < factor; dy++) {
+               for (int dx = 0; dx < factor; dx++) {
+                  int c = frame[row + dx];
+                  int r = c >> 16 & 0xff;
+                  int g = c >> 8 & 0xff;
+                  int b = c & 0xff;
+                  int scale = bright[(r * 77 + g * 150 + b * 29) >> 8];
+                  red += r * scale;
+                  green += g * scale;
+                  blue += b * scale;
+               }
+               row += width;
+            }
+            red = (red >> 8) / area;
+            green = (green >> 8) / area;
+            blue = (blue >> 8) / area;
+            low[ly * lowWidth + lx] = red << 16 | green << 8 | blue;
+         }
+      }
+   }
+
+   /**
+    * Box blurs rows of the glow image into the blurred image. Pixels past
+    * the edges repeat the edge pixels.
+    */
+   private void blurRows(int start, int end) {
+      int[] source = m_aLow;
+      int[] target = m_aBlurred;
+      int[] divide = m_aDivide;
+      int width = m_nLowWidth;
+      int last = width - 1;
+      int radius = m_nRadius;
+      for (int y = start; y < end; y++) {
+         int row = y * width;
+         int red = 0;
+         int green = 0;
+         int blue = 0;
+         for (int i = -radius; i <= radius; i++) {
+            int c = source[row + Math.min(last, Math.max(0, i))];
+            red += c >> 16 & 0xff;
+            green += c >> 8 & 0xff;
+            blue += c & 0xff;
+         }
+         for (int x = 0; x < width; x++) {
+            target[row + x] = divide[red] << 16 | divide[green] << 8 | divide[blue];
+            int in = source[row + Math.min(last, x + radius + 1)];
+            int out = source[row + Math.max(0, x - radius)];
+            red += (in >> 16 & 0xff) - (out >> 16 & 0xff);
+            green += (in >> 8 & 0xff) - (out >> 8 & 0xff);
+            blue += (in & 0xff) - (out & 0xff);
+         }
+      }
+   }
+
+   /**
+    * Box blurs columns of the blurred image back into the glow image. The
+    * columns of the stripe are blurred together, row by row, so the image
+    * is read in memory order.
+    */
+   private void blurColumns(Stripe stripe) {
+      int[] source = m_aBlurred;
+      int[] target = m_aLow;
+      int[] divide = m_aDivide;
+      int[] reds = stripe.m_aRed;
+      int[] greens = stripe.m_aGreen;
+      int[] blues = stripe.m_aBlue;
+      int start = stripe.m_nStart;
+      int end = stripe.m_nEnd;
+      int width = m_nLowWidth;
+      int last = m_nLowHeight - 1;
+      int radius = m_nRadius;
+      for (int x = start; x < end; x++) {
+         reds[x] = 0;
+         greens[x] = 0;
+         blues[x] = 0;
+      }
+      for (int i = -radius; i <= radius; i++) {
+         int row = Math.min(last, Math.max(0, i)) * width;
+         for (int x = start; x < end; x++) {
+            int c = source[row + x];
+            reds[x] += c >> 16 & 0xff;
+            greens[x] += c >> 8 & 0xff;
+            blues[x] += c & 0xff;
+         }
+      }
+      for (int y = 0; y <= last; y++) {
+         int row = y * width;
+         int inRow = Math.min(last, y + radius + 1) * width;
+         int outRow = Math.max(0, y - radius) * width;
+         for (int x = start; x < end; x++) {
+            target[row + x] =
+               divide[reds[x]] << 16 | divide[greens[x]] << 8 | divide[blues[x]];
+            int in = source[inRow + x];
+            int out = source[outRow + x];
+            reds[x] += (in >> 16 & 0xff) - (out >> 16 & 0xff);
+            greens[x] += (in >> 8 & 0xff) - (out >> 8 & 0xff);
+            blues[x] += (in & 0xff) - (out & 0xff);
+         }
+      }
+   }
+
+   /**
+    * Adds the glow image, scaled up bilinearly, to rows of the frame.
+    */
+   private void composite(int start, int end) {
+      int[] frame = m_aTarget;
+      int[] low = m_aLow;
+      int width = m_nWidth;
+      int lowWidth = m_nLowWidth;
+      int lastX = lowWidth - 1;
+      int lastY = m_nLowHeight - 1;
+      int factor = m_nDownsample;
+      int glow = m_nGlow;
+      for (int y = start; y < end; y++) {
+         // Pixel centres of the glow image, in 1/256 of its pixels.
+         int fy = Math.max(0, ((2 * y + 1) << 8) / (2 * factor) - 128);
+         int y0 = Math.min(lastY, fy >> 8);
+         int y1 = Math.min(lastY, y0 + 1);
+         int wy = fy & 0xff;
+         int row0 = y0 * lowWidth;
+         int row1 = y1 * lowWidth;
+         int i = y * width;
+         for (int x = 0; x < width; x++, i++) {
+            int fx = Math.max(0, ((2 * x + 1) << 8) / (2 * factor) - 128);
+            int x0 = Math.min(lastX, fx >> 8);
+            int x1 = Math.min(lastX, x0 + 1);
+            int wx = fx & 0xff;
+            // Weights of the four glow pixels around the pixel, in 1/65536.
+            int w11 = wx * wy;
+            int w10 = (256 - wx) * wy;
+            int w01 = wx * (256 - wy);
+            int w00 = 65536 - w11 - w10 - w01;
+            int c00 = low[row0 + x0];
+            int c01 = low[row0 + x1];
+            int c10 = low[row1 + x0];
+            int c11 = low[row1 + x1];
+            int r =
+               (c00 >> 16 & 0xff) * w00 + (c01 >> 16 & 0xff) * w01
+                  + (c10 >> 16 & 0xff) * w10 + (c11 >> 16 & 0xff) * w11;
+            int g =
+               (c00 >> 8 & 0xff) * w00 + (c01 >> 8 & 0xff) * w01
+                  + (c10 >> 8 & 0xff) * w10 + (c11 >> 8 & 0xff) * w11;
+            int b =
+               (c00 & 0xff) * w00 + (c01 & 0xff) * w01
+                  + (c10 & 0xff) * w10 + (c11 & 0xff) * w11;
+            int c = frame[i];
+            r = (c >> 16 & 0xff) + (glow * (r >> 16) >> 8);
+            g = (c >> 8 & 0xff) + (glow * (g >> 16) >> 8);
+            b = (c & 0xff) + (glow * (b >> 16) >> 8);
+            frame[i] = Math.min(255, r) << 16 | Math.min(255, g) << 8 | Math.min(255, b);
+         }
+      }
+   }
+
+   /**
+    * Blends rows of the frame with the earlier frames and keeps the result
+    * as the history of the next frame.
+    */
+   private void accumulate(int start, int end) {
+      int[] frame = m_aTarget;
+      int[] history = m_aHistory;
+      int trail = m_nTrail;
+      int fresh = 256 - trail;
+      for (int i = start * m_nWidth; i < end * m_nWidth; i++) {
+         int c = frame[i];
+         int h = history[i];
+         int r = ((c >> 16 & 0xff) * fresh + (h >> 16 & 0xff) * trail) >> 8;
+         int g = ((c >> 8 & 0xff) * fresh + (h >> 8 & 0xff) * trail) >> 8;
+         int b = ((c & 0xff) * fresh + (h & 0xff) * trail) >> 8;
+         c = r << 16 | g << 8 | b;
+         frame[i] = c;
+         history[i] = c;
+      }
+   }
+}
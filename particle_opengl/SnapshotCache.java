@@ -0,0 +1,71 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently used particle snapshots, keyed by preset. When
+ * the cache is full, the snapshot used least recently is dropped.
+ */
+public class SnapshotCache {
+   // The snapshots, in access order.
+   private final LinkedHashMap m_oSnapshots;
+
+   /**
+    * Creates an empty cache.
+    *
+    * @param maxEntries The number of snapshots to keep.
+    */
+   public SnapshotCache(final int maxEntries) {
+      m_oSnapshots = new LinkedHashMap(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > maxEntries;
+         }
+      };
+   }
+
+   /**
+    * Retrieves the snapshot stored for a preset and marks it as recently
+    * used.
+    *
+    * @param preset The preset key.
+    * @return The snapshot, or null if none is stored.
+    */
+   public synchronized ParticleSnapshot get(Object preset) {
+      return (ParticleSnapshot)m_oSnapshots.get(preset);
+   }
+
+   /**
+    * Stores the snapshot for a preset, replacing any previous one.
+    *
+    * @param preset The preset key.
+    * @param snapshot The snapshot to store.
+    */
+   public synchronized void put(Object preset, ParticleSnapshot snapshot) {
+      m_oSnapshots.put(preset, snapshot);
+   }
+
+   /**
+    * Removes the snapshot stored for a preset.
+    *
+    * @param preset The preset key.
+    * @return The removed snapshot, or null if none was stored.
+    */
+   public synchronized ParticleSnapshot remove(Object preset) {
+      return (ParticleSnapshot)m_oSnapshots.remove(preset);
+   }
+
+   /**
+    * Removes all snapshots.
+    */
+   public synchronized void clear() {
+      m_oSnapshots.clear();
+   }
+
+   /**
+    * Retrieves the number of stored snapshots.
+    *
+    * @return The number of snapshots.
+    */
+   public synchronized int size() {
+      return m_oSnapshots.size();
+   }
+}
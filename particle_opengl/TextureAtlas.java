@@ -0,0 +1,332 @@
+// Import classes used for reading in the images.
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+// Import classes for OpenGL.
+import net.java.games.jogl.GL;
+
+/**
+ * Packs several particle sprites, and all of their mip levels, into a
+ * single OpenGL texture. Every sprite occupies a square cell whose size is
+ * a power of two, so halving the whole atlas never mixes texels from two
+ * cells until a cell shrinks to a single texel; the mip chain stops there.
+ * Each sprite is addressed through its UV rectangle.
+ *
+ * Point sprites always span the whole texture, so every sprite is also
+ * uploaded as a texture of its own, cut from the atlas levels.
+ */
+public class TextureAtlas {
+   // Names of the supported filters, indexed like ParticleWorld's
+   // m_nCurrentFilter: nearest, linear and mipmapped.
+   public static final int FILTER_NEAREST = 0;
+   public static final int FILTER_LINEAR = 1;
+   public static final int FILTER_MIPMAP = 2;
+
+   // Number of sprites in the atlas.
+   private final int m_nSprites;
+   // Width and height of a sprite cell at level 0.
+   private final int m_nCellSize;
+   // Size of the atlas at level 0.
+   private final int m_nWidth;
+   private final int m_nHeight;
+   // Number of columns of cells.
+   private final int m_nColumns;
+   // The RGB texels of every mip level, level 0 first.
+   private final byte[][] m_aLevels;
+   // u0, v0, u1, v1 for each sprite.
+   private final float[] m_aUVRects;
+   // The OpenGL texture name, once uploaded.
+   private int[] m_aTexture = new int[1];
+   // The OpenGL texture names of the single sprites, once uploaded.
+   private int[] m_aSpriteTextures;
+
+   /**
+    * Loads the given images and packs them into an atlas. Images smaller
+    * than the largest one are scaled up to the common cell size.
+    *
+    * @param filenames The paths to the sprite images.
+    * @throws IOException If an image cannot be read.
+    */
+   public TextureAtlas(String[] filenames) throws IOException {
+      BufferedImage[] images = new BufferedImage[filenames.length];
+      int largest = 1;
+      for (int i = 0; i < filenames.length; i++) {
+         File imageFile = new File(filenames[i]);
+         if (!imageFile.isFile()) {
+            throw new IOException(
+               "The image file does not exist or is not a file: '"
+                  + filenames[i]
+                  + "'");
+         }
+         images[i] = ImageIO.read(imageFile);
+         if (images[i] == null) {
+            throw new IOException("Unsupported image format: '" + filenames[i] + "'");
+         }
+         largest = Math.max(largest, images[i].getWidth());
+         largest = Math.max(largest, images[i].getHeight());
+      }
+      m_nSprites = images.length;
+      m_nCellSize = nextPowerOfTwo(largest);
+      m_nColumns = nextPowerOfTwo((int)Math.ceil(Math.sqrt(m_nSprites)));
+      int rows = nextPowerOfTwo((m_nSprites + m_nColumns - 1) / m_nColumns);
+      m_nWidth = m_nColumns * m_nCellSize;
+      m_nHeight = rows * m_nCellSize;
+
+      // Draw every sprite into its cell.
+      BufferedImage atlas =
+         new BufferedImage(m_nWidth, m_nHeight, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = atlas.createGraphics();
+      g.setRenderingHint(
+         RenderingHints.KEY_INTERPOLATION,
+         RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      m_aUVRects = new float[m_nSprites * 4];
+      for (int i = 0; i < m_nSprites; i++) {
+         int cx = (i % m_nColumns) * m_nCellSize;
+         int cy = (i / m_nColumns) * m_nCellSize;
+         g.drawImage(images[i], cx, cy, m_nCellSize, m_nCellSize, null);
+         // Inset the rectangle by half a texel so linear filtering does
+         // not pick up the neighbouring cell.
+         m_aUVRects[i * 4] = (cx + 0.5f) / m_nWidth;
+         m_aUVRects[i * 4 + 1] = (cy + 0.5f) / m_nHeight;
+         m_aUVRects[i * 4 + 2] = (cx + m_nCellSize - 0.5f) / m_nWidth;
+         m_aUVRects[i * 4 + 3] = (cy + m_nCellSize - 0.5f) / m_nHeight;
+      }
+      g.dispose();
+
+      // Build the mip chain down to one texel per cell.
+      int levels = 1;
+      for (int size = m_nCellSize; size > 1; size >>= 1) {
+         levels++;
+      }
+      m_aLevels = new byte[levels][];
+      int[] argb = atlas.getRGB(0, 0, m_nWidth, m_nHeight, null, 0, m_nWidth);
+      int width = m_nWidth;
+      int height = m_nHeight;
+      m_aLevels[0] = toRGBBytes(argb);
+      for (int level = 1; level < levels; level++) {
+         argb = halve(argb, width, height);
+         width >>= 1;
+         height >>= 1;
+         m_aLevels[level] = toRGBBytes(argb);
+      }
+   }
+
+   /**
+    * Creates the OpenGL texture and uploads every mip level.
+    *
+    * @param gl The GL instance.
+    * @param filter The filter to start out with (FILTER_NEAREST,
+    *        FILTER_LINEAR or FILTER_MIPMAP).
+    */
+   public void upload(GL gl, int filter) {
+      gl.glGenTextures(1, m_aTexture);
+      gl.glBindTexture(GL.GL_TEXTURE_2D, m_aTexture[0]);
+      // Rows of the small levels are not 4-byte aligned.
+      gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
+      int width = m_nWidth;
+      int height = m_nHeight;
+      for (int level = 0; level < m_aLevels.length; level++) {
+         gl.glTexImage2D(
+            GL.GL_TEXTURE_2D,
+            level,
+            3,
+            width,
+            height,
+            0,
+            GL.GL_RGB,
+            GL.GL_UNSIGNED_BYTE,
+            m_aLevels[level]);
+         width >>= 1;
+         height >>= 1;
+      }
+      gl.glTexParameteri(
+         GL.GL_TEXTURE_2D,
+         GL.GL_TEXTURE_MAX_LEVEL,
+         m_aLevels.length - 1);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP);
+      applyFilter(gl, filter);
+
+      // Cut each sprite's cell out of every level.
+      m_aSpriteTextures = new int[m_nSprites];
+      gl.glGenTextures(m_nSprites, m_aSpriteTextures);
+      for (int i = 0; i < m_nSprites; i++) {
+         gl.glBindTexture(GL.GL_TEXTURE_2D, m_aSpriteTextures[i]);
+         width = m_nWidth;
+         int cell = m_nCellSize;
+         for (int level = 0; level < m_aLevels.length; level++) {
+            byte[] texels = new byte[cell * cell * 3];
+            int cx = (i % m_nColumns) * cell;
+            int cy = (i / m_nColumns) * cell;
+            for (int y = 0; y < cell; y++) {
+               System.arraycopy(
+                  m_aLevels[level],
+                  ((cy + y) * width + cx) * 3,
+                  texels,
+                  y * cell * 3,
+                  cell * 3);
+            }
+            gl.glTexImage2D(
+               GL.GL_TEXTURE_2D,
+               level,
+               3,
+               cell,
+               cell,
+               0,
+               GL.GL_RGB,
+               GL.GL_UNSIGNED_BYTE,
+               texels);
+            width >>= 1;
+            cell >>= 1;
+         }
+         gl.glTexParameteri(
+            GL.GL_TEXTURE_2D,
+            GL.GL_TEXTURE_MAX_LEVEL,
+            m_aLevels.length - 1);
+         gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP);
+         gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP);
+         applyFilter(gl, filter);
+      }
+      bind(gl);
+   }
+
+   /**
+    * Binds the atlas texture.
+    *
+    * @param gl The GL instance.
+    */
+   public void bind(GL gl) {
+      gl.glBindTexture(GL.GL_TEXTURE_2D, m_aTexture[0]);
+   }
+
+   /**
+    * Binds the texture of a single sprite, for drawing point sprites.
+    *
+    * @param gl The GL instance.
+    * @param sprite The sprite to bind.
+    */
+   public void bindSprite(GL gl, int sprite) {
+      gl.glBindTexture(GL.GL_TEXTURE_2D, m_aSpriteTextures[sprite]);
+   }
+
+   /**
+    * Changes the filters of the atlas and of all single sprite textures,
+    * and leaves the atlas bound.
+    *
+    * @param gl The GL instance.
+    * @param filter FILTER_NEAREST, FILTER_LINEAR or FILTER_MIPMAP.
+    */
+   public void setFilter(GL gl, int filter) {
+      for (int i = 0; i < m_nSprites; i++) {
+         bindSprite(gl, i);
+         applyFilter(gl, filter);
+      }
+      bind(gl);
+      applyFilter(gl, filter);
+   }
+
+   /**
+    * Changes the filters of the bound atlas texture.
+    *
+    * @param gl The GL instance.
+    * @param filter FILTER_NEAREST, FILTER_LINEAR or FILTER_MIPMAP.
+    */
+   public void applyFilter(GL gl, int filter) {
+      int minFilter;
+      int magFilter;
+      switch (filter) {
+         case FILTER_NEAREST :
+            minFilter = GL.GL_NEAREST;
+            magFilter = GL.GL_NEAREST;
+            break;
+         case FILTER_MIPMAP :
+            minFilter = GL.GL_LINEAR_MIPMAP_LINEAR;
+            magFilter = GL.GL_LINEAR;
+            break;
+         default :
+            minFilter = GL.GL_LINEAR;
+            magFilter = GL.GL_LINEAR;
+            break;
+      }
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, magFilter);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, minFilter);
+   }
+
+   /**
+    * Retrieves the UV rectangles of all sprites, four floats (u0, v0, u1,
+    * v1) per sprite. The array must not be modified.
+    *
+    * @return The UV rectangles.
+    */
+   public float[] getUVRects() {
+      return m_aUVRects;
+   }
+
+   /**
+    * Retrieves the number of sprites in the atlas.
+    *
+    * @return The sprite count.
+    */
+   public int getSpriteCount() {
+      return m_nSprites;
+   }
+
+   /**
+    * Averages each 2x2 block of texels into one.
+    *
+    * @param argb The texels of the level to shrink.
+    * @param width The width of the level.
+    * @param height The height of the level.
+    * @return The texels of the next level.
+    */
+   private static int[] halve(int[] argb, int width, int height) {
+      int w = width >> 1;
+      int h = height >> 1;
+      int[] result = new int[w * h];
+      for (int y = 0; y < h; y++) {
+         int row0 = (y * 2) * width;
+         int row1 = row0 + width;
+         for (int x = 0; x < w; x++) {
+            int a = argb[row0 + x * 2];
+            int b = argb[row0 + x * 2 + 1];
+            int c = argb[row1 + x * 2];
+            int d = argb[row1 + x * 2 + 1];
+            int r = ((a >> 16 & 0xff) + (b >> 16 & 0xff) + (c >> 16 & 0xff) + (d >> 16 & 0xff) + 2) >> 2;
+            int gr = ((a >> 8 & 0xff) + (b >> 8 & 0xff) + (c >> 8 & 0xff) + (d >> 8 & 0xff) + 2) >> 2;
+            int bl = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+            result[y * w + x] = (r << 16) | (gr << 8) | bl;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Converts packed RGB texels into the byte layout used by GL_RGB.
+    *
+    * @param argb The packed texels.
+    * @return Three bytes per texel: red, green, blue.
+    */
+   private static byte[] toRGBBytes(int[] argb) {
+      byte[] bytes = new byte[argb.length * 3];
+      for (int i = 0; i < argb.length; i++) {
+         bytes[i * 3] = (byte)(argb[i] >> 16);
+         bytes[i * 3 + 1] = (byte)(argb[i] >> 8);
+         bytes[i * 3 + 2] = (byte)argb[i];
+      }
+      return bytes;
+   }
+
+   /**
+    * Returns the smallest power of two which is not below the given value.
+    */
+   private static int nextPowerOfTwo(int value) {
+      int result = 1;
+      while (result < value) {
+         result <<= 1;
+      }
+      return result;
+   }
+}
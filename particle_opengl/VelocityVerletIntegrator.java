@@ -0,0 +1,65 @@
+import java.nio.FloatBuffer;
+
+/**
+ * Velocity Verlet in its kick-drift-kick form: changes each particle's
+ * speed by half a step of the acceleration at the start, moves it for the
+ * whole step, and changes the speed by half a step of the acceleration at
+ * the end. Second order accurate also for the flock and fluid behaviours,
+ * whose steering is worked out again once all particles have moved; that
+ * costs a second steering per step.
+ */
+public class VelocityVerletIntegrator implements ParticleIntegrator {
+   /**
+    * Advances the listed particles by one time step.
+    *
+    * @see ParticleIntegrator#integrate
+    */
+   public void integrate(
+      ParticlePool pool,
+      int[] slots,
+      int count,
+      float dt,
+      float speedScale,
+      Steering steering,
+      float[] steerX,
+      float[] steerY,
+      float[] steerZ,
+      float xGravityChange,
+      float yGravityChange) {
+      FloatBuffer v = pool.m_oVertices;
+      float[] vx = pool.m_aXSpeed;
+      float[] vy = pool.m_aYSpeed;
+      float[] vz = pool.m_aZSpeed;
+      float[] gx = pool.m_aXGravity;
+      float[] gy = pool.m_aYGravity;
+      float[] gz = pool.m_aZGravity;
+      float h = dt / speedScale;
+      float half = dt * 0.5f;
+      float dxGravity = xGravityChange * dt;
+      float dyGravity = yGravityChange * dt;
+      // Kick with the acceleration at the start, then drift for the whole
+      // step.
+      steering.steer();
+      for (int k = 0; k < count; k++) {
+         int i = slots[k];
+         vx[i] += (gx[i] + steerX[i]) * half;
+         vy[i] += (gy[i] + steerY[i]) * half;
+         vz[i] += (gz[i] + steerZ[i]) * half;
+         // x, y and z follow each other in the vertex buffer.
+         int o = i * ParticlePool.VERTEX_SIZE + ParticlePool.OFFSET_X;
+         v.put(o, v.get(o) + vx[i] * h);
+         v.put(o + 1, v.get(o + 1) + vy[i] * h);
+         v.put(o + 2, v.get(o + 2) + vz[i] * h);
+         gx[i] += dxGravity;
+         gy[i] += dyGravity;
+      }
+      // Kick with the acceleration at the end.
+      steering.steer();
+      for (int k = 0; k < count; k++) {
+         int i = slots[k];
+         vx[i] += (gx[i] + steerX[i]) * half;
+         vy[i] += (gy[i] + steerY[i]) * half;
+         vz[i] += (gz[i] + steerZ[i]) * half;
+      }
+   }
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs batches of tasks in parallel and waits for them, on one pool of
+ * worker threads (one per processor) shared by everything in the process:
+ * the layers of a scene, the fluid passes and the post-processing passes.
+ *
+ * The thread calling run() takes tasks of its batch as well, and the
+ * workers only help with what is left. A task may therefore start a batch
+ * of its own, as a layer stepping a fluid does, without waiting for
+ * workers that are all busy waiting themselves.
+ */
+public class WorkerPool {
+   // Worker threads, one per processor.
+   private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+   private static Executor s_oWorkers;
+
+   /**
+    * The tasks of one call to run(), taken one at a time by the caller
+    * and the workers helping it.
+    */
+   private static class Batch implements Runnable {
+      final Runnable[] m_aTasks;
+      final int m_nCount;
+      // The next task to take.
+      final AtomicInteger m_oNext = new AtomicInteger();
+      // Counts the tasks down as they finish.
+      final CountDownLatch m_oDone;
+      // The first exception thrown by a task, rethrown to the caller.
+      volatile Throwable m_oFailure;
+
+      Batch(Runnable[] tasks, int count) {
+         m_aTasks = tasks;
+         m_nCount = count;
+         m_oDone = new CountDownLatch(count);
+      }
+
+      public void run() {
+         int t;
+         while ((t = m_oNext.getAndIncrement()) < m_nCount) {
+            try {
+               m_aTasks[t].run();
+            } catch (Throwable e) {
+               if (m_oFailure == null) {
+                  m_oFailure = e;
+               }
+            } finally {
+               m_oDone.countDown();
+            }
+         }
+      }
+   }
+
+   private WorkerPool() {
+   }
+
+   /**
+    * Retrieves the number of worker threads, for splitting work into
+    * about as many parts.
+    *
+    * @return The number of processors.
+    */
+   public static int getWorkerCount() {
+      return WORKERS;
+   }
+
+   /**
+    * Runs tasks in parallel and waits until all of them have finished.
+    * The calling thread runs tasks too. If a task throws, the others still
+    * run and the first exception is rethrown once all are done.
+    *
+    * @param tasks The tasks.
+    * @param count The number of tasks to run, from the start of the array.
+    */
+   public static void run(Runnable[] tasks, int count) {
+      if (count <= 0) {
+         return;
+      }
+      if (count == 1) {
+         tasks[0].run();
+         return;
+      }
+      Batch batch = new Batch(tasks, count);
+      Executor workers = getWorkers();
+      int helpers = Math.min(count - 1, WORKERS);
+      for (int h = 0; h < helpers; h++) {
+         workers.execute(batch);
+      }
+      batch.run();
+      boolean interrupted = false;
+      while (true) {
+         try {
+            batch.m_oDone.await();
+            break;
+         } catch (InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+      Throwable failure = batch.m_oFailure;
+      if (failure instanceof RuntimeException) {
+         throw (RuntimeException)failure;
+      }
+      if (failure instanceof Error) {
+         throw (Error)failure;
+      }
+   }
+
+   /**
+    * Retrieves the worker threads, starting them on first use.
+    */
+   private static synchronized Executor getWorkers() {
+      if (s_oWorkers == null) {
+         s_oWorkers =
+            Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+               public Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r, "Particle worker");
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+      }
+      return s_oWorkers;
+   }
+}